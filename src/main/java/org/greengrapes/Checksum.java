@@ -1,24 +1,130 @@
 package org.greengrapes;
 
+import org.greengrapes.proto.WALEntry;
+
 import java.nio.ByteBuffer;
 import java.util.zip.CRC32;
 
 public class Checksum {
 
     public int compute(long lsn, byte[] data) {
-        java.util.zip.Checksum checksum = new CRC32();
-
-        checksum.update(ByteBuffer.allocate(Long.BYTES).putLong(lsn).array());
+        java.util.zip.Checksum checksum = newChecksum(lsn);
         checksum.update(data);
 
         return (int) checksum.getValue();
     }
 
+    /**
+     * Same checksum as {@link #compute(long, byte[])} over the remaining bytes of the buffer,
+     * without copying them. The buffer's position is left unchanged.
+     */
+    public int compute(long lsn, ByteBuffer data) {
+        java.util.zip.Checksum checksum = newChecksum(lsn);
+        update(checksum, data);
+
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Checksum of an entry in a version 2 or later segment. Every field is covered, the checkpoint
+     * flag and the fragment fields included, and the data and key are each preceded by their
+     * length, so bytes moved from one into the other change the value. Entries with nothing but
+     * data and the checkpoint flag keep the older {@link #compute(long, ByteBuffer)} in version 1
+     * segments, which were written before the other fields existed.
+     */
+    public int compute(long lsn, int type, ByteBuffer key, ByteBuffer data, boolean checkpoint, int fragment, long fragmentOf,
+                       int recordCRC) {
+        java.util.zip.Checksum checksum = newChecksum(lsn);
+        updateInt(checksum, data.remaining());
+        update(checksum, data);
+        updateInt(checksum, key.remaining());
+        update(checksum, key);
+        updateInt(checksum, type);
+        checksum.update(checkpoint ? 1 : 0);
+        updateInt(checksum, fragment);
+        updateInt(checksum, (int) (fragmentOf >>> Integer.SIZE));
+        updateInt(checksum, (int) fragmentOf);
+        updateInt(checksum, recordCRC);
+
+        return (int) checksum.getValue();
+    }
+
+    public int compute(WALEntry entry) {
+        return compute(entry.getLogSequenceNumber(), entry.getType(),
+                entry.getKey().asReadOnlyByteBuffer(), entry.getData().asReadOnlyByteBuffer(), entry.getIsCheckpoint(),
+                entry.getFragment(), entry.getFragmentOf(), entry.getRecordCRC());
+    }
+
+    /**
+     * Checksum of an entry written to a segment of the given {@link WALFormat} version.
+     */
+    public int compute(WALEntry entry, int segmentVersion) {
+        if (isDataOnly(segmentVersion, entry.getType(), entry.getKey().size(), entry.getFragment())) {
+            return compute(entry.getLogSequenceNumber(), entry.getData().asReadOnlyByteBuffer());
+        }
+        return compute(entry);
+    }
+
     public void verify(long lsn, byte[] data, int expectedChecksum) {
-        int actualChecksum = compute(lsn, data);
+        verifyChecksum(lsn, compute(lsn, data), expectedChecksum);
+    }
+
+    public void verify(long lsn, ByteBuffer data, int expectedChecksum) {
+        verifyChecksum(lsn, compute(lsn, data), expectedChecksum);
+    }
+
+    /**
+     * Verifies the fields of an entry read from a segment of the given {@link WALFormat} version.
+     */
+    public void verify(long lsn, int type, ByteBuffer key, ByteBuffer data, boolean checkpoint, int fragment, long fragmentOf,
+                       int recordCRC, int expectedChecksum, int segmentVersion) {
+        int actualChecksum = isDataOnly(segmentVersion, type, key.remaining(), fragment)
+                ? compute(lsn, data)
+                : compute(lsn, type, key, data, checkpoint, fragment, fragmentOf, recordCRC);
+        verifyChecksum(lsn, actualChecksum, expectedChecksum);
+    }
+
+    public void verify(WALEntry entry) {
+        verifyChecksum(entry.getLogSequenceNumber(), compute(entry), entry.getCRC());
+    }
+
+    /**
+     * Verifies an entry read from a segment of the given {@link WALFormat} version.
+     */
+    public void verify(WALEntry entry, int segmentVersion) {
+        verifyChecksum(entry.getLogSequenceNumber(), compute(entry, segmentVersion), entry.getCRC());
+    }
+
+    private static boolean isDataOnly(int segmentVersion, int type, int keyLength, int fragment) {
+        return segmentVersion < WALFormat.VERSION_2 && type == 0 && keyLength == 0 && fragment == 0;
+    }
 
+    private static void verifyChecksum(long lsn, int actualChecksum, int expectedChecksum) {
         if (expectedChecksum != actualChecksum) {
             throw new IllegalStateException("Checksum mismatch for entry with LSN " + lsn);
         }
     }
+
+    private static void update(java.util.zip.Checksum checksum, ByteBuffer buffer) {
+        int position = buffer.position();
+        checksum.update(buffer);
+        buffer.position(position);
+    }
+
+    private static void updateInt(java.util.zip.Checksum checksum, int value) {
+        for (int shift = Integer.SIZE - Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+            checksum.update(value >>> shift);
+        }
+    }
+
+    /**
+     * Starts a CRC32 seeded with the LSN in big-endian order, byte by byte to avoid allocating.
+     */
+    private static java.util.zip.Checksum newChecksum(long lsn) {
+        java.util.zip.Checksum checksum = new CRC32();
+        for (int shift = Long.SIZE - Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+            checksum.update((int) (lsn >>> shift));
+        }
+        return checksum;
+    }
 }
@@ -0,0 +1,84 @@
+package org.greengrapes;
+
+/**
+ * Log-linear histogram of non-negative values (e.g. nanoseconds). Each power of two is split into
+ * {@value #SUB_BUCKETS} buckets, so a reported percentile is within about 3% of the recorded
+ * value. Not thread-safe: record into one histogram per thread and {@link #merge} them.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[Long.SIZE * SUB_BUCKETS];
+    private long count;
+    private long sum;
+    private long max;
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[indexOf(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    void merge(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Smallest bucket upper bound that covers {@code percentile} percent of the recorded values,
+     * capped at the maximum; 0 when nothing has been recorded.
+     */
+    long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(upperBoundOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
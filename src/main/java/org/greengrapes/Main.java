@@ -1,8 +1,304 @@
 package org.greengrapes;
 
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.greengrapes.WALSegmentReader.MAX_ENTRY_SIZE;
+
+/**
+ * Workload driver for sizing hardware and reproducing latency problems. Opens a WAL, runs writer
+ * threads at a target rate for a fixed duration, then restarts the WAL and times recovery.
+ * <p>
+ * With a target rate, latencies are measured from each operation's scheduled start rather than
+ * its actual start, so stalls show up in the percentiles instead of silently lowering the rate.
+ */
 public class Main {
+    private static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        if (options.containsKey("help")) {
+            printUsage();
+            return;
+        }
+
+        String directoryPath = options.containsKey("dir")
+                ? options.get("dir")
+                : Files.createTempDirectory("wal-load").toString();
+        long segmentSize = parseBytes(options.getOrDefault("segment-size", String.valueOf(DEFAULT_SEGMENT_SIZE)));
+        long segments = Long.parseLong(options.getOrDefault("segments", "10"));
+        boolean fsync = Boolean.parseBoolean(options.getOrDefault("fsync", "false"));
+        PayloadSize payloadSize = PayloadSize.parse(options.getOrDefault("payload", "fixed:256"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "4"));
+        long rate = Long.parseLong(options.getOrDefault("rate", "0"));
+        Duration duration = parseDuration(options.getOrDefault("duration", "30s"));
+        int commitEvery = Integer.parseInt(options.getOrDefault("commit-every", "0"));
+
+        System.out.printf("WAL load: dir=%s segment-size=%d segments=%d fsync=%b payload=%s threads=%d rate=%s duration=%s commit-every=%d%n",
+                directoryPath, segmentSize, segments, fsync, payloadSize, threads,
+                rate > 0 ? rate + "/s" : "unlimited", duration, commitEvery);
+
+        WAL wal = WAL.openWAL(directoryPath, fsync, segmentSize, segments);
+        long firstLogSequenceNumber = wal.getLastLogSequenceNumber();
+
+        List<Writer> writers = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(threads);
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + duration.toNanos();
+        long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(threads) / rate : 0;
+        for (int i = 0; i < threads; i++) {
+            Writer writer = new Writer(wal, payloadSize, commitEvery, startNanos, endNanos, intervalNanos, done);
+            writers.add(writer);
+            Thread thread = new Thread(writer, "wal-load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        long rotations = wal.getRotationCount(); // the file count would include the pre-opened spare
+        long closeStart = System.nanoTime();
+        wal.close();
+        long closeNanos = System.nanoTime() - closeStart;
+
+        LatencyHistogram append = new LatencyHistogram();
+        LatencyHistogram commit = new LatencyHistogram();
+        long bytes = 0;
+        for (Writer writer : writers) {
+            append.merge(writer.append);
+            commit.merge(writer.commit);
+            bytes += writer.bytes;
+            if (writer.failure != null) {
+                System.out.println("Writer failed: " + writer.failure);
+            }
+        }
+
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%nThroughput: %,.0f records/s, %,.1f MB/s (%,d records, %,d bytes in %.1f s)%n",
+                append.getCount() / seconds, bytes / seconds / (1024 * 1024), append.getCount(), bytes, seconds);
+        printLatencies("append", append);
+        printLatencies("commit", commit);
+        System.out.printf("Rotations: %d, close: %.1f ms%n", rotations, closeNanos / 1e6);
+
+        // Simulated restart: reopen (finds the last LSN) and scan everything this run wrote.
+        long recoveryStart = System.nanoTime();
+        WAL reopened = WAL.openWAL(directoryPath, fsync, segmentSize, segments);
+        long openNanos = System.nanoTime() - recoveryStart;
+        long recovered = 0;
+        try (WALMappedCursor cursor = reopened.mappedCursor(firstLogSequenceNumber + 1)) {
+            while (cursor.advance()) {
+                recovered++;
+            }
+        }
+        long recoveryNanos = System.nanoTime() - recoveryStart;
+        System.out.printf("Recovery: open %.1f ms, open + scan of %,d records %.1f ms (last LSN %d)%n",
+                openNanos / 1e6, recovered, recoveryNanos / 1e6, reopened.getLastLogSequenceNumber());
+        reopened.close();
+    }
+
+    private static void printLatencies(String name, LatencyHistogram histogram) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+        System.out.printf("%-6s latency (us): mean %.1f, p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, p99.99 %.1f, max %.1f (%,d samples)%n",
+                name, histogram.getMean() / 1e3,
+                histogram.getValueAtPercentile(50) / 1e3,
+                histogram.getValueAtPercentile(90) / 1e3,
+                histogram.getValueAtPercentile(99) / 1e3,
+                histogram.getValueAtPercentile(99.9) / 1e3,
+                histogram.getValueAtPercentile(99.99) / 1e3,
+                histogram.getMax() / 1e3,
+                histogram.getCount());
+    }
+
+    private static final class Writer implements Runnable {
+        private final WAL wal;
+        private final PayloadSize payloadSize;
+        private final int commitEvery;
+        private final long startNanos;
+        private final long endNanos;
+        private final long intervalNanos;
+        private final CountDownLatch done;
+        private final LatencyHistogram append = new LatencyHistogram();
+        private final LatencyHistogram commit = new LatencyHistogram();
+        private long bytes;
+        private volatile Throwable failure;
+
+        Writer(WAL wal, PayloadSize payloadSize, int commitEvery, long startNanos, long endNanos,
+               long intervalNanos, CountDownLatch done) {
+            this.wal = wal;
+            this.payloadSize = payloadSize;
+            this.commitEvery = commitEvery;
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+            this.intervalNanos = intervalNanos;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                byte[] buffer = new byte[payloadSize.max()];
+                random.nextBytes(buffer);
+
+                long scheduled = startNanos + (intervalNanos > 0 ? random.nextLong(intervalNanos) : 0);
+                for (long n = 1; ; n++) {
+                    long now = System.nanoTime();
+                    if (intervalNanos > 0) {
+                        while (now < scheduled) {
+                            TimeUnit.NANOSECONDS.sleep(Math.min(scheduled - now, 1_000_000));
+                            now = System.nanoTime();
+                        }
+                    } else {
+                        scheduled = now;
+                    }
+                    if (now >= endNanos) {
+                        return;
+                    }
+
+                    byte[] data = new byte[payloadSize.next(random)];
+                    System.arraycopy(buffer, 0, data, 0, data.length);
+                    wal.write(data);
+                    long written = System.nanoTime();
+                    append.record(written - scheduled);
+                    bytes += data.length;
+
+                    if (commitEvery > 0 && n % commitEvery == 0) {
+                        wal.commit();
+                        commit.record(System.nanoTime() - written);
+                    }
+                    scheduled += intervalNanos;
+                }
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Payload size distribution: {@code fixed:N}, {@code uniform:MIN-MAX} or {@code exponential:MEAN}.
+     * Sizes accept k/m suffixes and are capped at the maximum entry size; exponential sizes
+     * are also capped at 16 times the mean.
+     */
+    private record PayloadSize(String kind, int min, int max, int mean) {
+        private static final int PAYLOAD_CAP = MAX_ENTRY_SIZE - 64; // room for the entry header
+
+        static PayloadSize parse(String spec) {
+            String[] parts = spec.split(":", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid payload spec: " + spec);
+            }
+            switch (parts[0]) {
+                case "fixed" -> {
+                    int size = cap(parseBytes(parts[1]));
+                    return new PayloadSize("fixed", size, size, size);
+                }
+                case "uniform" -> {
+                    String[] range = parts[1].split("-", 2);
+                    int min = cap(parseBytes(range[0]));
+                    int max = cap(parseBytes(range[1]));
+                    if (min > max) {
+                        throw new IllegalArgumentException("Invalid payload range: " + parts[1]);
+                    }
+                    return new PayloadSize("uniform", min, max, (min + max) / 2);
+                }
+                case "exponential" -> {
+                    int mean = cap(parseBytes(parts[1]));
+                    // The tail beyond 16x the mean has probability e^-16; cutting it keeps buffers small.
+                    return new PayloadSize("exponential", 1, (int) Math.min(PAYLOAD_CAP, 16L * mean), mean);
+                }
+                default -> throw new IllegalArgumentException("Unknown payload distribution: " + parts[0]);
+            }
+        }
+
+        int next(ThreadLocalRandom random) {
+            return switch (kind) {
+                case "uniform" -> random.nextInt(min, max + 1);
+                case "exponential" -> (int) Math.max(min, Math.min(max, Math.round(-mean * Math.log(1 - random.nextDouble()))));
+                default -> min;
+            };
+        }
+
+        private static int cap(long size) {
+            if (size <= 0) {
+                throw new IllegalArgumentException("Payload size must be positive: " + size);
+            }
+            return (int) Math.min(size, PAYLOAD_CAP);
+        }
+
+        @Override
+        public String toString() {
+            return switch (kind) {
+                case "uniform" -> "uniform:" + min + "-" + max;
+                case "exponential" -> "exponential:" + mean;
+                default -> "fixed:" + min;
+            };
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                options.put(arg.substring(2), "true");
+            } else {
+                options.put(arg.substring(2, separator), arg.substring(separator + 1));
+            }
+        }
+        return options;
+    }
+
+    private static long parseBytes(String value) {
+        String lower = value.trim().toLowerCase();
+        if (lower.endsWith("k")) {
+            return Long.parseLong(lower.substring(0, lower.length() - 1)) * 1024;
+        }
+        if (lower.endsWith("m")) {
+            return Long.parseLong(lower.substring(0, lower.length() - 1)) * 1024 * 1024;
+        }
+        return Long.parseLong(lower);
+    }
+
+    private static Duration parseDuration(String value) {
+        String lower = value.trim().toLowerCase();
+        if (lower.endsWith("ms")) {
+            return Duration.ofMillis(Long.parseLong(lower.substring(0, lower.length() - 2)));
+        }
+        if (lower.endsWith("s")) {
+            return Duration.ofSeconds(Long.parseLong(lower.substring(0, lower.length() - 1)));
+        }
+        if (lower.endsWith("m")) {
+            return Duration.ofMinutes(Long.parseLong(lower.substring(0, lower.length() - 1)));
+        }
+        return Duration.ofSeconds(Long.parseLong(lower));
+    }
 
-    public static void main(String[] args) {
-        System.out.println("Hello world!");
+    private static void printUsage() {
+        System.out.println("""
+                Usage: Main [options]
+                  --dir=PATH             WAL directory (default: a new temporary directory)
+                  --segment-size=BYTES   maximum segment size, k/m suffixes allowed (default: 64m)
+                  --segments=N           maximum number of segments kept (default: 10)
+                  --fsync=true|false     fsync on every write (default: false)
+                  --payload=SPEC         fixed:N, uniform:MIN-MAX or exponential:MEAN (default: fixed:256)
+                  --threads=N            writer threads (default: 4)
+                  --rate=N               target records per second across all threads, 0 for unlimited (default: 0)
+                  --duration=TIME        run time such as 500ms, 30s or 5m (default: 30s)
+                  --commit-every=N       commit after every N writes per thread, 0 to never commit (default: 0)
+                """);
     }
 }
@@ -1,67 +1,146 @@
 package org.greengrapes;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import org.greengrapes.proto.WALEntry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 
-import static org.greengrapes.WALUtils.findLatestSegmentNumber;
-import static org.greengrapes.WALUtils.findOldestSegmentNumber;
+import static org.greengrapes.WALUtils.getAllArchivedSegments;
 import static org.greengrapes.WALUtils.getAllSegmentNumbers;
+import static org.greengrapes.WALUtils.getRetentionFloorFilePath;
 import static org.greengrapes.WALUtils.getSegmentFilePath;
+import static org.greengrapes.WALUtils.getSegmentIndexFilePath;
 
 public class WAL {
     private static final Logger logger = LoggerFactory.getLogger(WAL.class);
     private static final long DEFAULT_SEGMENT_NUMBER = 1L;
     private static final long DEFAULT_LOG_SEQUENCE_NUMBER = 1L;
     private static final Checksum CHECKSUM = new Checksum();
+    private static final int FRAGMENT_SIZE = 1024 * 1024;
+    private static final int BLOCK_FRAME_OVERHEAD = 128; // size prefix, trailer and entry fields other than key and data
+    private static final int DEFAULT_REPLAY_BUFFER_COUNT = 3;
+    private static final int DEFAULT_REPLAY_BUFFER_SIZE = 1024 * 1024;
+    private static final long TRUNCATE_READER_TIMEOUT_SECONDS = 30;
 
     private final String directoryPath;
     private final boolean immediateFsync;
     private final long maxSegmentSize; // in bytes
-    private final long maxSegments;
     private final Lock lock = new ReentrantLock(true);
+    private final WALOptions options;
+    private final WALArchiver archiver;
+    private final WALCompactor compactor;
+    private final WALRetention retention;
+    private final ScheduledExecutorService flushScheduler; // shared by all segments of this WAL
+    private final ExecutorService rotationExecutor;        // seals old segments and pre-opens new ones, in order
+    private final boolean ownsExecutors;                   // false when hosted by a WALManager
 
-    private WALSegment currentSegment;
-    private long lastLogSequenceNumber;
+    private volatile WALSegment currentSegment;
+    private volatile CompletableFuture<Void> pendingSeal = CompletableFuture.completedFuture(null);
+    private CompletableFuture<WALSegment> nextSegment;
+    private volatile long lastLogSequenceNumber;     // written under the lock, read without it
+    private final AtomicLong committedLogSequenceNumber = new AtomicLong(); // reader visibility watermark
+    private final Map<Long, WALSegmentIndex> segmentIndexes = new ConcurrentHashMap<>(); // by segment number
+    private final StampedLock tailLock = new StampedLock(); // read-held by readers that map segments, see truncateAfter
+    private final WALSegmentLeases segmentLeases = new WALSegmentLeases(); // keeps retention off segments being read
+    private volatile long truncationCount; // lets a compaction pass notice that the log was cut under it
+    private volatile long rotationCount;   // written under the lock
+    private volatile long compactionHorizon = Long.MAX_VALUE;
+    private volatile long retentionFloor = Long.MAX_VALUE;
 
-    private WAL(String directoryPath, boolean immediateFsync, long maxSegmentSize, long maxSegments, WALSegment currentSegment) {
+    private WAL(String directoryPath, boolean immediateFsync, long maxSegmentSize, long maxSegments, WALOptions options,
+                WALExecutors executors) {
         this.directoryPath = directoryPath;
         this.immediateFsync = immediateFsync;
         this.maxSegmentSize = maxSegmentSize;
-        this.maxSegments = maxSegments;
-        this.currentSegment = currentSegment;
-        this.lastLogSequenceNumber = getLastLogSequenceNumber(currentSegment);
+        this.options = options;
+        this.archiver = options.hasArchiveDirectoryPath()
+                ? new WALArchiver(directoryPath, options.getArchiveDirectoryPath(), CHECKSUM, segmentIndexes::remove)
+                : null;
+        this.ownsExecutors = executors == null;
+        if (ownsExecutors) {
+            this.flushScheduler = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("wal-flusher"));
+            this.rotationExecutor = Executors.newSingleThreadExecutor(daemonThreadFactory("wal-rotation"));
+        } else {
+            this.flushScheduler = executors.flushScheduler();
+            this.rotationExecutor = executors.rotationExecutor();
+        }
+        this.currentSegment = openSegmentBySegmentNumber(findActiveSegmentNumber());
+        this.lastLogSequenceNumber = findLastLogSequenceNumber();
+        this.committedLogSequenceNumber.set(lastLogSequenceNumber);
+        this.retentionFloor = readRetentionFloor();
+        if (!options.isCompactionEnabled()) {
+            this.compactor = null;
+        } else if (ownsExecutors) {
+            this.compactor = new WALCompactor(directoryPath, options, archiver, tailLock, segmentLeases,
+                    this::firstUnsealedSegmentNumber, () -> truncationCount, this::effectiveCompactionHorizon, () -> retentionFloor,
+                    segmentIndexes::remove);
+        } else {
+            this.compactor = new WALCompactor(directoryPath, options, archiver, tailLock, segmentLeases,
+                    this::firstUnsealedSegmentNumber, () -> truncationCount, this::effectiveCompactionHorizon, () -> retentionFloor,
+                    segmentIndexes::remove, executors.compactionScheduler());
+        }
+        this.retention = ownsExecutors
+                ? new WALRetention(directoryPath, maxSegments, options, () -> this.currentSegment.getSegmentNumber(),
+                        this::firstSegmentAfterRetentionFloor, archiver, segmentLeases, segmentIndexes::remove)
+                : new WALRetention(directoryPath, maxSegments, options, () -> this.currentSegment.getSegmentNumber(),
+                        this::firstSegmentAfterRetentionFloor, archiver, segmentLeases, segmentIndexes::remove,
+                        executors.retentionScheduler());
+        preopenNextSegment(currentSegment.getSegmentNumber() + 1);
     }
 
     public static WAL openWAL(String directoryPath, boolean immediateFsync, long maxSegmentSize, long maxSegments) {
-        return new WAL(
-                directoryPath,
-                immediateFsync,
-                maxSegmentSize,
-                maxSegments,
-                openLatestSegment(directoryPath, immediateFsync)
-        );
+        return openWAL(directoryPath, immediateFsync, maxSegmentSize, maxSegments, WALOptions.getDefaultInstance());
+    }
+
+    public static WAL openWAL(String directoryPath, boolean immediateFsync, long maxSegmentSize, long maxSegments, WALOptions options) {
+        return new WAL(directoryPath, immediateFsync, maxSegmentSize, maxSegments, options, null);
     }
 
-    private static WALSegment openLatestSegment(String directoryPath, boolean immediateFsync) {
-        return openSegmentBySegmentNumber(
-                directoryPath,
-                findLatestSegmentNumber(directoryPath, DEFAULT_SEGMENT_NUMBER),
-                immediateFsync
-        );
+    /**
+     * Opens a WAL that runs its background work on the given shared executors.
+     */
+    static WAL openWAL(String directoryPath, boolean immediateFsync, long maxSegmentSize, long maxSegments, WALOptions options,
+                       WALExecutors executors) {
+        return new WAL(directoryPath, immediateFsync, maxSegmentSize, maxSegments, options, executors);
     }
 
-    private static WALSegment openSegmentBySegmentNumber(String directoryPath, long segmentNumber, boolean immediateFsync) {
+    private WALSegment openSegmentBySegmentNumber(long segmentNumber) {
         Path dir = Path.of(directoryPath);
         try {
             Files.createDirectories(dir); // ensures directory exists
@@ -70,96 +149,944 @@ public class WAL {
         }
 
         String filePath = getSegmentFilePath(dir.toString(), segmentNumber);
-        return new WALSegment(segmentNumber, filePath, immediateFsync, CHECKSUM);
+        WALSegment segment = new WALSegment(segmentNumber, filePath, immediateFsync, CHECKSUM, flushScheduler,
+                options.isBlockLayout() ? WALFormat.VERSION_3 : WALFormat.CURRENT_VERSION);
+        segment.setCommitListener(lsn -> committedLogSequenceNumber.accumulateAndGet(lsn, Math::max));
+        return segment;
+    }
+
+    /**
+     * Appends an untyped record without a key.
+     *
+     * @return the LSN assigned to the record
+     * @throws IllegalArgumentException with the block layout, if the record does not fit in a block;
+     *                                  write it with {@link #write(InputStream)} instead
+     */
+    public long write(byte[] data) {
+        return write(WALEntry.newBuilder()
+                .setData(ByteString.copyFrom(data)));
+    }
+
+    /**
+     * Appends a record tagged with an application-defined type and key, which filtered scans
+     * can match on without reading the payload.
+     *
+     * @return the LSN assigned to the record
+     * @throws IllegalArgumentException with the block layout, if the record does not fit in a block;
+     *                                  write it with {@link #write(int, byte[], InputStream)} instead
+     */
+    public long write(int type, byte[] key, byte[] data) {
+        return write(WALEntry.newBuilder()
+                .setType(type)
+                .setKey(ByteString.copyFrom(key))
+                .setData(ByteString.copyFrom(data)));
+    }
+
+    /**
+     * Appends a record flagged as a checkpoint.
+     *
+     * @return the LSN assigned to the record
+     */
+    public long writeCheckpoint(byte[] data) {
+        return write(WALEntry.newBuilder()
+                .setIsCheckpoint(true)
+                .setData(ByteString.copyFrom(data)));
     }
 
-    public void write(byte[] data) {
-        WALEntry entry = WALEntry.newBuilder()
-                .setLogSequenceNumber(++lastLogSequenceNumber)
-                .setData(ByteString.copyFrom(data))
-                .build();
+    /**
+     * Appends an untyped record without a key, read from {@code in} until end of stream.
+     *
+     * @see #write(int, byte[], InputStream)
+     */
+    public long write(InputStream in) {
+        return write(0, null, in);
+    }
 
+    /**
+     * Appends a record read from {@code in} until end of stream, whatever its length, holding
+     * at most one fragment of it in memory. Payloads that fit in one fragment are written as a
+     * normal record; longer ones as a chain of fragment frames ending with a checksum over the
+     * whole payload. Other writers can interleave with the fragments.
+     * <p>
+     * If the stream fails part way, the fragments written so far are left without a last
+     * fragment and the record can never be opened.
+     *
+     * @return the LSN of the record's first fragment, which identifies it for {@link #openRecordStream(long)}
+     */
+    public long write(int type, byte[] key, InputStream in) {
+        return write(newRecord(type, key), in);
+    }
+
+    /**
+     * Writes {@code first} with a payload read from {@code in}, as one record or as a fragment
+     * chain whose first fragment carries the fields of {@code first}.
+     */
+    private long write(WALEntry.Builder first, InputStream in) {
+        int fragmentSize = fragmentSize(first);
+        byte[] buffer = new byte[fragmentSize];
+        try {
+            int length = in.readNBytes(buffer, 0, fragmentSize);
+            int nextByte = length == fragmentSize ? in.read() : -1;
+            if (nextByte < 0) {
+                return write(first.setData(ByteString.copyFrom(buffer, 0, length)));
+            }
+
+            // The buffer is reused for every fragment: unsafeWrap avoids a copy and is safe
+            // because each fragment is serialized before the next read overwrites the buffer.
+            CRC32 recordChecksum = new CRC32();
+            recordChecksum.update(buffer, 0, length);
+            long firstLogSequenceNumber = write(first
+                    .setFragment(WALRecord.Fragment.FIRST.getNumber())
+                    .setData(UnsafeByteOperations.unsafeWrap(buffer, 0, length)));
+
+            while (true) {
+                buffer[0] = (byte) nextByte;
+                length = 1 + in.readNBytes(buffer, 1, fragmentSize - 1);
+                nextByte = length == fragmentSize ? in.read() : -1;
+                recordChecksum.update(buffer, 0, length);
+
+                WALEntry.Builder fragment = WALEntry.newBuilder()
+                        .setFragmentOf(firstLogSequenceNumber)
+                        .setData(UnsafeByteOperations.unsafeWrap(buffer, 0, length));
+                if (nextByte < 0) {
+                    write(fragment
+                            .setFragment(WALRecord.Fragment.LAST.getNumber())
+                            .setRecordCRC((int) recordChecksum.getValue()));
+                    return firstLogSequenceNumber;
+                }
+                write(fragment.setFragment(WALRecord.Fragment.MIDDLE.getNumber()));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Channel variant of {@link #write(InputStream)}.
+     */
+    public long write(ReadableByteChannel channel) {
+        return write(Channels.newInputStream(channel));
+    }
+
+    /**
+     * Channel variant of {@link #write(int, byte[], InputStream)}.
+     */
+    public long write(int type, byte[] key, ReadableByteChannel channel) {
+        return write(type, key, Channels.newInputStream(channel));
+    }
+
+    private static WALEntry.Builder newRecord(int type, byte[] key) {
+        WALEntry.Builder builder = WALEntry.newBuilder().setType(type);
+        if (key != null) {
+            builder.setKey(ByteString.copyFrom(key));
+        }
+        return builder;
+    }
+
+    /**
+     * Payload bytes per fragment of a record starting with {@code first}. With a block layout, a
+     * fragment must leave room in a block for the frame and the entry fields, the first fragment's
+     * key included.
+     */
+    private int fragmentSize(WALEntry.Builder first) {
+        if (!options.isBlockLayout()) {
+            return FRAGMENT_SIZE;
+        }
+        int fragmentSize = WALFormat.MAX_BLOCK_FRAME_SIZE - BLOCK_FRAME_OVERHEAD - first.getKey().size();
+        if (fragmentSize <= 0) {
+            throw new IllegalArgumentException("Key of " + first.getKey().size() + " bytes does not fit in a WAL block");
+        }
+        return fragmentSize;
+    }
+
+    /**
+     * Largest payload a record with this key can have as a single frame; larger ones have to be
+     * written as a stream. Without the block layout this is the stream fragment size.
+     */
+    int maxRecordPayloadSize(byte[] key) {
+        return fragmentSize(newRecord(0, key));
+    }
+
+    private long write(WALEntry.Builder builder) {
+        if (options.isBlockLayout() && builder.getData().size() > fragmentSize(builder)) {
+            // Splitting it here would hand record-level readers a bare first fragment.
+            throw new IllegalArgumentException("Record of " + builder.getData().size() + " bytes does not fit in a "
+                    + WALFormat.BLOCK_SIZE + "-byte WAL block; write it as a stream");
+        }
+
+        lock.lock();
+        try {
+            // LSNs are assigned under the lock so frames land in the segment in LSN order.
+            WALEntry entry = builder
+                    .setLogSequenceNumber(lastLogSequenceNumber + 1)
+                    .build();
+
+            rotateLogIfNeeded(entry);
+            currentSegment.write(entry);
+            lastLogSequenceNumber = entry.getLogSequenceNumber();
+            return lastLogSequenceNumber;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends an entry that already carries its LSN, e.g. one received from a primary.
+     * Entries at or below the last LSN are ignored so re-shipped ranges are idempotent.
+     */
+    boolean append(WALEntry entry) {
         lock.lock();
         try {
+            if (entry.getLogSequenceNumber() <= lastLogSequenceNumber) {
+                return false;
+            }
+
             rotateLogIfNeeded(entry);
             currentSegment.write(entry);
+            lastLogSequenceNumber = entry.getLogSequenceNumber();
+            return true;
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Reads the committed records of the active segment. Like every read, it sees records up to
+     * the last flush and never takes the writer lock; call {@link #flush()} first to include
+     * records still buffered.
+     */
     public List<WALRecord> read() {
         return currentSegment.readAll().stream()
-                .map(entry -> new WALRecord(entry.getLogSequenceNumber(), entry.getData().toByteArray()))
+                .map(WALRecord::fromEntry)
                 .collect(Collectors.toList());
     }
 
     public List<WALRecord> readAll() {
         List<WALRecord> allRecords = new ArrayList<>();
 
-        List<Long> segmentNumbers = getAllSegmentNumbers(directoryPath);
-        segmentNumbers.sort(Long::compareTo);
-
-        segmentNumbers.forEach(num -> {
-            WALSegmentReader segment = new WALSegmentReader(getSegmentFilePath(directoryPath, num), CHECKSUM);
-            allRecords.addAll(
-                    segment.readAll().stream()
-                            .map(entry -> new WALRecord(entry.getLogSequenceNumber(), entry.getData().toByteArray()))
-                            .toList()
-            );
-        });
+        try (WALCursor cursor = cursor(0)) {
+            cursor.forEachRemaining(allRecords::add);
+        }
 
         return allRecords;
     }
 
+    /**
+     * Opens a cursor over every committed record with an LSN of at least {@code fromLogSequenceNumber},
+     * reading archived segments first when archiving is enabled.
+     */
+    public WALCursor cursor(long fromLogSequenceNumber) {
+        return new WALCursor(leaseSegments(fromLogSequenceNumber), options.getArchiveDirectoryPath(), fromLogSequenceNumber,
+                getCommittedLogSequenceNumber(), CHECKSUM);
+    }
+
+    /**
+     * Lists the segments holding records from {@code fromLogSequenceNumber} on and leases the live
+     * ones, so retention defers removing them until the reader releases them.
+     */
+    WALSegmentLeases.Lease leaseSegments(long fromLogSequenceNumber) {
+        return segmentLeases.acquire(directoryPath, options.getArchiveDirectoryPath(), fromLogSequenceNumber);
+    }
+
+    /**
+     * Returns the newest committed record with this key, or null if there is none. Segments are
+     * searched newest first; sealed ones through their key index, so a segment whose Bloom filter
+     * rules the key out is not read at all. The active segment, archived segments and segments not
+     * indexed yet are scanned. For a record written as a stream, the first fragment is returned.
+     */
+    public WALRecord findLatest(byte[] key) {
+        long committed = getCommittedLogSequenceNumber();
+        long activeSegmentNumber = currentSegment.getSegmentNumber();
+        long stamp = tailLock.readLock();
+        try (WALSegmentLeases.Lease lease = leaseSegments(0)) {
+            Deque<WALSegmentSource> sources = lease.sources();
+            while (!sources.isEmpty()) {
+                WALEntry entry = findLatest(sources.pollLast(), key, committed, activeSegmentNumber);
+                if (entry != null) {
+                    return WALRecord.fromEntry(entry);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            tailLock.unlockRead(stamp);
+        }
+        return null;
+    }
+
+    private WALEntry findLatest(WALSegmentSource source, byte[] key, long committed, long activeSegmentNumber) throws IOException {
+        long segmentNumber = source.segmentNumber();
+        WALSegmentIndex index = source.livePath() != null && segmentNumber < activeSegmentNumber
+                ? segmentIndex(segmentNumber, segmentNumber < activeSegmentNumber - 1 || pendingSeal.isDone())
+                : null;
+
+        if (index != null) {
+            long offset = index.find(key);
+            if (offset < 0) {
+                return null;
+            }
+            try {
+                WALEntry entry = new WALSegmentReader(source.livePath().toString(), CHECKSUM).readEntryAt(offset);
+                if (!entry.getKey().equals(ByteString.copyFrom(key))) {
+                    logger.warn("Key index of WAL segment {} points at another record; dropping it", segmentNumber);
+                    deleteSegmentIndex(segmentNumber);
+                } else if (entry.getLogSequenceNumber() <= committed) {
+                    return entry;
+                }
+            } catch (FileNotFoundException e) {
+                segmentIndexes.remove(segmentNumber); // retired since it was listed; scan the archive copy
+            } catch (IOException e) {
+                logger.warn("Key index of WAL segment {} points at an unreadable frame; dropping it", segmentNumber, e);
+                deleteSegmentIndex(segmentNumber);
+            }
+        }
+
+        ByteBuffer segment;
+        try {
+            segment = WALMappedCursor.mapSegment(source.preferredPath());
+        } catch (NoSuchFileException e) {
+            Path archivePath = source.fallbackPath(options.getArchiveDirectoryPath());
+            if (archivePath == null) {
+                return null;
+            }
+            segment = WALMappedCursor.mapSegment(archivePath);
+        }
+
+        long offset = WALSegmentIndex.scan(segment, key, committed);
+        if (offset < 0) {
+            return null;
+        }
+        int start = (int) offset + WALFormat.SIZE_PREFIX_BYTES;
+        WALEntry entry = WALEntry.parseFrom(segment.duplicate().limit(start + segment.getInt((int) offset)).position(start));
+        CHECKSUM.verify(entry, WALFormat.detectVersion(segment));
+        return entry;
+    }
+
+    /**
+     * Key index of a sealed segment, loaded once and cached. A missing index, or one built from a
+     * different length of the segment, is (re)built on the spot when {@code sealed} says the segment
+     * can no longer change; null if there is none.
+     */
+    private WALSegmentIndex segmentIndex(long segmentNumber, boolean sealed) {
+        WALSegmentIndex index = segmentIndexes.get(segmentNumber);
+        if (index != null) {
+            return index;
+        }
+
+        Path segmentPath = Path.of(getSegmentFilePath(directoryPath, segmentNumber));
+        Path indexPath = Path.of(getSegmentIndexFilePath(directoryPath, segmentNumber));
+        try {
+            index = Files.exists(indexPath) ? openSegmentIndex(segmentPath, indexPath) : null;
+            if (index == null) {
+                if (!sealed) {
+                    return null;
+                }
+                WALSegmentIndex.build(segmentPath, indexPath);
+                index = WALSegmentIndex.open(indexPath);
+            }
+            segmentIndexes.put(segmentNumber, index);
+            if (!Files.exists(segmentPath)) {
+                segmentIndexes.remove(segmentNumber); // retired while it was being loaded
+                return null;
+            }
+            return index;
+        } catch (IOException e) {
+            logger.warn("Failed to load key index of WAL segment {}", segmentNumber, e);
+            return null;
+        }
+    }
+
+    /**
+     * Opens a stored key index, or deletes it and returns null when it does not describe the segment
+     * as it is now: an index task that raced a truncation or a compaction rewrite can leave one behind.
+     */
+    private static WALSegmentIndex openSegmentIndex(Path segmentPath, Path indexPath) throws IOException {
+        try {
+            WALSegmentIndex index = WALSegmentIndex.open(indexPath);
+            if (index.segmentSize() == Files.size(segmentPath)) {
+                return index;
+            }
+            logger.info("Discarding stale key index {}", indexPath);
+        } catch (NoSuchFileException e) {
+            throw e;
+        } catch (IOException e) {
+            logger.info("Discarding unreadable key index {}", indexPath, e);
+        }
+        Files.deleteIfExists(indexPath);
+        return null;
+    }
+
+    /**
+     * Writes the key index of a segment that has just been sealed. Lookups scan the segment until
+     * the index exists, so a failure here only costs speed.
+     */
+    private void indexSegment(long segmentNumber) {
+        Path segmentPath = Path.of(getSegmentFilePath(directoryPath, segmentNumber));
+        Path indexPath = Path.of(getSegmentIndexFilePath(directoryPath, segmentNumber));
+        try {
+            WALSegmentIndex.build(segmentPath, indexPath);
+            if (!Files.exists(segmentPath)) {
+                Files.deleteIfExists(indexPath); // retired while it was being indexed
+            }
+        } catch (NoSuchFileException e) {
+            // retired before it could be indexed
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to index WAL segment {}", segmentNumber, e);
+        }
+    }
+
+    /**
+     * Opens a cursor over the committed records with an LSN of at least {@code fromLogSequenceNumber},
+     * newest first. Only the frames actually read are decoded, so reading the tail of a long log
+     * costs the same as reading the tail of a short one.
+     */
+    public WALReverseCursor reverseCursor(long fromLogSequenceNumber) {
+        long stamp = tailLock.readLock();
+        return new WALReverseCursor(leaseSegments(fromLogSequenceNumber), options.getArchiveDirectoryPath(), fromLogSequenceNumber,
+                getCommittedLogSequenceNumber(), CHECKSUM, () -> tailLock.unlockRead(stamp));
+    }
+
+    /**
+     * Returns the newest {@code count} committed records, or fewer if the log is shorter, in LSN order.
+     */
+    public List<WALRecord> readLast(int count) {
+        List<WALRecord> records = new ArrayList<>(Math.min(count, 1024));
+        try (WALReverseCursor cursor = reverseCursor(0)) {
+            while (records.size() < count && cursor.hasNext()) {
+                records.add(cursor.next());
+            }
+        }
+        Collections.reverse(records);
+        return records;
+    }
+
+    /**
+     * Opens the payload of the committed record at {@code logSequenceNumber} as a stream. Records
+     * written in fragments are reassembled one fragment at a time and checked against their
+     * whole-record checksum before the end of the stream is reported.
+     *
+     * @throws IllegalArgumentException if no record starts at that LSN
+     */
+    public InputStream openRecordStream(long logSequenceNumber) {
+        return new WALRecordInputStream(cursor(logSequenceNumber), logSequenceNumber);
+    }
+
+    /**
+     * Opens a replay reader over every committed record with an LSN of at least
+     * {@code fromLogSequenceNumber}. Segments are read ahead in large chunks on a background
+     * thread, so prefer it over {@link #cursor(long)} for recovery-style full replays.
+     */
+    public WALReplayReader replay(long fromLogSequenceNumber) {
+        return replay(fromLogSequenceNumber, DEFAULT_REPLAY_BUFFER_COUNT, DEFAULT_REPLAY_BUFFER_SIZE);
+    }
+
+    /**
+     * Replay reader with {@code bufferCount} read-ahead buffers of {@code bufferSize} bytes each.
+     */
+    public WALReplayReader replay(long fromLogSequenceNumber, int bufferCount, int bufferSize) {
+        return new WALReplayReader(leaseSegments(fromLogSequenceNumber), options.getArchiveDirectoryPath(), fromLogSequenceNumber,
+                getCommittedLogSequenceNumber(), CHECKSUM, bufferCount, bufferSize);
+    }
+
+    /**
+     * Opens a zero-copy cursor that memory-maps segments and exposes payloads as read-only
+     * buffers. Prefer it over {@link #cursor(long)} for large scans that do not keep records.
+     */
+    public WALMappedCursor mappedCursor(long fromLogSequenceNumber) {
+        return mappedCursor(WALFilter.newBuilder()
+                .setFromLogSequenceNumber(fromLogSequenceNumber)
+                .build());
+    }
+
+    /**
+     * Zero-copy cursor over the committed records matching the filter. Predicates are checked
+     * against the entry header, so records that don't match are never checksummed or copied.
+     */
+    public WALMappedCursor mappedCursor(WALFilter filter) {
+        long stamp = tailLock.readLock();
+        WALFilter bounded = filter.boundedTo(getCommittedLogSequenceNumber());
+        return new WALMappedCursor(leaseSegments(bounded.getFromLogSequenceNumber()), options.getArchiveDirectoryPath(),
+                bounded, CHECKSUM, () -> tailLock.unlockRead(stamp));
+    }
+
+    /**
+     * Returns copies of the records matching the filter.
+     */
+    public List<WALRecord> scan(WALFilter filter) {
+        List<WALRecord> records = new ArrayList<>();
+
+        try (WALMappedCursor cursor = mappedCursor(filter)) {
+            while (cursor.advance()) {
+                records.add(cursor.toRecord());
+            }
+        }
+
+        return records;
+    }
+
+    public long getLastLogSequenceNumber() {
+        return lastLogSequenceNumber;
+    }
+
+    /**
+     * Number of times writes moved on to a new segment since this WAL was opened.
+     */
+    public long getRotationCount() {
+        return rotationCount;
+    }
+
+    /**
+     * Highest LSN such that it and every record before it have been flushed to the segment files.
+     * Published by the flusher; cursors read up to it so they never wait on writers.
+     */
+    public long getCommittedLogSequenceNumber() {
+        return committedLogSequenceNumber.get();
+    }
+
+    String getDirectoryPath() {
+        return directoryPath;
+    }
+
+    /**
+     * Flushes the active segment after any segment retired by rotation has been sealed, so
+     * everything written before the call is visible to readers of the segment files.
+     */
     public void flush() {
+        pendingSeal.join();
         currentSegment.flush();
     }
 
     public void commit() {
+        pendingSeal.join();
         currentSegment.commit();
     }
 
-    public void close() {
-        currentSegment.close();
+    /**
+     * Like {@link #commit()}, but instead of waiting for a segment retired by rotation to be
+     * sealed, the commit is chained on the seal and finished on {@code executor}. For sync threads
+     * shared by many logs.
+     */
+    CompletableFuture<Void> commitAsync(Executor executor) {
+        CompletableFuture<Void> seal = pendingSeal;
+        if (!seal.isDone()) {
+            return seal.thenComposeAsync(ignored -> commitAsync(executor), executor);
+        }
+        return currentSegment.commitAsync(executor);
+    }
+
+    /**
+     * Writes the buffered records of the active segment out without an fsync and without waiting
+     * for a segment being sealed, e.g. ahead of a batch of commits.
+     */
+    void writeOut() {
+        currentSegment.writeOut();
+    }
+
+    /**
+     * Limits which records compaction may drop older records of their key in favour of: only
+     * records up to this LSN, and never past the committed LSN. Set it to the commit index of a
+     * consensus log, so that truncating an uncommitted suffix never removes the only remaining
+     * record of a key. Defaults to no limit beyond the committed LSN.
+     */
+    public void setCompactionHorizon(long logSequenceNumber) {
+        this.compactionHorizon = logSequenceNumber;
     }
 
-    private long getLastLogSequenceNumber(WALSegment segment) {
+    private long effectiveCompactionHorizon() {
+        return Math.min(compactionHorizon, getCommittedLogSequenceNumber());
+    }
+
+    /**
+     * Keeps the records after this LSN in the live segments: retention neither deletes nor
+     * archives a segment holding any of them, however far over its limits the log is, and
+     * compaction does not expire tombstones among them. Set it to the LSN of a state machine's
+     * last snapshot, so that the records it replays on recovery are always there. The floor is
+     * stored in the log directory and holds from the moment the log is reopened; pass
+     * {@link Long#MAX_VALUE} to remove it. Defaults to no floor.
+     */
+    public synchronized void setRetentionFloor(long logSequenceNumber) {
         try {
-            WALEntry entry = segment.readLastEntry();
-            return entry != null ? entry.getLogSequenceNumber() : DEFAULT_LOG_SEQUENCE_NUMBER - 1;
+            if (logSequenceNumber == retentionFloor) {
+                return;
+            }
+            Path floorPath = Path.of(getRetentionFloorFilePath(directoryPath));
+            if (logSequenceNumber == Long.MAX_VALUE) {
+                Files.deleteIfExists(floorPath);
+            } else {
+                Path tempPath = floorPath.resolveSibling(floorPath.getFileName() + ".tmp");
+                Files.write(tempPath, ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN)
+                        .putLong(0, logSequenceNumber).array());
+                Files.move(tempPath, floorPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            this.retentionFloor = logSequenceNumber;
         } catch (IOException e) {
-            logger.warn("Error reading last entry from WAL segment: {}", e.getMessage(), e);
-            return DEFAULT_LOG_SEQUENCE_NUMBER - 1;
+            throw new RuntimeException("Failed to store the retention floor of " + directoryPath, e);
         }
     }
 
+    private long readRetentionFloor() {
+        try {
+            byte[] floor = Files.readAllBytes(Path.of(getRetentionFloorFilePath(directoryPath)));
+            return ByteBuffer.wrap(floor).order(ByteOrder.LITTLE_ENDIAN).getLong();
+        } catch (NoSuchFileException e) {
+            return Long.MAX_VALUE;
+        } catch (IOException | RuntimeException e) {
+            throw new RuntimeException("Failed to read the retention floor of " + directoryPath, e);
+        }
+    }
+
+    /**
+     * Number of the oldest segment that holds a record after the retention floor, or
+     * {@link Long#MAX_VALUE} without a floor.
+     */
+    private long firstSegmentAfterRetentionFloor() {
+        long floor = retentionFloor;
+        if (floor == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        List<Long> segmentNumbers = getAllSegmentNumbers(directoryPath);
+        segmentNumbers.sort(Long::compareTo);
+        try {
+            for (int i = segmentNumbers.size() - 1; i >= 0; i--) {
+                WALEntry first = new WALSegmentReader(getSegmentFilePath(directoryPath, segmentNumbers.get(i)), CHECKSUM)
+                        .readFirstEntry();
+                if (first != null && first.getLogSequenceNumber() <= floor + 1) {
+                    return segmentNumbers.get(i);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to find the segments after the retention floor in " + directoryPath, e);
+        }
+        return Long.MIN_VALUE; // the floor is older than every live segment
+    }
+
+    /**
+     * Runs a compaction pass now instead of waiting for the background check, and returns the
+     * number of segments it rewrote or deleted. Only sealed segments are compacted.
+     *
+     * @throws IllegalStateException if compaction is not enabled in the options
+     */
+    public int compact() {
+        if (compactor == null) {
+            throw new IllegalStateException("Compaction is not enabled for WAL " + directoryPath);
+        }
+        try {
+            return compactor.compact();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Discards every record after {@code logSequenceNumber}, e.g. an uncommitted suffix after a
+     * consensus leader change, and makes the cut durable before returning. The next write gets
+     * {@code logSequenceNumber + 1}.
+     * <p>
+     * The segment holding that LSN is found by a binary search over segment first LSNs and cut in
+     * place with one truncate; later segments are deleted. Within the active segment the cut point
+     * comes from an in-memory LSN-to-offset table; in an older segment it is found by walking back
+     * from the end, reading only the frames being dropped.
+     * <p>
+     * Truncation waits for open mapped and reverse cursors to be closed, since they may be reading
+     * the bytes being cut; cursors opened afterwards, and streaming readers, only see the kept records.
+     *
+     * @throws IllegalArgumentException if records up to that LSN have already been retired or archived
+     * @throws IllegalStateException    if open cursors are not closed within 30 seconds
+     */
+    public void truncateAfter(long logSequenceNumber) {
+        if (logSequenceNumber >= lastLogSequenceNumber) {
+            return;
+        }
+
+        // Wait for the cursors before taking the writer lock, so appends carry on in the meantime.
+        long stamp;
+        try {
+            stamp = tailLock.tryWriteLock(TRUNCATE_READER_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        if (stamp == 0) {
+            throw new IllegalStateException("Timed out waiting for open WAL cursors to close before truncating");
+        }
+        try {
+            lock.lock();
+            try {
+                if (logSequenceNumber >= lastLogSequenceNumber) {
+                    return; // cut by another truncation while this one waited
+                }
+                pendingSeal.join();
+                currentSegment.flush();
+                truncate(logSequenceNumber);
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            tailLock.unlockWrite(stamp);
+        }
+    }
+
+    private void truncate(long logSequenceNumber) throws IOException {
+        truncationCount++;
+        long activeSegmentNumber = currentSegment.getSegmentNumber();
+        List<Long> segmentNumbers = getAllSegmentNumbers(directoryPath);
+        segmentNumbers.removeIf(segmentNumber -> segmentNumber > activeSegmentNumber); // the pre-opened spare
+        segmentNumbers.sort(Long::compareTo);
+
+        long segmentNumber = findSegmentHolding(segmentNumbers, logSequenceNumber);
+        String segmentPath = getSegmentFilePath(directoryPath, segmentNumber);
+
+        if (segmentNumber == activeSegmentNumber) {
+            long hint = currentSegment.findOffsetHint(logSequenceNumber);
+            long offset = new WALSegmentReader(segmentPath, CHECKSUM).findCutOffset(logSequenceNumber, hint);
+            currentSegment.truncate(offset, logSequenceNumber);
+        } else {
+            currentSegment.close();
+            try {
+                nextSegment.join().close();
+            } catch (CompletionException e) {
+                logger.warn("Failed to pre-open WAL segment", e);
+            }
+
+            // Newest first, so a crash part way leaves a log that is still a prefix of the old one.
+            deleteSegment(activeSegmentNumber + 1);
+            for (int i = segmentNumbers.size() - 1; segmentNumbers.get(i) > segmentNumber; i--) {
+                deleteSegment(segmentNumbers.get(i));
+            }
+            syncDirectory();
+
+            long offset = new WALSegmentReader(segmentPath, CHECKSUM).findCutOffset(logSequenceNumber, -1);
+            try (FileChannel channel = FileChannel.open(Path.of(segmentPath), StandardOpenOption.WRITE)) {
+                channel.truncate(offset);
+                channel.force(true);
+            }
+            deleteSegmentIndex(segmentNumber); // points past the cut
+
+            currentSegment = openSegmentBySegmentNumber(segmentNumber);
+            preopenNextSegment(segmentNumber + 1);
+        }
+
+        lastLogSequenceNumber = logSequenceNumber;
+        committedLogSequenceNumber.set(logSequenceNumber);
+        logger.info("Truncated WAL {} after LSN {}", directoryPath, logSequenceNumber);
+    }
+
+    /**
+     * Binary search for the last segment whose first LSN is at most {@code logSequenceNumber}; one
+     * first-frame read per probe. Empty segments, which can only be at the end, sort last.
+     */
+    private long findSegmentHolding(List<Long> segmentNumbers, long logSequenceNumber) throws IOException {
+        int low = 0;
+        int high = segmentNumbers.size() - 1;
+        int found = -1;
+        long oldestFirstLogSequenceNumber = Long.MAX_VALUE;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            WALEntry first = new WALSegmentReader(getSegmentFilePath(directoryPath, segmentNumbers.get(middle)), CHECKSUM)
+                    .readFirstEntry();
+            if (middle == 0 && first != null) {
+                oldestFirstLogSequenceNumber = first.getLogSequenceNumber();
+            }
+            if (first != null && first.getLogSequenceNumber() <= logSequenceNumber) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        if (found >= 0) {
+            return segmentNumbers.get(found);
+        }
+        if (logSequenceNumber == oldestFirstLogSequenceNumber - 1) {
+            return segmentNumbers.get(0); // everything still live goes
+        }
+        throw new IllegalArgumentException("Cannot truncate after LSN " + logSequenceNumber
+                + ": the records up to it are no longer in the live segments");
+    }
+
+    private void deleteSegment(long segmentNumber) throws IOException {
+        Files.deleteIfExists(Path.of(getSegmentFilePath(directoryPath, segmentNumber)));
+        deleteSegmentIndex(segmentNumber);
+    }
+
+    private void deleteSegmentIndex(long segmentNumber) throws IOException {
+        segmentIndexes.remove(segmentNumber);
+        Files.deleteIfExists(Path.of(getSegmentIndexFilePath(directoryPath, segmentNumber)));
+    }
+
+    /**
+     * Makes file deletions durable. Not every platform can open a directory for this; there the
+     * deletions are left to the file system.
+     */
+    private void syncDirectory() {
+        try (FileChannel directory = FileChannel.open(Path.of(directoryPath), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            logger.debug("Could not fsync WAL directory {}", directoryPath, e);
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            pendingSeal.join();
+            currentSegment.close();
+            try {
+                nextSegment.join().close();
+            } catch (CompletionException e) {
+                logger.warn("Failed to pre-open WAL segment", e);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (ownsExecutors) {
+            shutdown(rotationExecutor);
+            shutdown(flushScheduler);
+        }
+        retention.close();
+        if (compactor != null) {
+            compactor.close();
+        }
+        if (archiver != null) {
+            archiver.close();
+        }
+    }
+
+    /**
+     * The newest segment that holds more than a header. Trailing segments that don't, such as the
+     * spare pre-opened before a restart, are deleted so that the records before them stay in the
+     * active segment.
+     */
+    private long findActiveSegmentNumber() {
+        List<Long> segmentNumbers = getAllSegmentNumbers(directoryPath);
+        if (segmentNumbers.isEmpty()) {
+            return DEFAULT_SEGMENT_NUMBER;
+        }
+        segmentNumbers.sort(Comparator.reverseOrder());
+
+        for (int i = 0; i < segmentNumbers.size() - 1; i++) {
+            Path path = Path.of(getSegmentFilePath(directoryPath, segmentNumbers.get(i)));
+            try {
+                if (Files.size(path) > WALFormat.HEADER_SIZE
+                        || new WALSegmentReader(path.toString(), CHECKSUM).readFirstEntry() != null) {
+                    return segmentNumbers.get(i);
+                }
+                Files.delete(path);
+                logger.info("Deleted empty trailing WAL segment file: {}", path);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to inspect WAL segment " + path, e);
+            }
+        }
+        return segmentNumbers.get(segmentNumbers.size() - 1);
+    }
+
+    /**
+     * The newest segment can be empty (e.g. the spare pre-opened before a restart), so walk back
+     * to the first segment that holds a record, falling back to the archive.
+     */
+    private long findLastLogSequenceNumber() {
+        List<Long> segmentNumbers = getAllSegmentNumbers(directoryPath);
+        segmentNumbers.sort(Comparator.reverseOrder());
+
+        for (long segmentNumber : segmentNumbers) {
+            WALSegmentReader reader = new WALSegmentReader(getSegmentFilePath(directoryPath, segmentNumber), CHECKSUM);
+            try {
+                WALEntry entry = reader.readLastEntry();
+                if (entry != null) {
+                    return entry.getLogSequenceNumber();
+                }
+            } catch (IOException e) {
+                logger.warn("Error reading last entry from WAL segment: {}", e.getMessage(), e);
+                return DEFAULT_LOG_SEQUENCE_NUMBER - 1;
+            }
+        }
+
+        if (options.hasArchiveDirectoryPath()) {
+            return getAllArchivedSegments(options.getArchiveDirectoryPath()).stream()
+                    .mapToLong(WALUtils.ArchivedSegment::lastLogSequenceNumber)
+                    .max()
+                    .orElse(DEFAULT_LOG_SEQUENCE_NUMBER - 1);
+        }
+        return DEFAULT_LOG_SEQUENCE_NUMBER - 1;
+    }
+
+    /**
+     * Segments below this number are sealed and no longer change. The active segment is read
+     * before the pending seal, which rotation replaces first, so a concurrent rotation can only
+     * make the answer too low.
+     */
+    private long firstUnsealedSegmentNumber() {
+        long activeSegmentNumber = currentSegment.getSegmentNumber();
+        return pendingSeal.isDone() ? activeSegmentNumber : activeSegmentNumber - 1;
+    }
+
     private void rotateLogIfNeeded(WALEntry entry) {
-        if (currentSegment.size() + entry.toByteArray().length >= maxSegmentSize) {
+        if (currentSegment.size() + entry.getSerializedSize() >= maxSegmentSize) {
             rotateLog();
         }
     }
 
+    /**
+     * Switches to the pre-opened next segment without waiting on any I/O. The old segment is
+     * flushed, fsynced and closed on the rotation thread; the new segment holds back its own
+     * fsyncs until that has happened, which keeps durability acknowledgements in LSN order.
+     */
     private void rotateLog() {
-        currentSegment.close();
+        WALSegment previous = currentSegment;
+        WALSegment next = takeNextSegment(previous.getSegmentNumber() + 1);
 
-        long nextSegmentNumber = currentSegment.getSegmentNumber() + 1;
-        long oldestSegmentNumber = findOldestSegmentNumber(directoryPath, DEFAULT_SEGMENT_NUMBER);
+        CompletableFuture<Void> sealed = CompletableFuture.runAsync(previous::close, rotationExecutor);
+        sealed.thenRunAsync(() -> indexSegment(previous.getSegmentNumber()), rotationExecutor);
+        if (compactor != null) {
+            sealed.thenRun(compactor::trigger);
+        }
+        next.setPredecessorSealed(sealed);
+        pendingSeal = sealed;
+        currentSegment = next;
+        rotationCount++;
 
-        if ((nextSegmentNumber - oldestSegmentNumber) >= maxSegments) {
-            removeSegmentFileBySegmentNumber(oldestSegmentNumber);
+        preopenNextSegment(next.getSegmentNumber() + 1);
+    }
+
+    private WALSegment takeNextSegment(long segmentNumber) {
+        try {
+            WALSegment segment = nextSegment.join();
+            if (segment.getSegmentNumber() == segmentNumber) {
+                return segment;
+            }
+            segment.close();
+        } catch (CompletionException e) {
+            logger.warn("Failed to pre-open WAL segment {}, opening it inline", segmentNumber, e);
         }
+        return openSegmentBySegmentNumber(segmentNumber);
+    }
 
-        currentSegment = openSegmentBySegmentNumber(directoryPath, nextSegmentNumber, immediateFsync);
+    private void preopenNextSegment(long segmentNumber) {
+        nextSegment = CompletableFuture.supplyAsync(() -> openSegmentBySegmentNumber(segmentNumber), rotationExecutor);
+        // The spare segment is a new file, so let retention re-check the segment count once it exists.
+        nextSegment.whenComplete((segment, error) -> retention.trigger());
     }
 
-    private void removeSegmentFileBySegmentNumber(long segmentNumber) {
-        Path filePath = Path.of(getSegmentFilePath(directoryPath, segmentNumber));
+    private static void shutdown(ExecutorService executor) {
+        executor.shutdown();
         try {
-            Files.deleteIfExists(filePath);
-            logger.info("Deleted WAL segment file: {}", filePath);
-        } catch (IOException e) {
-            logger.warn("Failed to delete WAL segment file: {}", filePath, e);
+            if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
+
+    private static ThreadFactory daemonThreadFactory(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
 }
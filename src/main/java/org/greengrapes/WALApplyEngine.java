@@ -0,0 +1,304 @@
+package org.greengrapes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Applies replayed records on several threads. Records are partitioned by a key function into one
+ * bounded queue per worker, so records with the same key are applied in LSN order by the same
+ * thread while records with different keys are applied in parallel. The fragments of a streamed
+ * record follow its first fragment, whose key they do not repeat, to the same partition.
+ * <p>
+ * Barrier records (checkpoints by default) wait until every partition has applied all records
+ * before them, are then applied on the calling thread, and only then are later records handed out.
+ * The caller decodes and dispatches; pair it with {@link WAL#replay(long)} so reading, decoding and
+ * applying all overlap.
+ * <p>
+ * The applier is called concurrently for records of different partitions and must be thread-safe
+ * across keys. An engine can be reused for further runs, one at a time.
+ */
+public class WALApplyEngine {
+    private static final Logger logger = LoggerFactory.getLogger(WALApplyEngine.class);
+    private static final int BATCH_SIZE = 64; // records handed to a worker per queue operation
+    private static final Batch END = new Batch(List.of(), null);
+
+    private final int partitions;
+    private final int queueCapacity;
+    private final Function<WALRecord, byte[]> partitionKey;
+    private final Predicate<WALRecord> barrier;
+    private final Consumer<WALRecord> applier;
+
+    private WALApplyEngine(Builder builder) {
+        this.partitions = builder.partitions;
+        this.queueCapacity = builder.queueCapacity;
+        this.partitionKey = builder.partitionKey;
+        this.barrier = builder.barrier;
+        this.applier = builder.applier;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Applies every remaining record of the iterator and returns once all of them have been
+     * applied. If the applier throws, dispatching stops, the workers are shut down and the first
+     * failure is rethrown; records of other partitions may have been applied past the failed one.
+     */
+    public ApplyStats apply(Iterator<WALRecord> records) {
+        int batchSize = Math.min(BATCH_SIZE, queueCapacity);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Worker[] workers = new Worker[partitions];
+        for (int i = 0; i < partitions; i++) {
+            workers[i] = new Worker(i, Math.max(1, queueCapacity / batchSize), failure);
+        }
+        List<List<WALRecord>> pending = new ArrayList<>(partitions); // records not yet handed to each worker
+        for (int i = 0; i < partitions; i++) {
+            pending.add(new ArrayList<>(batchSize));
+        }
+        Map<Long, Integer> chainPartitions = new HashMap<>(); // by first-fragment LSN, for chains still open
+
+        long start = System.nanoTime();
+        long dispatched = 0;
+        long barriers = 0;
+        boolean completed = false;
+        try {
+            while (failure.get() == null && records.hasNext()) {
+                WALRecord record = records.next();
+                if (barrier.test(record)) {
+                    CountDownLatch drained = new CountDownLatch(partitions);
+                    for (int i = 0; i < partitions; i++) {
+                        workers[i].queue.put(new Batch(pending.set(i, new ArrayList<>(batchSize)), drained));
+                    }
+                    drained.await();
+                    if (failure.get() == null) {
+                        applyBarrier(record, failure);
+                        barriers++;
+                    }
+                    continue;
+                }
+
+                int partition = partitionOf(record, chainPartitions);
+                List<WALRecord> batch = pending.get(partition);
+                batch.add(record);
+                dispatched++;
+                if (batch.size() == batchSize) {
+                    workers[partition].queue.put(new Batch(batch, null));
+                    pending.set(partition, new ArrayList<>(batchSize));
+                }
+            }
+
+            for (int i = 0; i < partitions; i++) {
+                if (!pending.get(i).isEmpty()) {
+                    workers[i].queue.put(new Batch(pending.get(i), null));
+                }
+                workers[i].queue.put(END);
+            }
+            for (Worker worker : workers) {
+                worker.thread.join();
+            }
+            completed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while applying WAL records", e);
+        } finally {
+            if (!completed) {
+                for (Worker worker : workers) {
+                    worker.thread.interrupt();
+                }
+            }
+        }
+
+        Throwable cause = failure.get();
+        if (cause instanceof RuntimeException runtimeException) {
+            throw runtimeException;
+        }
+        if (cause instanceof Error error) {
+            throw error;
+        }
+
+        long[] partitionRecords = new long[partitions];
+        for (int i = 0; i < partitions; i++) {
+            partitionRecords[i] = workers[i].applied;
+        }
+        ApplyStats stats = new ApplyStats(dispatched + barriers, barriers, System.nanoTime() - start, partitionRecords);
+        logger.info("Applied {} WAL records ({} barriers) on {} partitions in {} ms, {} records/s",
+                stats.records(), barriers, partitions, stats.elapsedNanos() / 1_000_000, (long) stats.recordsPerSecond());
+        return stats;
+    }
+
+    private void applyBarrier(WALRecord record, AtomicReference<Throwable> failure) {
+        try {
+            applier.accept(record);
+        } catch (RuntimeException | Error e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    /**
+     * Partition of a record. A middle or last fragment goes where its first fragment went; one whose
+     * first fragment came before the start of the run is placed by the chain's first LSN instead.
+     */
+    private int partitionOf(WALRecord record, Map<Long, Integer> chainPartitions) {
+        return switch (record.getFragment()) {
+            case NONE -> partitionOf(partitionKey.apply(record));
+            case FIRST -> {
+                int partition = partitionOf(partitionKey.apply(record));
+                chainPartitions.put(record.getLogSequenceNumber(), partition);
+                yield partition;
+            }
+            case MIDDLE -> {
+                Integer partition = chainPartitions.get(record.getFragmentOf());
+                yield partition != null ? partition : Math.floorMod(Long.hashCode(record.getFragmentOf()), partitions);
+            }
+            case LAST -> {
+                Integer partition = chainPartitions.remove(record.getFragmentOf());
+                yield partition != null ? partition : Math.floorMod(Long.hashCode(record.getFragmentOf()), partitions);
+            }
+        };
+    }
+
+    private int partitionOf(byte[] key) {
+        int hash = Arrays.hashCode(key);
+        return Math.floorMod(hash ^ (hash >>> 16), partitions);
+    }
+
+    /**
+     * Outcome of one {@link #apply} run.
+     *
+     * @param records          records applied, barriers included
+     * @param barriers         barrier records applied on the calling thread
+     * @param elapsedNanos     wall-clock time of the run, including reading the iterator
+     * @param partitionRecords records applied by each worker, to spot skewed keys
+     */
+    public record ApplyStats(long records, long barriers, long elapsedNanos, long[] partitionRecords) {
+        public double recordsPerSecond() {
+            return elapsedNanos == 0 ? 0 : records * 1e9 / elapsedNanos;
+        }
+    }
+
+    /**
+     * Records for one worker. {@code drained}, when set, is counted down once they are applied.
+     */
+    private record Batch(List<WALRecord> records, CountDownLatch drained) {
+    }
+
+    private class Worker {
+        private final BlockingQueue<Batch> queue;
+        private final AtomicReference<Throwable> failure;
+        private final Thread thread;
+        private long applied; // read by the dispatcher after join()
+
+        Worker(int partition, int queueBatches, AtomicReference<Throwable> failure) {
+            this.queue = new ArrayBlockingQueue<>(queueBatches);
+            this.failure = failure;
+            this.thread = new Thread(this::run, "wal-apply-" + partition);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        private void run() {
+            try {
+                Batch batch;
+                while ((batch = queue.take()) != END) {
+                    // After a failure anywhere, keep draining so the dispatcher never blocks on a full queue.
+                    if (failure.get() == null) {
+                        applyAll(batch.records());
+                    }
+                    if (batch.drained() != null) {
+                        batch.drained().countDown();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // apply() gave up
+            }
+        }
+
+        private void applyAll(List<WALRecord> records) {
+            for (WALRecord record : records) {
+                try {
+                    applier.accept(record);
+                } catch (RuntimeException | Error e) {
+                    failure.compareAndSet(null, e);
+                    return;
+                }
+                applied++;
+            }
+        }
+    }
+
+    public static class Builder {
+        private int partitions = Runtime.getRuntime().availableProcessors();
+        private int queueCapacity = 4096;
+        private Function<WALRecord, byte[]> partitionKey = WALRecord::getKey;
+        private Predicate<WALRecord> barrier = WALRecord::isCheckpoint;
+        private Consumer<WALRecord> applier;
+
+        private Builder() {
+        }
+
+        /**
+         * Number of worker threads; defaults to the number of available processors.
+         */
+        public Builder setPartitions(int partitions) {
+            this.partitions = partitions;
+            return this;
+        }
+
+        /**
+         * Records that may wait in each worker's queue before the caller blocks.
+         */
+        public Builder setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * Key whose records must be applied in order; defaults to the record key. Records with
+         * equal keys, including all records without a key, go to the same partition. Only the first
+         * fragment of a streamed record is passed to it; the other fragments follow that one.
+         */
+        public Builder setPartitionKey(Function<WALRecord, byte[]> partitionKey) {
+            this.partitionKey = partitionKey;
+            return this;
+        }
+
+        /**
+         * Records that must be applied after everything before them and before everything after
+         * them; defaults to checkpoints.
+         */
+        public Builder setBarrier(Predicate<WALRecord> barrier) {
+            this.barrier = barrier;
+            return this;
+        }
+
+        public Builder setApplier(Consumer<WALRecord> applier) {
+            this.applier = applier;
+            return this;
+        }
+
+        public WALApplyEngine build() {
+            if (applier == null || partitionKey == null || barrier == null) {
+                throw new IllegalArgumentException("Applier, partition key and barrier predicate are required");
+            }
+            if (partitions < 1 || queueCapacity < 1) {
+                throw new IllegalArgumentException("Partitions and queue capacity must be positive");
+            }
+            return new WALApplyEngine(this);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.greengrapes;
+
+import org.greengrapes.proto.WALEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPOutputStream;
+
+import static org.greengrapes.WALUtils.getArchiveFilePath;
+import static org.greengrapes.WALUtils.getSegmentFilePath;
+import static org.greengrapes.WALUtils.getSegmentIndexFilePath;
+
+/**
+ * Compresses retired segments into the archive directory on a background thread, so rotation
+ * never waits for compression. The live segment file is removed only after its archive copy
+ * has been fsynced and atomically renamed into place, and {@code segmentRemoved} is told once it is
+ * gone so cached state about the segment can be dropped.
+ */
+class WALArchiver {
+    private static final Logger logger = LoggerFactory.getLogger(WALArchiver.class);
+
+    private final String directoryPath;
+    private final String archiveDirectoryPath;
+    private final Checksum checksum;
+    private final LongConsumer segmentRemoved;
+    private final Set<Long> pendingSegmentNumbers = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "wal-archiver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    WALArchiver(String directoryPath, String archiveDirectoryPath, Checksum checksum, LongConsumer segmentRemoved) {
+        this.directoryPath = directoryPath;
+        this.archiveDirectoryPath = archiveDirectoryPath;
+        this.checksum = checksum;
+        this.segmentRemoved = segmentRemoved;
+
+        try {
+            Files.createDirectories(Path.of(archiveDirectoryPath));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create WAL archive directory " + archiveDirectoryPath, e);
+        }
+    }
+
+    /**
+     * Queues a sealed segment for archiving. Segments that are already queued are ignored.
+     */
+    void archive(long segmentNumber) {
+        if (!pendingSegmentNumbers.add(segmentNumber)) {
+            return;
+        }
+
+        executor.execute(() -> {
+            try {
+                archiveNow(segmentNumber);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Failed to archive WAL segment {}", segmentNumber, e);
+            } finally {
+                pendingSegmentNumbers.remove(segmentNumber);
+            }
+        });
+    }
+
+    boolean isPending(long segmentNumber) {
+        return pendingSegmentNumbers.contains(segmentNumber);
+    }
+
+    /**
+     * Finishes queued archiving work and stops the background thread.
+     */
+    void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.warn("Timed out waiting for WAL archiving to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void archiveNow(long segmentNumber) throws IOException {
+        Path segmentPath = Path.of(getSegmentFilePath(directoryPath, segmentNumber));
+        if (!Files.exists(segmentPath)) {
+            return;
+        }
+
+        WALSegmentReader reader = new WALSegmentReader(segmentPath.toString(), checksum);
+        WALEntry first = reader.readFirstEntry();
+        WALEntry last = reader.readLastEntry();
+
+        if (first != null && last != null) {
+            Path archivePath = Path.of(getArchiveFilePath(archiveDirectoryPath, segmentNumber,
+                    first.getLogSequenceNumber(), last.getLogSequenceNumber()));
+            Path tempPath = archivePath.resolveSibling(archivePath.getFileName() + ".tmp");
+
+            try (FileOutputStream file = new FileOutputStream(tempPath.toFile());
+                 GZIPOutputStream gzip = new GZIPOutputStream(file, 64 * 1024)) {
+                Files.copy(segmentPath, gzip);
+                gzip.finish();
+                file.getChannel().force(true);
+            }
+
+            Files.move(tempPath, archivePath, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Archived WAL segment {} to {}", segmentNumber, archivePath);
+        }
+
+        Files.deleteIfExists(segmentPath);
+        Files.deleteIfExists(Path.of(getSegmentIndexFilePath(directoryPath, segmentNumber)));
+        segmentRemoved.accept(segmentNumber);
+    }
+}
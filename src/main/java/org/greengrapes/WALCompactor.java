@@ -0,0 +1,664 @@
+package org.greengrapes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+import java.util.stream.IntStream;
+
+import static org.greengrapes.WALUtils.getAllSegmentNumbers;
+import static org.greengrapes.WALUtils.getCompactionTempFilePath;
+import static org.greengrapes.WALUtils.getSegmentFilePath;
+import static org.greengrapes.WALUtils.getSegmentIndexFilePath;
+
+/**
+ * Key-based compaction of sealed segments, run on its own background schedule. A pass finds the
+ * newest record of every key across the sealed live segments and rewrites the segments without
+ * the older records of those keys. Kept frames are copied byte for byte, so LSNs, checksums and
+ * the segment format are unchanged and readers just see gaps in the LSN sequence. A segment left
+ * without frames is retired through the segment leases, like retention does, and deleted once no
+ * reader is still on it. Nothing is rewritten until at least the configured fraction of the
+ * sealed frame bytes is obsolete.
+ * <p>
+ * Only records up to the compaction horizon supersede older ones: records after it may still be
+ * truncated away, and the older records they replace must survive that. The background task
+ * judges whether a pass is due from per-segment dirty stats, which it keeps up to date by reading
+ * each segment once, after it is sealed and the horizon has passed its last record; only a pass
+ * that rewrites segments makes it read them again.
+ * <p>
+ * Records without a key, checkpoints included, are always kept. A record written as a stream
+ * counts under the key of its first fragment once its last fragment is sealed, and its fragments
+ * are kept or dropped together. A tombstone that is the newest record of its key is kept until its
+ * segment is older than the tombstone retention and the retention floor has passed it. The newest
+ * record of the pass is never dropped, so the LSN sequence carries on after a restart.
+ * <p>
+ * Segments are read under a read stamp on the WAL's tail lock, and a rewritten copy is renamed
+ * over the original under the write stamp, so {@link WAL#truncateAfter} never cuts a file being
+ * read and key lookups never pair a stale index with a rewritten segment. A pass that overlaps a
+ * truncation is abandoned, since the newer records it relied on may be gone.
+ */
+final class WALCompactor {
+    private static final Logger logger = LoggerFactory.getLogger(WALCompactor.class);
+    private static final long SWAP_TIMEOUT_MILLIS = 1000;
+
+    private final String directoryPath;
+    private final int tombstoneType;
+    private final Duration tombstoneRetention;
+    private final double minDirtyRatio;
+    private final WALArchiver archiver;
+    private final StampedLock tailLock;
+    private final WALSegmentLeases leases;
+    private final LongSupplier firstUnsealedSegmentNumber;
+    private final LongSupplier truncationCount;
+    private final LongSupplier compactionHorizon;
+    private final LongSupplier retentionFloor;
+    private final LongConsumer segmentRewritten;
+    private final DirtyStats dirtyStats = new DirtyStats(); // guarded by this
+    private final AtomicBoolean runQueued = new AtomicBoolean();
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private final ScheduledFuture<?> periodicTask;
+    private volatile boolean closed;
+
+    /**
+     * @param firstUnsealedSegmentNumber segments from this number on may still change
+     * @param truncationCount            bumped by every truncation of the log
+     * @param compactionHorizon          LSN up to which records may supersede older ones
+     * @param retentionFloor             LSN after which tombstones never expire
+     * @param segmentRewritten           called under a stamp on the tail lock after a segment was replaced or deleted
+     */
+    WALCompactor(String directoryPath, WALOptions options, WALArchiver archiver, StampedLock tailLock, WALSegmentLeases leases,
+                 LongSupplier firstUnsealedSegmentNumber, LongSupplier truncationCount, LongSupplier compactionHorizon,
+                 LongSupplier retentionFloor, LongConsumer segmentRewritten) {
+        this(directoryPath, options, archiver, tailLock, leases, firstUnsealedSegmentNumber, truncationCount, compactionHorizon,
+                retentionFloor, segmentRewritten, Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "wal-compaction");
+                    thread.setDaemon(true);
+                    return thread;
+                }), true);
+    }
+
+    /**
+     * Runs compaction on a scheduler shared with other logs. The scheduler is not shut down on close.
+     */
+    WALCompactor(String directoryPath, WALOptions options, WALArchiver archiver, StampedLock tailLock, WALSegmentLeases leases,
+                 LongSupplier firstUnsealedSegmentNumber, LongSupplier truncationCount, LongSupplier compactionHorizon,
+                 LongSupplier retentionFloor, LongConsumer segmentRewritten, ScheduledExecutorService scheduler) {
+        this(directoryPath, options, archiver, tailLock, leases, firstUnsealedSegmentNumber, truncationCount, compactionHorizon,
+                retentionFloor, segmentRewritten, scheduler, false);
+    }
+
+    private WALCompactor(String directoryPath, WALOptions options, WALArchiver archiver, StampedLock tailLock,
+                         WALSegmentLeases leases, LongSupplier firstUnsealedSegmentNumber, LongSupplier truncationCount,
+                         LongSupplier compactionHorizon, LongSupplier retentionFloor, LongConsumer segmentRewritten,
+                         ScheduledExecutorService scheduler, boolean ownsScheduler) {
+        this.directoryPath = directoryPath;
+        this.tombstoneType = options.getCompactionTombstoneType();
+        this.tombstoneRetention = options.getCompactionTombstoneRetention();
+        this.minDirtyRatio = options.getCompactionMinDirtyRatio();
+        this.archiver = archiver;
+        this.tailLock = tailLock;
+        this.leases = leases;
+        this.firstUnsealedSegmentNumber = firstUnsealedSegmentNumber;
+        this.truncationCount = truncationCount;
+        this.compactionHorizon = compactionHorizon;
+        this.retentionFloor = retentionFloor;
+        this.segmentRewritten = segmentRewritten;
+
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+
+        long interval = options.getCompactionCheckInterval().toMillis();
+        this.periodicTask = scheduler.scheduleWithFixedDelay(this::runSafely, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Asks for a dirtiness check, and a pass if one is due, without waiting for it. Requests that
+     * arrive while a check is already queued are folded into it.
+     */
+    void trigger() {
+        if (runQueued.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(() -> {
+                    runQueued.set(false);
+                    runSafely();
+                });
+            } catch (RuntimeException e) {
+                runQueued.set(false); // scheduler already shut down
+            }
+        }
+    }
+
+    void close() {
+        closed = true;
+        periodicTask.cancel(false);
+        if (!ownsScheduler) {
+            return;
+        }
+
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(1, TimeUnit.MINUTES)) {
+                scheduler.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Brings the dirty stats up to date, reading only the segments that have not been summarized
+     * yet, and runs a pass if they show enough obsolete bytes. Returns the number of segments
+     * rewritten or deleted.
+     */
+    synchronized int compactIfDirty() throws IOException {
+        long generation = truncationCount.getAsLong();
+        if (!dirtyStats.update(sealedSegmentNumbers(), generation, compactionHorizon.getAsLong()) || !dirtyStats.isDue()) {
+            return 0;
+        }
+
+        int changed = compact();
+        if (changed == 0) {
+            dirtyStats.passDone(); // wait for more settled segments before trying again
+        }
+        return changed;
+    }
+
+    /**
+     * Runs one compaction pass on the calling thread and returns the number of segments rewritten
+     * or deleted.
+     */
+    synchronized int compact() throws IOException {
+        long generation = truncationCount.getAsLong();
+        List<Long> segmentNumbers = sealedSegmentNumbers();
+
+        Pass pass = new Pass(compactionHorizon.getAsLong(), retentionFloor.getAsLong());
+        for (long segmentNumber : segmentNumbers) {
+            if (!readSegment(segmentNumber, generation, pass::collectNewest)) {
+                return 0;
+            }
+        }
+
+        List<SegmentPlan> plans = new ArrayList<>();
+        long frameBytes = 0;
+        long obsoleteBytes = 0;
+        for (long segmentNumber : segmentNumbers) {
+            Path path = Path.of(getSegmentFilePath(directoryPath, segmentNumber));
+            boolean tombstonesExpired = tombstoneType != 0 && Files.getLastModifiedTime(path).toMillis()
+                    < System.currentTimeMillis() - tombstoneRetention.toMillis();
+            SegmentPlan plan = new SegmentPlan(segmentNumber, path);
+            if (!readSegment(segmentNumber, generation, segment -> pass.plan(segment, plan, tombstonesExpired))) {
+                return 0;
+            }
+            plans.add(plan);
+            frameBytes += plan.frameBytes;
+            obsoleteBytes += plan.frameBytes - plan.keptBytes;
+        }
+        if (obsoleteBytes == 0 || obsoleteBytes < minDirtyRatio * frameBytes) {
+            return 0;
+        }
+
+        int changed = 0;
+        for (SegmentPlan plan : plans) {
+            if (plan.keptBytes == plan.frameBytes) {
+                continue;
+            }
+            if (!rewrite(plan, generation)) {
+                logger.info("Abandoned compaction of WAL {} at segment {}", directoryPath, plan.segmentNumber);
+                break;
+            }
+            changed++;
+        }
+        if (changed > 0) {
+            dirtyStats.clear(); // the rewritten segments are summarized afresh
+        }
+        logger.info("Compacted WAL {}: {} of {} sealed segments changed, {} of {} frame bytes dropped",
+                directoryPath, changed, plans.size(), obsoleteBytes, frameBytes);
+        return changed;
+    }
+
+    /**
+     * Sealed live segments, oldest first, without those already retired.
+     */
+    private List<Long> sealedSegmentNumbers() {
+        long firstUnsealed = firstUnsealedSegmentNumber.getAsLong();
+        List<Long> segmentNumbers = getAllSegmentNumbers(directoryPath);
+        segmentNumbers.removeIf(segmentNumber -> segmentNumber >= firstUnsealed
+                || (archiver != null && archiver.isPending(segmentNumber))
+                || leases.isRetired(segmentNumber));
+        segmentNumbers.sort(Long::compareTo);
+        return segmentNumbers;
+    }
+
+    private void runSafely() {
+        if (closed && !ownsScheduler) {
+            return; // a trigger queued on the shared scheduler after the log was closed
+        }
+        try {
+            compactIfDirty();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("WAL compaction pass failed in {}", directoryPath, e);
+        }
+    }
+
+    /**
+     * Writes the kept frames of a segment to a temporary file and renames it over the segment, or
+     * retires the segment if nothing is kept. Returns false if a truncation got in the way or the
+     * write stamp could not be had.
+     */
+    private boolean rewrite(SegmentPlan plan, long generation) throws IOException {
+        if (plan.keptBytes == 0) {
+            leases.retire(plan.segmentNumber, () -> removeObsolete(plan, generation));
+            return truncationCount.getAsLong() == generation;
+        }
+
+        Path tempPath = Path.of(getCompactionTempFilePath(directoryPath, plan.segmentNumber));
+        try {
+            if (!readSegment(plan.segmentNumber, generation, segment -> writeKeptFrames(segment, plan, tempPath))) {
+                Files.deleteIfExists(tempPath);
+                return false;
+            }
+            // Age-based retention and tombstone expiry go by the time the records were written.
+            Files.setLastModifiedTime(tempPath, Files.getLastModifiedTime(plan.path));
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+
+        long stamp;
+        try {
+            stamp = tailLock.tryWriteLock(SWAP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stamp = 0;
+        }
+        if (stamp == 0) {
+            Files.deleteIfExists(tempPath); // readers held on; try again on the next pass
+            return false;
+        }
+        try {
+            if (truncationCount.getAsLong() != generation) {
+                Files.deleteIfExists(tempPath);
+                return false;
+            }
+            Files.move(tempPath, plan.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(Path.of(getSegmentIndexFilePath(directoryPath, plan.segmentNumber)));
+            segmentRewritten.accept(plan.segmentNumber);
+        } finally {
+            tailLock.unlockWrite(stamp);
+        }
+        return true;
+    }
+
+    /**
+     * Deletes a retired segment without frames, on whichever thread returns its last lease. A read
+     * stamp keeps truncation out meanwhile; a segment that a truncation got to first is kept, since
+     * the records that made it obsolete may be gone, and the next pass looks at it again.
+     */
+    private void removeObsolete(SegmentPlan plan, long generation) {
+        long stamp = tailLock.tryReadLock();
+        if (stamp == 0) {
+            logger.info("Kept obsolete WAL segment file {}: the log is being truncated", plan.path);
+            return;
+        }
+        try {
+            if (truncationCount.getAsLong() != generation) {
+                logger.info("Kept obsolete WAL segment file {}: the log was truncated since it was compacted", plan.path);
+                return;
+            }
+            Files.deleteIfExists(plan.path);
+            Files.deleteIfExists(Path.of(getSegmentIndexFilePath(directoryPath, plan.segmentNumber)));
+            segmentRewritten.accept(plan.segmentNumber);
+            logger.info("Deleted obsolete WAL segment file: {}", plan.path);
+        } catch (IOException e) {
+            logger.warn("Failed to delete obsolete WAL segment file: {}", plan.path, e);
+        } finally {
+            tailLock.unlockRead(stamp);
+        }
+    }
+
+    private static void writeKeptFrames(ByteBuffer segment, SegmentPlan plan, Path tempPath) throws IOException {
+        int version = WALFormat.detectVersion(segment);
+        try (FileChannel out = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            long written = WALFormat.headerSize(version);
+            writeFully(out, segment.duplicate().position(0).limit((int) written));
+
+            // Neighbouring kept frames are copied with one write. Frames of a block-aligned segment
+            // move to new offsets, so the output is padded afresh wherever a frame would straddle a block.
+            boolean blockAligned = WALFormat.isBlockAligned(version);
+            int runStart = -1;
+            int runEnd = -1;
+            for (int offset : plan.keptOffsets) {
+                int frameSize = WALFormat.frameSize(version, segment.getInt(offset));
+                int padding = blockAligned ? WALFormat.paddingBefore(written, frameSize) : 0;
+                if (offset != runEnd || padding > 0) {
+                    if (runStart >= 0) {
+                        writeFully(out, segment.duplicate().position(runStart).limit(runEnd));
+                    }
+                    if (padding > 0) {
+                        writeFully(out, ByteBuffer.wrap(WALFormat.padding(padding)));
+                    }
+                    runStart = offset;
+                }
+                runEnd = offset + frameSize;
+                written += padding + frameSize;
+            }
+            if (runStart >= 0) {
+                writeFully(out, segment.duplicate().position(runStart).limit(runEnd));
+            }
+            out.force(true);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Maps a segment and hands it to the reader under a read stamp, so it cannot be truncated while
+     * it is being read. Returns false, without reading, if the log was truncated since the pass began.
+     */
+    private boolean readSegment(long segmentNumber, long generation, SegmentReader reader) throws IOException {
+        long stamp = tailLock.readLock();
+        try {
+            if (truncationCount.getAsLong() != generation) {
+                return false;
+            }
+            reader.read(WALMappedCursor.mapSegment(Path.of(getSegmentFilePath(directoryPath, segmentNumber))));
+            return true;
+        } finally {
+            tailLock.unlockRead(stamp);
+        }
+    }
+
+    @FunctionalInterface
+    private interface SegmentReader {
+        void read(ByteBuffer segment) throws IOException;
+    }
+
+    /**
+     * What one pass knows about the sealed segments, built oldest segment first. Records after
+     * {@code horizon} never count as the newest of their key, so nothing is dropped in their favour.
+     * Tombstones after {@code retentionFloor} are kept for whoever replays from the floor.
+     */
+    private final class Pass {
+        private final long horizon;
+        private final long retentionFloor;
+        private final WALEntryView view = new WALEntryView();
+        private final Map<ByteBuffer, Long> newestByKey = new HashMap<>();     // only complete records
+        private final Map<Long, ByteBuffer> openChains = new HashMap<>();      // first fragment LSN -> key
+        private final Set<Long> completeChains = new HashSet<>();
+        private final Set<Long> droppedChains = new HashSet<>();
+        private long newestLogSequenceNumber = -1;
+
+        Pass(long horizon, long retentionFloor) {
+            this.horizon = horizon;
+            this.retentionFloor = retentionFloor;
+        }
+
+        void collectNewest(ByteBuffer segment) throws IOException {
+            WALSegmentIndex.forEachFrame(segment, view, (buffer, offset) -> {
+                long lsn = view.getLogSequenceNumber();
+                newestLogSequenceNumber = Math.max(newestLogSequenceNumber, lsn);
+                int fragment = view.getFragment();
+                if (fragment == WALRecord.Fragment.LAST.getNumber()) {
+                    ByteBuffer key = openChains.remove(view.getFragmentOf());
+                    if (key != null && lsn <= horizon) {
+                        completeChains.add(view.getFragmentOf());
+                        newestByKey.merge(key, view.getFragmentOf(), Math::max);
+                    }
+                } else if (view.getKeyLength() > 0) {
+                    if (fragment == WALRecord.Fragment.FIRST.getNumber()) {
+                        openChains.put(lsn, key(buffer));
+                    } else if (fragment == WALRecord.Fragment.NONE.getNumber() && lsn <= horizon) {
+                        newestByKey.merge(key(buffer), lsn, Math::max);
+                    }
+                }
+            });
+        }
+
+        void plan(ByteBuffer segment, SegmentPlan plan, boolean tombstonesExpired) throws IOException {
+            int version = WALFormat.detectVersion(segment);
+            IntStream.Builder keptOffsets = IntStream.builder();
+            WALSegmentIndex.forEachFrame(segment, view, (buffer, offset) -> {
+                int frameSize = WALFormat.frameSize(version, buffer.getInt(offset));
+                plan.frameBytes += frameSize;
+                if (keep(buffer, tombstonesExpired)) {
+                    keptOffsets.add(offset);
+                    plan.keptBytes += frameSize;
+                }
+            });
+            plan.keptOffsets = keptOffsets.build().toArray();
+        }
+
+        private boolean keep(ByteBuffer segment, boolean tombstonesExpired) {
+            long lsn = view.getLogSequenceNumber();
+            int fragment = view.getFragment();
+            if (fragment == WALRecord.Fragment.MIDDLE.getNumber() || fragment == WALRecord.Fragment.LAST.getNumber()) {
+                return !droppedChains.contains(view.getFragmentOf());
+            }
+            if (view.getKeyLength() == 0) {
+                return true;
+            }
+
+            boolean first = fragment == WALRecord.Fragment.FIRST.getNumber();
+            Long newest = newestByKey.get(key(segment));
+            boolean drop;
+            if (newest == null || newest != lsn) {
+                // Superseded, unless this is a stream whose end is not sealed yet (or was never written).
+                drop = newest != null && newest > lsn && (!first || completeChains.contains(lsn));
+            } else {
+                drop = tombstonesExpired && !first && view.getType() == tombstoneType && lsn != newestLogSequenceNumber
+                        && lsn <= retentionFloor;
+            }
+            if (drop && first) {
+                droppedChains.add(lsn);
+            }
+            return !drop;
+        }
+
+        private ByteBuffer key(ByteBuffer segment) {
+            byte[] key = new byte[view.getKeyLength()];
+            segment.get(view.getKeyOffset(), key);
+            return ByteBuffer.wrap(key);
+        }
+    }
+
+    /**
+     * Running estimate of the obsolete frame bytes in the sealed segments, kept per segment so that
+     * retired segments simply drop out. A segment is read once it is settled, i.e. sealed and with
+     * its last record at or below the horizon; tombstone expiry is left to the pass itself.
+     */
+    private final class DirtyStats {
+        private final WALEntryView view = new WALEntryView();
+        private final Map<ByteBuffer, NewestRecord> newestByKey = new HashMap<>();
+        private final Map<Long, OpenChain> openChains = new HashMap<>();     // first fragment LSN -> chain so far
+        private final TreeMap<Long, SegmentStats> segments = new TreeMap<>(); // settled segments by number
+        private long generation = -1;
+        private long summarizedThrough = -1; // newest segment number read
+        private boolean changedSincePass;
+
+        /**
+         * Reads the settled segments that have not been read yet, oldest first, and forgets the ones
+         * no longer listed. Returns false if the log was truncated meanwhile.
+         */
+        boolean update(List<Long> segmentNumbers, long generation, long horizon) throws IOException {
+            if (generation != this.generation) {
+                clear();
+                this.generation = generation;
+            }
+            if (segments.keySet().retainAll(new HashSet<>(segmentNumbers))) {
+                newestByKey.values().removeIf(newest -> !segments.containsKey(newest.segmentNumber()));
+            }
+
+            for (long segmentNumber : segmentNumbers) {
+                if (segmentNumber <= summarizedThrough) {
+                    continue;
+                }
+                List<FrameStat> frames = new ArrayList<>();
+                if (!readSegment(segmentNumber, generation, segment -> summarize(segment, frames))) {
+                    clear();
+                    return false;
+                }
+                if (!frames.isEmpty() && frames.get(frames.size() - 1).logSequenceNumber() > horizon) {
+                    break; // not settled yet, and neither is any later segment
+                }
+
+                SegmentStats stats = new SegmentStats();
+                segments.put(segmentNumber, stats);
+                for (FrameStat frame : frames) {
+                    add(segmentNumber, stats, frame);
+                }
+                summarizedThrough = segmentNumber;
+                changedSincePass = true;
+            }
+            return true;
+        }
+
+        /**
+         * Whether enough of the settled bytes are obsolete for a pass, and segments were settled
+         * since the last pass that found nothing to do.
+         */
+        boolean isDue() {
+            if (!changedSincePass) {
+                return false;
+            }
+            long frameBytes = 0;
+            long obsoleteBytes = 0;
+            for (SegmentStats stats : segments.values()) {
+                frameBytes += stats.frameBytes;
+                obsoleteBytes += stats.obsoleteBytes;
+            }
+            return obsoleteBytes > 0 && obsoleteBytes >= minDirtyRatio * frameBytes;
+        }
+
+        void passDone() {
+            changedSincePass = false;
+        }
+
+        void clear() {
+            newestByKey.clear();
+            openChains.clear();
+            segments.clear();
+            summarizedThrough = -1;
+            changedSincePass = false;
+        }
+
+        private void summarize(ByteBuffer segment, List<FrameStat> frames) throws IOException {
+            int version = WALFormat.detectVersion(segment);
+            WALSegmentIndex.forEachFrame(segment, view, (buffer, offset) -> {
+                ByteBuffer key = null;
+                if (view.getKeyLength() > 0) {
+                    byte[] bytes = new byte[view.getKeyLength()];
+                    buffer.get(view.getKeyOffset(), bytes);
+                    key = ByteBuffer.wrap(bytes);
+                }
+                frames.add(new FrameStat(view.getLogSequenceNumber(), WALFormat.frameSize(version, buffer.getInt(offset)),
+                        view.getFragment(), view.getFragmentOf(), key));
+            });
+        }
+
+        private void add(long segmentNumber, SegmentStats stats, FrameStat frame) {
+            stats.frameBytes += frame.frameSize();
+            if (frame.fragment() == WALRecord.Fragment.NONE.getNumber()) {
+                if (frame.key() != null) {
+                    supersede(frame.key(), new NewestRecord(frame.logSequenceNumber(), frame.frameSize(), segmentNumber));
+                }
+            } else if (frame.fragment() == WALRecord.Fragment.FIRST.getNumber()) {
+                if (frame.key() != null) {
+                    openChains.put(frame.logSequenceNumber(), new OpenChain(frame.key(), segmentNumber, frame.frameSize()));
+                }
+            } else {
+                boolean last = frame.fragment() == WALRecord.Fragment.LAST.getNumber();
+                OpenChain chain = last ? openChains.remove(frame.fragmentOf()) : openChains.get(frame.fragmentOf());
+                if (chain != null) {
+                    chain.bytes += frame.frameSize();
+                    if (last) {
+                        // The whole record is charged to the segment of its first fragment.
+                        supersede(chain.key, new NewestRecord(frame.fragmentOf(), chain.bytes, chain.segmentNumber));
+                    }
+                }
+            }
+        }
+
+        private void supersede(ByteBuffer key, NewestRecord record) {
+            NewestRecord newest = newestByKey.get(key);
+            if (newest == null || newest.logSequenceNumber() < record.logSequenceNumber()) {
+                newestByKey.put(key, record);
+                if (newest != null) {
+                    markObsolete(newest);
+                }
+            } else {
+                markObsolete(record); // a stream that completed after a newer record of its key
+            }
+        }
+
+        private void markObsolete(NewestRecord record) {
+            SegmentStats stats = segments.get(record.segmentNumber());
+            if (stats != null) {
+                stats.obsoleteBytes += record.bytes();
+            }
+        }
+    }
+
+    private record FrameStat(long logSequenceNumber, int frameSize, int fragment, long fragmentOf, ByteBuffer key) {
+    }
+
+    private record NewestRecord(long logSequenceNumber, long bytes, long segmentNumber) {
+    }
+
+    private static final class OpenChain {
+        private final ByteBuffer key;
+        private final long segmentNumber;
+        private long bytes;
+
+        OpenChain(ByteBuffer key, long segmentNumber, long bytes) {
+            this.key = key;
+            this.segmentNumber = segmentNumber;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class SegmentStats {
+        private long frameBytes;
+        private long obsoleteBytes;
+    }
+
+    private static final class SegmentPlan {
+        private final long segmentNumber;
+        private final Path path;
+        private long frameBytes;
+        private long keptBytes;
+        private int[] keptOffsets;
+
+        SegmentPlan(long segmentNumber, Path path) {
+            this.segmentNumber = segmentNumber;
+            this.path = path;
+        }
+    }
+}
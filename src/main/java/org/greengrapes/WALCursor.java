@@ -0,0 +1,135 @@
+package org.greengrapes;
+
+import org.greengrapes.proto.WALEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams records in LSN order across archived and live segments, holding at most one segment
+ * open at a time. The live segments are leased until the cursor has read them, so retention
+ * leaves them in place; the cursor must be closed if it is not read to the end.
+ */
+public class WALCursor implements Iterator<WALRecord>, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(WALCursor.class);
+
+    private final String archiveDirectoryPath;
+    private final long fromLogSequenceNumber;
+    private final long toLogSequenceNumber;
+    private final Checksum checksum;
+    private final WALSegmentLeases.Lease lease;
+    private final Deque<WALSegmentSource> sources;
+
+    private WALSegmentReader reader;
+    private long segmentNumber;
+    private WALSegmentReader.SegmentStream in;
+    private WALEntry next;
+
+    /**
+     * Reads records with an LSN in {@code [fromLogSequenceNumber, toLogSequenceNumber]}.
+     */
+    WALCursor(WALSegmentLeases.Lease lease, String archiveDirectoryPath, long fromLogSequenceNumber, long toLogSequenceNumber,
+              Checksum checksum) {
+        this.archiveDirectoryPath = archiveDirectoryPath;
+        this.fromLogSequenceNumber = fromLogSequenceNumber;
+        this.toLogSequenceNumber = toLogSequenceNumber;
+        this.checksum = checksum;
+        this.lease = lease;
+        this.sources = lease.sources();
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (next == null) {
+                if (in == null && !openNextSource()) {
+                    close();
+                    return false;
+                }
+
+                WALEntry entry = reader.readEntry(in);
+                if (entry == null) {
+                    closeCurrent();
+                } else if (entry.getLogSequenceNumber() > toLogSequenceNumber) {
+                    close();
+                    return false;
+                } else if (entry.getLogSequenceNumber() >= fromLogSequenceNumber) {
+                    next = entry;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public WALRecord next() {
+        return WALRecord.fromEntry(nextEntry());
+    }
+
+    /**
+     * Like {@link #next()} but returns the entry as decoded, without copying its payload.
+     */
+    WALEntry nextEntry() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        WALEntry entry = next;
+        next = null;
+        return entry;
+    }
+
+    @Override
+    public void close() {
+        try {
+            closeCurrent();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            sources.clear();
+            lease.close();
+        }
+    }
+
+    private boolean openNextSource() throws IOException {
+        while (!sources.isEmpty()) {
+            WALSegmentSource source = sources.poll();
+            segmentNumber = source.segmentNumber();
+            try {
+                open(source.preferredPath());
+                return true;
+            } catch (FileNotFoundException | NoSuchFileException e) {
+                Path archivePath = source.fallbackPath(archiveDirectoryPath);
+                if (archivePath != null) {
+                    open(archivePath);
+                    return true;
+                }
+                lease.release(segmentNumber);
+                logger.warn("WAL segment {} disappeared before it could be read", segmentNumber);
+            }
+        }
+        return false;
+    }
+
+    private void open(Path path) throws IOException {
+        reader = new WALSegmentReader(path.toString(), checksum);
+        in = reader.openStream();
+    }
+
+    private void closeCurrent() throws IOException {
+        if (in != null) {
+            in.close();
+            in = null;
+            reader = null;
+            lease.release(segmentNumber);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.greengrapes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight decoder for a serialized {@code WALEntry} that reads fields in place instead of
+ * building a message, so the payload is never copied. One instance is reused for every frame.
+ * <p>
+ * Field numbers and wire types follow {@code types.proto}; unknown fields are skipped.
+ */
+final class WALEntryView {
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_FIXED64 = 1;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    private static final int WIRETYPE_FIXED32 = 5;
+
+    private static final int FIELD_LOG_SEQUENCE_NUMBER = 1;
+    private static final int FIELD_DATA = 2;
+    private static final int FIELD_CRC = 3;
+    private static final int FIELD_IS_CHECKPOINT = 4;
+    private static final int FIELD_TYPE = 5;
+    private static final int FIELD_KEY = 6;
+    private static final int FIELD_FRAGMENT = 7;
+    private static final int FIELD_FRAGMENT_OF = 8;
+    private static final int FIELD_RECORD_CRC = 9;
+
+    private ByteBuffer buffer;
+    private int position;
+
+    private long logSequenceNumber;
+    private int crc;
+    private boolean checkpoint;
+    private int dataOffset;
+    private int dataLength;
+    private int type;
+    private int keyOffset;
+    private int keyLength;
+    private int fragment;
+    private long fragmentOf;
+    private int recordCRC;
+
+    /**
+     * Decodes the entry stored in {@code buffer[offset, offset + length)}.
+     */
+    void decode(ByteBuffer buffer, int offset, int length) throws IOException {
+        this.buffer = buffer;
+        this.position = offset;
+        this.logSequenceNumber = 0;
+        this.crc = 0;
+        this.checkpoint = false;
+        this.dataOffset = offset;
+        this.dataLength = 0;
+        this.type = 0;
+        this.keyOffset = offset;
+        this.keyLength = 0;
+        this.fragment = 0;
+        this.fragmentOf = 0;
+        this.recordCRC = 0;
+
+        int end = offset + length;
+        while (position < end) {
+            long tag = readVarint(end);
+            int field = (int) (tag >>> 3);
+            int wireType = (int) (tag & 0x7);
+
+            if (field == FIELD_LOG_SEQUENCE_NUMBER && wireType == WIRETYPE_VARINT) {
+                logSequenceNumber = readVarint(end);
+            } else if (field == FIELD_DATA && wireType == WIRETYPE_LENGTH_DELIMITED) {
+                dataLength = readLength(end);
+                dataOffset = position;
+                position += dataLength;
+            } else if (field == FIELD_CRC && wireType == WIRETYPE_VARINT) {
+                crc = (int) readVarint(end);
+            } else if (field == FIELD_IS_CHECKPOINT && wireType == WIRETYPE_VARINT) {
+                checkpoint = readVarint(end) != 0;
+            } else if (field == FIELD_TYPE && wireType == WIRETYPE_VARINT) {
+                type = (int) readVarint(end);
+            } else if (field == FIELD_KEY && wireType == WIRETYPE_LENGTH_DELIMITED) {
+                keyLength = readLength(end);
+                keyOffset = position;
+                position += keyLength;
+            } else if (field == FIELD_FRAGMENT && wireType == WIRETYPE_VARINT) {
+                fragment = (int) readVarint(end);
+            } else if (field == FIELD_FRAGMENT_OF && wireType == WIRETYPE_VARINT) {
+                fragmentOf = readVarint(end);
+            } else if (field == FIELD_RECORD_CRC && wireType == WIRETYPE_VARINT) {
+                recordCRC = (int) readVarint(end);
+            } else {
+                skipField(field, wireType, end);
+            }
+        }
+    }
+
+    long getLogSequenceNumber() {
+        return logSequenceNumber;
+    }
+
+    int getCRC() {
+        return crc;
+    }
+
+    boolean isCheckpoint() {
+        return checkpoint;
+    }
+
+    int getDataOffset() {
+        return dataOffset;
+    }
+
+    int getDataLength() {
+        return dataLength;
+    }
+
+    int getType() {
+        return type;
+    }
+
+    int getKeyOffset() {
+        return keyOffset;
+    }
+
+    int getKeyLength() {
+        return keyLength;
+    }
+
+    int getFragment() {
+        return fragment;
+    }
+
+    /**
+     * LSN of the first fragment, on middle and last fragments; 0 otherwise.
+     */
+    long getFragmentOf() {
+        return fragmentOf;
+    }
+
+    /**
+     * Checksum of the payloads of the whole chain, on last fragments; 0 otherwise.
+     */
+    int getRecordCRC() {
+        return recordCRC;
+    }
+
+    private void skipField(int field, int wireType, int end) throws IOException {
+        if (field == 0) {
+            throw new IOException("Invalid WAL entry field tag at offset " + position);
+        }
+        switch (wireType) {
+            case WIRETYPE_VARINT -> readVarint(end);
+            case WIRETYPE_FIXED64 -> advance(Long.BYTES, end);
+            case WIRETYPE_LENGTH_DELIMITED -> advance(readLength(end), end);
+            case WIRETYPE_FIXED32 -> advance(Integer.BYTES, end);
+            default -> throw new IOException("Unsupported wire type " + wireType + " in WAL entry");
+        }
+    }
+
+    private int readLength(int end) throws IOException {
+        long length = readVarint(end);
+        if (length < 0 || length > end - position) {
+            throw new IOException("Truncated field in WAL entry");
+        }
+        return (int) length;
+    }
+
+    private void advance(int bytes, int end) throws IOException {
+        if (bytes > end - position) {
+            throw new IOException("Truncated field in WAL entry");
+        }
+        position += bytes;
+    }
+
+    private long readVarint(int end) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            if (position >= end) {
+                throw new IOException("Truncated varint in WAL entry");
+            }
+            byte b = buffer.get(position++);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in WAL entry");
+    }
+}
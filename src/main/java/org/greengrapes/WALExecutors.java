@@ -0,0 +1,19 @@
+package org.greengrapes;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Background executors a {@link WAL} runs on when it is hosted by a {@link WALManager} instead of
+ * owning its own threads. The WAL never shuts them down.
+ *
+ * @param flushScheduler     periodic segment flushes
+ * @param rotationExecutor   sealing retired segments and pre-opening spares
+ * @param retentionScheduler retention passes
+ * @param compactionScheduler compaction checks and passes
+ */
+record WALExecutors(ScheduledExecutorService flushScheduler,
+                    ExecutorService rotationExecutor,
+                    ScheduledExecutorService retentionScheduler,
+                    ScheduledExecutorService compactionScheduler) {
+}
@@ -0,0 +1,135 @@
+package org.greengrapes;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Predicates for filtered scans, evaluated against the entry header (LSN, type, checkpoint flag
+ * and key) before the payload is checksummed or copied. Unset predicates match everything.
+ */
+public class WALFilter {
+    private final long fromLogSequenceNumber;
+    private final long toLogSequenceNumber;
+    private final int[] types;
+    private final boolean checkpointOnly;
+    private final byte[] key;
+
+    private WALFilter(Builder builder) {
+        this.fromLogSequenceNumber = builder.fromLogSequenceNumber;
+        this.toLogSequenceNumber = builder.toLogSequenceNumber;
+        this.types = builder.types.clone();
+        this.checkpointOnly = builder.checkpointOnly;
+        this.key = builder.key;
+        Arrays.sort(this.types);
+    }
+
+    private WALFilter(WALFilter filter, long toLogSequenceNumber) {
+        this.fromLogSequenceNumber = filter.fromLogSequenceNumber;
+        this.toLogSequenceNumber = toLogSequenceNumber;
+        this.types = filter.types;
+        this.checkpointOnly = filter.checkpointOnly;
+        this.key = filter.key;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public long getFromLogSequenceNumber() {
+        return fromLogSequenceNumber;
+    }
+
+    /**
+     * Last LSN of the range, inclusive.
+     */
+    public long getToLogSequenceNumber() {
+        return toLogSequenceNumber;
+    }
+
+    /**
+     * Returns this filter with its range cut off at {@code logSequenceNumber}, if that is lower.
+     */
+    WALFilter boundedTo(long logSequenceNumber) {
+        return logSequenceNumber < toLogSequenceNumber ? new WALFilter(this, logSequenceNumber) : this;
+    }
+
+    /**
+     * True once the scan has gone past the LSN range, so it can stop instead of reading on.
+     */
+    boolean isPastRange(long logSequenceNumber) {
+        return logSequenceNumber > toLogSequenceNumber;
+    }
+
+    /**
+     * Checks the decoded header of an entry whose bytes live in {@code buffer}.
+     */
+    boolean matches(WALEntryView view, ByteBuffer buffer) {
+        long lsn = view.getLogSequenceNumber();
+        if (lsn < fromLogSequenceNumber || lsn > toLogSequenceNumber) {
+            return false;
+        }
+        if (checkpointOnly && !view.isCheckpoint()) {
+            return false;
+        }
+        if (types.length > 0 && Arrays.binarySearch(types, view.getType()) < 0) {
+            return false;
+        }
+        return key == null || keyEquals(buffer, view.getKeyOffset(), view.getKeyLength());
+    }
+
+    private boolean keyEquals(ByteBuffer buffer, int offset, int length) {
+        if (length != key.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static class Builder {
+        private long fromLogSequenceNumber = 0;
+        private long toLogSequenceNumber = Long.MAX_VALUE;
+        private int[] types = new int[0];
+        private boolean checkpointOnly;
+        private byte[] key;
+
+        private Builder() {
+        }
+
+        public Builder setFromLogSequenceNumber(long fromLogSequenceNumber) {
+            this.fromLogSequenceNumber = fromLogSequenceNumber;
+            return this;
+        }
+
+        public Builder setToLogSequenceNumber(long toLogSequenceNumber) {
+            this.toLogSequenceNumber = toLogSequenceNumber;
+            return this;
+        }
+
+        /**
+         * Adds a record type to match; records of any of the added types match.
+         */
+        public Builder addType(int type) {
+            types = Arrays.copyOf(types, types.length + 1);
+            types[types.length - 1] = type;
+            return this;
+        }
+
+        public Builder setCheckpointOnly(boolean checkpointOnly) {
+            this.checkpointOnly = checkpointOnly;
+            return this;
+        }
+
+        public Builder setKey(byte[] key) {
+            this.key = key.clone();
+            return this;
+        }
+
+        public WALFilter build() {
+            return new WALFilter(this);
+        }
+    }
+}
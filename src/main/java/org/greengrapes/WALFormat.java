@@ -0,0 +1,210 @@
+package org.greengrapes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Segment file layouts (all integers little-endian).
+ * <ul>
+ *   <li>Version 1 has no header; the file is a sequence of {@code [4-byte size][WALEntry]} frames.</li>
+ *   <li>Version 2 starts with {@code [4-byte magic][4-byte version]} and repeats the size after every
+ *       frame, {@code [4-byte size][WALEntry][4-byte size]}, so a segment can be walked backwards
+ *       from its end.</li>
+ *   <li>Version 3 has the header and frames of version 2 laid out in {@link #BLOCK_SIZE} blocks
+ *       counted from the start of the file. A frame never straddles a block boundary: when the
+ *       next frame does not fit in what is left of the block, the rest of the block is filled with
+ *       a padding frame {@code [4-byte -n][n - 8 zero bytes][4-byte -n]} of {@code n} bytes. A
+ *       damaged frame therefore costs at most the rest of its block, and readers resume at the next
+ *       block boundary.</li>
+ * </ul>
+ * The magic is negative, which a version 1 size prefix never is, so the two are told apart by the
+ * first four bytes. Segments keep the layout they were created with; new segments use {@link #CURRENT_VERSION}
+ * unless the WAL is opened with {@link WALOptions#isBlockLayout()}.
+ */
+final class WALFormat {
+    private static final Logger logger = LoggerFactory.getLogger(WALFormat.class);
+
+    static final int VERSION_1 = 1;
+    static final int VERSION_2 = 2;
+    static final int VERSION_3 = 3;
+    static final int CURRENT_VERSION = VERSION_2;
+
+    static final int MAGIC = 0xF7A1_5E60;
+    static final int HEADER_SIZE = 2 * Integer.BYTES;
+    static final int SIZE_PREFIX_BYTES = Integer.BYTES;
+    static final int BLOCK_SIZE = 32 * 1024;
+    static final int MIN_PADDING = 2 * Integer.BYTES; // a padding frame is at least its size prefix and trailer
+    static final int MAX_BLOCK_FRAME_SIZE = BLOCK_SIZE - MIN_PADDING; // so a frame always fits in a fresh block
+
+    private WALFormat() {
+    }
+
+    static int headerSize(int version) {
+        return version >= VERSION_2 ? HEADER_SIZE : 0;
+    }
+
+    static int trailerSize(int version) {
+        return version >= VERSION_2 ? Integer.BYTES : 0;
+    }
+
+    /**
+     * Bytes a frame of {@code size} entry bytes takes in the file.
+     */
+    static int frameSize(int version, int size) {
+        return SIZE_PREFIX_BYTES + size + trailerSize(version);
+    }
+
+    static boolean isBlockAligned(int version) {
+        return version >= VERSION_3;
+    }
+
+    /**
+     * Offset of the first block boundary after {@code offset}.
+     */
+    static long blockEnd(long offset) {
+        return (offset / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
+    /**
+     * Bytes of padding a version 3 writer puts at {@code offset} before a frame of {@code frameSize}
+     * bytes: none if the frame fits in the rest of the block and leaves room for a later padding
+     * frame, otherwise the rest of the block.
+     */
+    static int paddingBefore(long offset, int frameSize) {
+        int remaining = (int) (blockEnd(offset) - offset);
+        return frameSize == remaining || frameSize <= remaining - MIN_PADDING ? 0 : remaining;
+    }
+
+    /**
+     * Whether the size prefix {@code size} read at {@code offset} of a version 3 segment starts a
+     * padding frame, which runs to the end of the block.
+     */
+    static boolean isPadding(long offset, int size) {
+        return size <= -MIN_PADDING && offset - size == blockEnd(offset);
+    }
+
+    /**
+     * Whether a frame of {@code size} entry bytes starting at {@code offset} of a version 3 segment
+     * stays within its block, as every frame written by a version 3 writer does.
+     */
+    static boolean fitsInBlock(long offset, int size) {
+        return size > 0 && offset + frameSize(VERSION_3, size) <= blockEnd(offset);
+    }
+
+    /**
+     * What is wrong with the framing of the frame at {@code offset} of a mapped version 3 segment,
+     * or null if it stays in its block and its trailer matches its size prefix. A frame that runs
+     * past {@code limit} is not reported, since it may only be partially flushed.
+     */
+    static String frameDamage(ByteBuffer segment, int offset, int limit) {
+        int size = segment.getInt(offset);
+        if (!fitsInBlock(offset, size)) {
+            return "invalid entry size " + size;
+        }
+        int trailerOffset = offset + SIZE_PREFIX_BYTES + size;
+        if (trailerOffset + Integer.BYTES <= limit && segment.getInt(trailerOffset) != size) {
+            return "frame trailer does not match its size prefix " + size;
+        }
+        return null;
+    }
+
+    /**
+     * Where a reader of a version 3 segment resumes after a damaged frame at {@code frameStart}:
+     * the next block boundary, or {@code limit} if the segment ends first. The loss is logged.
+     */
+    static long skipDamagedBlock(long frameStart, long limit, String problem) {
+        long resumeAt = Math.min(blockEnd(frameStart), limit);
+        logger.warn("Skipping {} bytes of a WAL segment after a damaged frame at offset {}: {}",
+                resumeAt - frameStart, frameStart, problem);
+        return resumeAt;
+    }
+
+    /**
+     * A padding frame of {@code length} bytes, at least {@link #MIN_PADDING}.
+     */
+    static byte[] padding(int length) {
+        byte[] padding = new byte[length];
+        ByteBuffer.wrap(padding).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(0, -length)
+                .putInt(length - Integer.BYTES, -length);
+        return padding;
+    }
+
+    static ByteBuffer header(int version) {
+        return ByteBuffer.allocate(HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(MAGIC)
+                .putInt(version)
+                .flip();
+    }
+
+    /**
+     * Layout of a segment from its first bytes, read with absolute gets from a little-endian
+     * buffer. An empty segment is reported as the current version.
+     */
+    static int detectVersion(ByteBuffer segment) throws IOException {
+        if (segment.limit() == 0 || isTornHeader(segment)) {
+            return CURRENT_VERSION; // no frames yet
+        }
+        if (segment.limit() < SIZE_PREFIX_BYTES || segment.getInt(0) != MAGIC) {
+            return VERSION_1;
+        }
+        return checkVersion(segment.getInt(Integer.BYTES));
+    }
+
+    /**
+     * Whether a segment is shorter than a header and starts like one, i.e. its header write was
+     * cut short. Such a segment holds no frames, and a writer must rewrite the header before
+     * appending to it.
+     */
+    static boolean isTornHeader(ByteBuffer segment) {
+        if (segment.limit() == 0 || segment.limit() >= HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer header = header(CURRENT_VERSION);
+        for (int i = 0; i < Math.min(segment.limit(), Integer.BYTES); i++) {
+            if (segment.get(i) != header.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int readVersion(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return readVersion(channel);
+        }
+    }
+
+    static int readVersion(FileChannel channel) throws IOException {
+        return detectVersion(readHead(channel));
+    }
+
+    static boolean isTornHeader(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return isTornHeader(readHead(channel));
+        }
+    }
+
+    private static ByteBuffer readHead(FileChannel channel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (head.hasRemaining() && channel.read(head, head.position()) > 0) {
+            // keep reading until the header is complete or the file ends
+        }
+        return head.flip();
+    }
+
+    static int checkVersion(int version) throws IOException {
+        if (version != VERSION_2 && version != VERSION_3) {
+            throw new IOException("Unsupported WAL segment format version: " + version);
+        }
+        return version;
+    }
+}
@@ -0,0 +1,435 @@
+package org.greengrapes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import static org.greengrapes.WALUtils.getAllSnapshotLogSequenceNumbers;
+import static org.greengrapes.WALUtils.getSnapshotFilePath;
+
+/**
+ * In-memory key-value store whose mutations are appended to a {@link WAL} as typed, keyed records.
+ * Keys and values live off-heap in a {@link WALKeyValueTable}, so the heap only holds a hash slot
+ * per key rather than a boxed key, a value array and a map node.
+ * <p>
+ * Snapshots of the table are written to a separate directory, periodically and on demand. On open,
+ * the newest valid snapshot is loaded and only the WAL records after its LSN are replayed. The
+ * table is cut under the mutation lock and written to disk without it, so appends continue
+ * while a snapshot file is being written.
+ * <p>
+ * The store sets the WAL's retention floor to the LSN of its newest snapshot, so retention and
+ * tombstone expiry leave the records it would replay on the next open alone.
+ * <p>
+ * The store does not own the WAL: close the store first, then the WAL.
+ *
+ * <pre>
+ * Snapshot file: [int version][long lsn][int count]
+ *                count x [int keyLength][key][int valueLength][value]
+ *                [int CRC32 of everything before it]
+ * </pre>
+ * All integers are little-endian, like segment frames.
+ */
+public class WALKeyValueStore implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(WALKeyValueStore.class);
+
+    /**
+     * Record types {@code 0x4B56_0000} to {@code 0x4B56_FFFF} ("KV") are reserved for the store, so
+     * its records don't collide with application records in the same log.
+     */
+    public static final int TYPE_PUT = 0x4B56_0001;
+    public static final int TYPE_DELETE = 0x4B56_0002;
+
+    private static final int SNAPSHOT_FORMAT_VERSION = 1;
+    private static final int SNAPSHOT_HEADER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+    private static final int SNAPSHOTS_TO_KEEP = 2;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final WAL wal;
+    private final String snapshotDirectoryPath;
+    private final int putType;
+    private final int deleteType;
+    private final WALKeyValueTable entries = new WALKeyValueTable();
+    private final ReadWriteLock entriesLock = new ReentrantReadWriteLock(); // reads against table changes
+    private final Lock mutationLock = new ReentrantLock();
+    private final Lock snapshotLock = new ReentrantLock();
+    private final ScheduledExecutorService snapshotScheduler;
+
+    private volatile long appliedLogSequenceNumber;
+    private volatile long snapshotLogSequenceNumber;
+
+    private WALKeyValueStore(WAL wal, String snapshotDirectoryPath, Duration snapshotInterval, int putType, int deleteType) {
+        if (putType == deleteType) {
+            throw new IllegalArgumentException("Put and delete records need distinct types");
+        }
+        this.wal = wal;
+        this.snapshotDirectoryPath = snapshotDirectoryPath;
+        this.putType = putType;
+        this.deleteType = deleteType;
+
+        try {
+            Files.createDirectories(Path.of(snapshotDirectoryPath));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create snapshot directory " + snapshotDirectoryPath, e);
+        }
+
+        loadLatestSnapshot();
+        replay();
+        wal.setRetentionFloor(snapshotLogSequenceNumber);
+
+        if (snapshotInterval != null && !snapshotInterval.isZero()) {
+            this.snapshotScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "kv-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long intervalMillis = snapshotInterval.toMillis();
+            snapshotScheduler.scheduleWithFixedDelay(this::snapshotQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.snapshotScheduler = null;
+        }
+    }
+
+    /**
+     * Opens a store over the WAL, restoring state from the newest snapshot plus the WAL suffix.
+     *
+     * @param snapshotInterval how often to write a snapshot in the background, or null to only snapshot on demand
+     */
+    public static WALKeyValueStore open(WAL wal, String snapshotDirectoryPath, Duration snapshotInterval) {
+        return open(wal, snapshotDirectoryPath, snapshotInterval, TYPE_PUT, TYPE_DELETE);
+    }
+
+    /**
+     * Opens a store that writes and replays puts and deletes with the given record types instead
+     * of {@link #TYPE_PUT} and {@link #TYPE_DELETE}. No other record in the log may use them.
+     */
+    public static WALKeyValueStore open(WAL wal, String snapshotDirectoryPath, Duration snapshotInterval, int putType,
+                                        int deleteType) {
+        return new WALKeyValueStore(wal, snapshotDirectoryPath, snapshotInterval, putType, deleteType);
+    }
+
+    public byte[] get(byte[] key) {
+        entriesLock.readLock().lock();
+        try {
+            return entries.get(key);
+        } finally {
+            entriesLock.readLock().unlock();
+        }
+    }
+
+    public boolean containsKey(byte[] key) {
+        entriesLock.readLock().lock();
+        try {
+            return entries.containsKey(key);
+        } finally {
+            entriesLock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        entriesLock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            entriesLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Logs and applies a put. A value too large for one WAL record, e.g. over about 32 KB with the
+     * block layout, is written as a streamed record and reassembled on replay.
+     *
+     * @return the LSN of the WAL record, or of its first fragment
+     */
+    public long put(byte[] key, byte[] value) {
+        byte[] keyCopy = key.clone();
+        byte[] valueCopy = value.clone();
+
+        mutationLock.lock();
+        try {
+            long lsn = valueCopy.length > wal.maxRecordPayloadSize(keyCopy)
+                    ? wal.write(putType, keyCopy, new ByteArrayInputStream(valueCopy))
+                    : wal.write(putType, keyCopy, valueCopy);
+            apply(keyCopy, valueCopy);
+            appliedLogSequenceNumber = lsn;
+            return lsn;
+        } finally {
+            mutationLock.unlock();
+        }
+    }
+
+    /**
+     * Logs and applies a delete, whether or not the key is present.
+     *
+     * @return the LSN of the WAL record
+     */
+    public long delete(byte[] key) {
+        byte[] keyCopy = key.clone();
+
+        mutationLock.lock();
+        try {
+            long lsn = wal.write(deleteType, keyCopy, EMPTY);
+            apply(keyCopy, null);
+            appliedLogSequenceNumber = lsn;
+            return lsn;
+        } finally {
+            mutationLock.unlock();
+        }
+    }
+
+    /**
+     * LSN of the last mutation reflected in the table.
+     */
+    public long getAppliedLogSequenceNumber() {
+        return appliedLogSequenceNumber;
+    }
+
+    /**
+     * LSN covered by the newest snapshot on disk, or 0 if there is none.
+     */
+    public long getSnapshotLogSequenceNumber() {
+        return snapshotLogSequenceNumber;
+    }
+
+    /**
+     * Writes a snapshot of the current state. The WAL is committed up to the snapshot's LSN first,
+     * so a snapshot never covers records that a crash could still take back. Once the snapshot is
+     * on disk, the WAL's retention floor moves up to its LSN.
+     *
+     * @return the LSN covered by the snapshot
+     */
+    public long snapshot() {
+        snapshotLock.lock();
+        try {
+            WALKeyValueTable.Cut cut;
+            long lsn;
+            mutationLock.lock();
+            try {
+                lsn = appliedLogSequenceNumber;
+                if (lsn == snapshotLogSequenceNumber) {
+                    return lsn; // nothing changed since the last snapshot
+                }
+                cut = entries.cut(); // entries are never overwritten, so this is a consistent cut
+            } finally {
+                mutationLock.unlock();
+            }
+
+            wal.commit();
+            writeSnapshot(lsn, cut);
+            snapshotLogSequenceNumber = lsn;
+            wal.setRetentionFloor(lsn);
+            deleteOldSnapshots();
+            return lsn;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write snapshot", e);
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (snapshotScheduler != null) {
+            snapshotScheduler.shutdown();
+            try {
+                if (!snapshotScheduler.awaitTermination(1, TimeUnit.MINUTES)) {
+                    logger.warn("Timed out waiting for the snapshot task to finish");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (RuntimeException e) {
+            logger.warn("Background snapshot failed", e);
+        }
+    }
+
+    private void apply(byte[] key, byte[] value) {
+        entriesLock.writeLock().lock();
+        try {
+            if (value != null) {
+                entries.put(key, value);
+            } else {
+                entries.remove(key);
+            }
+        } finally {
+            entriesLock.writeLock().unlock();
+        }
+    }
+
+    private void writeSnapshot(long lsn, WALKeyValueTable.Cut cut) throws IOException {
+        Path snapshotPath = Path.of(getSnapshotFilePath(snapshotDirectoryPath, lsn));
+        Path tempPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+
+        try (FileOutputStream file = new FileOutputStream(tempPath.toFile())) {
+            OutputStream out = new BufferedOutputStream(file, 64 * 1024);
+
+            ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt(SNAPSHOT_FORMAT_VERSION)
+                    .putLong(lsn)
+                    .putInt(cut.size());
+            write(out, crc, header.array());
+
+            ByteBuffer length = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            byte[] scratch = new byte[64 * 1024];
+            cut.forEach((key, value) -> {
+                write(out, crc, length.putInt(0, key.remaining()).array());
+                write(out, crc, key, scratch);
+                write(out, crc, length.putInt(0, value.remaining()).array());
+                write(out, crc, value, scratch);
+            });
+
+            out.write(length.putInt(0, (int) crc.getValue()).array());
+            out.flush();
+            file.getChannel().force(true);
+        }
+
+        Files.move(tempPath, snapshotPath, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("Wrote snapshot of {} keys at LSN {}", cut.size(), lsn);
+    }
+
+    private static void write(OutputStream out, CRC32 crc, byte[] bytes) throws IOException {
+        out.write(bytes);
+        crc.update(bytes);
+    }
+
+    private static void write(OutputStream out, CRC32 crc, ByteBuffer bytes, byte[] scratch) throws IOException {
+        while (bytes.hasRemaining()) {
+            int length = Math.min(scratch.length, bytes.remaining());
+            bytes.get(scratch, 0, length);
+            out.write(scratch, 0, length);
+            crc.update(scratch, 0, length);
+        }
+    }
+
+    /**
+     * Loads the newest snapshot that passes its checksum, falling back to older ones.
+     */
+    private void loadLatestSnapshot() {
+        for (long lsn : getAllSnapshotLogSequenceNumbers(snapshotDirectoryPath)) {
+            Path path = Path.of(getSnapshotFilePath(snapshotDirectoryPath, lsn));
+            try {
+                readSnapshot(path);
+                snapshotLogSequenceNumber = lsn;
+                appliedLogSequenceNumber = lsn;
+                logger.info("Loaded snapshot of {} keys at LSN {}", entries.size(), lsn);
+                return;
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Skipping unreadable snapshot {}", path, e);
+                entries.clear();
+            }
+        }
+    }
+
+    private void readSnapshot(Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < SNAPSHOT_HEADER_SIZE + Integer.BYTES) {
+            throw new IOException("Truncated snapshot");
+        }
+
+        int bodyLength = buffer.limit() - Integer.BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, bodyLength);
+        if ((int) crc.getValue() != buffer.getInt(bodyLength)) {
+            throw new IOException("Snapshot checksum mismatch");
+        }
+        buffer.limit(bodyLength);
+
+        int version = buffer.getInt();
+        if (version != SNAPSHOT_FORMAT_VERSION) {
+            throw new IOException("Unsupported snapshot format version " + version);
+        }
+        buffer.getLong(); // LSN, also encoded in the file name
+        int count = buffer.getInt();
+
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[buffer.getInt()];
+            buffer.get(key);
+            byte[] value = new byte[buffer.getInt()];
+            buffer.get(value);
+            entries.put(key, value);
+        }
+    }
+
+    /**
+     * Applies the PUT and DELETE records written after the loaded snapshot. Records of other
+     * types are skipped by the filtered scan without reading their payload, and so are the later
+     * fragments of streamed values, which are read through their first fragment instead. A
+     * streamed value whose last fragment never made it to the log was never acknowledged and is
+     * left out.
+     */
+    private void replay() {
+        WALFilter filter = WALFilter.newBuilder()
+                .setFromLogSequenceNumber(snapshotLogSequenceNumber + 1)
+                .addType(putType)
+                .addType(deleteType)
+                .build();
+
+        long replayed = 0;
+        try (WALMappedCursor cursor = wal.mappedCursor(filter)) {
+            while (cursor.advance()) {
+                WALRecord record = cursor.toRecord();
+                if (record.getType() == putType) {
+                    byte[] value = record.getFragment() == WALRecord.Fragment.FIRST
+                            ? readStreamedValue(record.getLogSequenceNumber())
+                            : record.getData();
+                    if (value == null) {
+                        continue;
+                    }
+                    apply(record.getKey(), value);
+                } else {
+                    apply(record.getKey(), null);
+                }
+                appliedLogSequenceNumber = record.getLogSequenceNumber();
+                replayed++;
+            }
+        }
+        logger.info("Replayed {} WAL records after snapshot LSN {}", replayed, snapshotLogSequenceNumber);
+    }
+
+    private byte[] readStreamedValue(long logSequenceNumber) {
+        try (InputStream in = wal.openRecordStream(logSequenceNumber)) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            logger.warn("Skipping the put at LSN {}: its value cannot be read back", logSequenceNumber, e);
+            return null;
+        }
+    }
+
+    private void deleteOldSnapshots() {
+        List<Long> snapshots = getAllSnapshotLogSequenceNumbers(snapshotDirectoryPath);
+        for (long lsn : snapshots.subList(Math.min(SNAPSHOTS_TO_KEEP, snapshots.size()), snapshots.size())) {
+            try {
+                Files.deleteIfExists(Path.of(getSnapshotFilePath(snapshotDirectoryPath, lsn)));
+            } catch (IOException e) {
+                logger.warn("Failed to delete old snapshot at LSN {}", lsn, e);
+            }
+        }
+    }
+}
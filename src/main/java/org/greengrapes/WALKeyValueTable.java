@@ -0,0 +1,286 @@
+package org.greengrapes;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Off-heap hash table for {@link WALKeyValueStore}. Keys and values are copied into direct chunks
+ * as {@code [int keyLength][int valueLength][key][value]}, and the heap only holds one open
+ * addressing slot per key: the entry's address and the key's hash, in two primitive arrays.
+ * <p>
+ * Entries are never changed in place. A put appends a new entry and repoints the slot, and the
+ * bytes of replaced and removed entries are reclaimed by copying the live entries into fresh
+ * chunks once they outweigh them. A {@link Cut} can therefore be read without any lock while the
+ * table keeps changing, since it only refers to chunks and entries that stay as they are.
+ * <p>
+ * Not thread-safe: the store serializes mutations and guards reads against them.
+ */
+final class WALKeyValueTable {
+    static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final int ENTRY_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final long EMPTY = 0;
+    private static final long REMOVED = -1;
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private long[] addresses = new long[INITIAL_CAPACITY]; // (chunk index + 1) << 32 | offset, or EMPTY / REMOVED
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private int size;
+    private int usedSlots; // live and removed
+    private int fillOffset = CHUNK_SIZE; // in the last chunk; the first put allocates one
+    private long liveBytes;
+    private long wastedBytes;
+
+    byte[] get(byte[] key) {
+        int slot = find(key, hash(key));
+        if (slot < 0) {
+            return null;
+        }
+        long address = addresses[slot];
+        ByteBuffer chunk = chunk(address);
+        int offset = offset(address);
+        byte[] value = new byte[chunk.getInt(offset + Integer.BYTES)];
+        chunk.get(offset + ENTRY_HEADER_SIZE + chunk.getInt(offset), value);
+        return value;
+    }
+
+    boolean containsKey(byte[] key) {
+        return find(key, hash(key)) >= 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Off-heap bytes allocated to the chunks, live or not.
+     */
+    long allocatedBytes() {
+        return chunks.stream().mapToLong(ByteBuffer::capacity).sum();
+    }
+
+    void put(byte[] key, byte[] value) {
+        int hash = hash(key);
+        long address = append(key, value);
+        int slot = find(key, hash);
+        if (slot >= 0) {
+            wastedBytes += entrySize(addresses[slot]);
+            liveBytes -= entrySize(addresses[slot]);
+            addresses[slot] = address;
+        } else {
+            slot = freeSlot(hash);
+            if (addresses[slot] == EMPTY) {
+                usedSlots++;
+            }
+            addresses[slot] = address;
+            hashes[slot] = hash;
+            size++;
+        }
+        liveBytes += entrySize(address);
+
+        if (usedSlots * 2 > addresses.length) {
+            resize();
+        }
+        if (wastedBytes > liveBytes && wastedBytes >= CHUNK_SIZE) {
+            compactChunks();
+        }
+    }
+
+    boolean remove(byte[] key) {
+        int slot = find(key, hash(key));
+        if (slot < 0) {
+            return false;
+        }
+        long entrySize = entrySize(addresses[slot]);
+        wastedBytes += entrySize;
+        liveBytes -= entrySize;
+        addresses[slot] = REMOVED;
+        size--;
+        if (wastedBytes > liveBytes && wastedBytes >= CHUNK_SIZE) {
+            compactChunks();
+        }
+        return true;
+    }
+
+    void clear() {
+        chunks.clear();
+        addresses = new long[INITIAL_CAPACITY];
+        hashes = new int[INITIAL_CAPACITY];
+        size = 0;
+        usedSlots = 0;
+        fillOffset = CHUNK_SIZE;
+        liveBytes = 0;
+        wastedBytes = 0;
+    }
+
+    /**
+     * Returns the current entries. The cut copies the slot addresses but shares the chunks, which
+     * later mutations never overwrite.
+     */
+    Cut cut() {
+        return new Cut(addresses.clone(), List.copyOf(chunks), size);
+    }
+
+    interface EntryConsumer<E extends Exception> {
+        /**
+         * @param key   read-only view of the key, valid for as long as the cut is
+         * @param value read-only view of the value, valid for as long as the cut is
+         */
+        void accept(ByteBuffer key, ByteBuffer value) throws E;
+    }
+
+    static final class Cut {
+        private final long[] addresses;
+        private final List<ByteBuffer> chunks;
+        private final int size;
+
+        private Cut(long[] addresses, List<ByteBuffer> chunks, int size) {
+            this.addresses = addresses;
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        int size() {
+            return size;
+        }
+
+        <E extends Exception> void forEach(EntryConsumer<E> consumer) throws E {
+            for (long address : addresses) {
+                if (address == EMPTY || address == REMOVED) {
+                    continue;
+                }
+                ByteBuffer chunk = chunks.get((int) (address >>> 32) - 1);
+                int offset = offset(address);
+                int keyLength = chunk.getInt(offset);
+                int valueLength = chunk.getInt(offset + Integer.BYTES);
+                int keyOffset = offset + ENTRY_HEADER_SIZE;
+                consumer.accept(chunk.slice(keyOffset, keyLength).asReadOnlyBuffer(),
+                        chunk.slice(keyOffset + keyLength, valueLength).asReadOnlyBuffer());
+            }
+        }
+    }
+
+    private long append(byte[] key, byte[] value) {
+        int entrySize = ENTRY_HEADER_SIZE + key.length + value.length;
+        if (entrySize > CHUNK_SIZE) {
+            // Gets a chunk of its own, and later entries still go to a fresh regular chunk.
+            chunks.add(allocate(entrySize));
+            fillOffset = CHUNK_SIZE;
+            return write(chunks.size() - 1, 0, key, value);
+        }
+        if (CHUNK_SIZE - fillOffset < entrySize) {
+            chunks.add(allocate(CHUNK_SIZE));
+            fillOffset = 0;
+        }
+        long address = write(chunks.size() - 1, fillOffset, key, value);
+        fillOffset += entrySize;
+        return address;
+    }
+
+    private long write(int chunkIndex, int offset, byte[] key, byte[] value) {
+        chunks.get(chunkIndex)
+                .putInt(offset, key.length)
+                .putInt(offset + Integer.BYTES, value.length)
+                .put(offset + ENTRY_HEADER_SIZE, key)
+                .put(offset + ENTRY_HEADER_SIZE + key.length, value);
+        return ((long) (chunkIndex + 1) << 32) | offset;
+    }
+
+    /**
+     * Copies the live entries into fresh chunks. Chunks still referenced by a cut stay readable
+     * and are freed with it.
+     */
+    private void compactChunks() {
+        long[] oldAddresses = addresses;
+        List<ByteBuffer> oldChunks = List.copyOf(chunks);
+        chunks.clear();
+        fillOffset = CHUNK_SIZE;
+        for (int slot = 0; slot < oldAddresses.length; slot++) {
+            long address = oldAddresses[slot];
+            if (address == EMPTY || address == REMOVED) {
+                continue;
+            }
+            ByteBuffer chunk = oldChunks.get((int) (address >>> 32) - 1);
+            int offset = offset(address);
+            byte[] key = new byte[chunk.getInt(offset)];
+            byte[] value = new byte[chunk.getInt(offset + Integer.BYTES)];
+            chunk.get(offset + ENTRY_HEADER_SIZE, key);
+            chunk.get(offset + ENTRY_HEADER_SIZE + key.length, value);
+            addresses[slot] = append(key, value);
+        }
+        wastedBytes = 0;
+    }
+
+    private void resize() {
+        long[] oldAddresses = addresses;
+        int[] oldHashes = hashes;
+        int capacity = Integer.highestOneBit(Math.max(INITIAL_CAPACITY, size * 4) - 1) << 1;
+        addresses = new long[capacity];
+        hashes = new int[capacity];
+        usedSlots = size;
+        for (int slot = 0; slot < oldAddresses.length; slot++) {
+            long address = oldAddresses[slot];
+            if (address != EMPTY && address != REMOVED) {
+                int target = freeSlot(oldHashes[slot]);
+                addresses[target] = address;
+                hashes[target] = oldHashes[slot];
+            }
+        }
+    }
+
+    private int find(byte[] key, int hash) {
+        int mask = addresses.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long address = addresses[slot];
+            if (address == EMPTY) {
+                return -1;
+            }
+            if (address != REMOVED && hashes[slot] == hash && keyEquals(address, key)) {
+                return slot;
+            }
+        }
+    }
+
+    private int freeSlot(int hash) {
+        int mask = addresses.length - 1;
+        int slot = hash & mask;
+        while (addresses[slot] != EMPTY && addresses[slot] != REMOVED) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean keyEquals(long address, byte[] key) {
+        ByteBuffer chunk = chunk(address);
+        int offset = offset(address);
+        return chunk.getInt(offset) == key.length
+                && chunk.slice(offset + ENTRY_HEADER_SIZE, key.length).mismatch(ByteBuffer.wrap(key)) < 0;
+    }
+
+    private long entrySize(long address) {
+        ByteBuffer chunk = chunk(address);
+        int offset = offset(address);
+        return ENTRY_HEADER_SIZE + (long) chunk.getInt(offset) + chunk.getInt(offset + Integer.BYTES);
+    }
+
+    private ByteBuffer chunk(long address) {
+        return chunks.get((int) (address >>> 32) - 1);
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    private static int hash(byte[] key) {
+        int hash = Arrays.hashCode(key);
+        return hash ^ (hash >>> 16);
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,478 @@
+package org.greengrapes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Hosts many independent logs in one process with a fixed number of threads and a bounded number
+ * of open files. Each log lives in its own subdirectory of the root directory and is addressed by
+ * name; it is opened on first use and closed again when it falls out of the LRU of open logs.
+ * <p>
+ * All logs share one scheduler for periodic flushes, one for retention, one for compaction and one
+ * executor for segment rotation, so one log's unlinks never hold up another log's flushes and a long
+ * compaction pass never holds up retention. Commits go through
+ * one sync thread per device, which fsyncs the logs with pending commits in batches: concurrent
+ * commits to the same log share one fsync, and every log of a batch is written out before the
+ * first of them is fsynced, so the file system can fold the whole batch into one journal commit.
+ * A device never sees more than one fsync at a time from this manager.
+ * <p>
+ * Logs are only reachable through the manager, so a log can be closed behind the caller's back
+ * whenever no call is using it. Do not keep the {@link WAL} passed to {@link #withLog} around.
+ */
+public class WALManager implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(WALManager.class);
+
+    private final Path rootDirectoryPath;
+    private final boolean immediateFsync;
+    private final long maxSegmentSize;
+    private final long maxSegments;
+    private final WALOptions options;
+    private final int maxOpenLogs;
+
+    private final ScheduledExecutorService flushScheduler;
+    private final ExecutorService rotationExecutor;
+    private final ScheduledExecutorService retentionScheduler;
+    private final ScheduledExecutorService compactionScheduler;
+    private final WALExecutors executors;
+
+    private final Map<String, LogHandle> logs = new LinkedHashMap<>(16, 0.75f, true); // access order, guarded by itself
+    private final Map<FileStore, DeviceSyncer> syncers = new ConcurrentHashMap<>();
+    private final AtomicInteger openLogCount = new AtomicInteger();
+    private volatile boolean closed;
+
+    private WALManager(Builder builder) {
+        this.rootDirectoryPath = Path.of(builder.rootDirectoryPath);
+        this.immediateFsync = builder.immediateFsync;
+        this.maxSegmentSize = builder.maxSegmentSize;
+        this.maxSegments = builder.maxSegments;
+        this.options = builder.options;
+        this.maxOpenLogs = builder.maxOpenLogs;
+
+        try {
+            Files.createDirectories(rootDirectoryPath);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create WAL root directory " + rootDirectoryPath, e);
+        }
+
+        this.flushScheduler = Executors.newScheduledThreadPool(builder.flushThreads, daemonThreadFactory("wal-manager-flusher"));
+        this.rotationExecutor = Executors.newFixedThreadPool(builder.rotationThreads, daemonThreadFactory("wal-manager-rotation"));
+        this.retentionScheduler = Executors.newScheduledThreadPool(builder.retentionThreads,
+                daemonThreadFactory("wal-manager-retention"));
+        this.compactionScheduler = Executors.newScheduledThreadPool(builder.compactionThreads,
+                daemonThreadFactory("wal-manager-compaction"));
+        this.executors = new WALExecutors(flushScheduler, rotationExecutor, retentionScheduler, compactionScheduler);
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * @return the LSN assigned to the record
+     */
+    public long write(String name, byte[] data) {
+        return withLog(name, wal -> wal.write(data));
+    }
+
+    /**
+     * @return the LSN assigned to the record
+     */
+    public long write(String name, int type, byte[] key, byte[] data) {
+        return withLog(name, wal -> wal.write(type, key, data));
+    }
+
+    public void flush(String name) {
+        withLog(name, wal -> {
+            wal.flush();
+            return null;
+        });
+    }
+
+    /**
+     * Makes everything written to the log so far durable. The fsync is issued by the device's sync
+     * thread and shared with other commits to the same log that arrive while it is queued.
+     */
+    public void commit(String name) {
+        LogHandle handle = acquire(name);
+        try {
+            syncerFor(handle).requestSync(handle).join();
+        } finally {
+            release(handle);
+        }
+    }
+
+    public List<WALRecord> readAll(String name) {
+        return withLog(name, WAL::readAll);
+    }
+
+    public long getLastLogSequenceNumber(String name) {
+        return withLog(name, WAL::getLastLogSequenceNumber);
+    }
+
+    /**
+     * Runs {@code action} with the log open. The log is not closed while the action runs, but may
+     * be closed at any time afterwards, so the action must not let the WAL or its cursors escape.
+     */
+    public <T> T withLog(String name, Function<WAL, T> action) {
+        LogHandle handle = acquire(name);
+        try {
+            return action.apply(handle.wal);
+        } finally {
+            release(handle);
+        }
+    }
+
+    /**
+     * Number of logs currently holding open segment files.
+     */
+    public int getOpenLogCount() {
+        return openLogCount.get();
+    }
+
+    /**
+     * Closes every open log and stops the shared threads.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        List<LogHandle> handles;
+        synchronized (logs) {
+            handles = new ArrayList<>(logs.values());
+            logs.clear();
+        }
+        for (LogHandle handle : handles) {
+            synchronized (handle) {
+                closeLog(handle);
+            }
+        }
+
+        syncers.values().forEach(DeviceSyncer::close);
+        shutdown(rotationExecutor);
+        shutdown(retentionScheduler);
+        shutdown(compactionScheduler);
+        shutdown(flushScheduler);
+    }
+
+    private LogHandle acquire(String name) {
+        if (closed) {
+            throw new IllegalStateException("WAL manager is closed");
+        }
+        validateName(name);
+
+        LogHandle handle;
+        synchronized (logs) {
+            handle = logs.computeIfAbsent(name, n -> new LogHandle(rootDirectoryPath.resolve(n)));
+        }
+
+        boolean opened = false;
+        synchronized (handle) {
+            handle.users++;
+            if (handle.wal == null) {
+                try {
+                    handle.wal = openLog(handle.directoryPath);
+                } catch (RuntimeException e) {
+                    handle.users--;
+                    throw e;
+                }
+                openLogCount.incrementAndGet();
+                opened = true;
+            }
+        }
+
+        if (opened) {
+            evictIdleLogs();
+        }
+        return handle;
+    }
+
+    private void release(LogHandle handle) {
+        synchronized (handle) {
+            handle.users--;
+        }
+    }
+
+    private WAL openLog(Path directoryPath) {
+        WALOptions logOptions = options;
+        if (options.hasArchiveDirectoryPath()) {
+            // Each log archives into its own subdirectory so archived segment names cannot collide.
+            logOptions = options.toBuilder()
+                    .setArchiveDirectoryPath(Path.of(options.getArchiveDirectoryPath())
+                            .resolve(directoryPath.getFileName()).toString())
+                    .build();
+        }
+        return WAL.openWAL(directoryPath.toString(), immediateFsync, maxSegmentSize, maxSegments, logOptions, executors);
+    }
+
+    /**
+     * Closes least recently used logs that nobody is using until at most {@code maxOpenLogs} are open.
+     * Logs in use are skipped, so the limit can be exceeded while more logs than that are busy.
+     */
+    private void evictIdleLogs() {
+        if (openLogCount.get() <= maxOpenLogs) {
+            return;
+        }
+
+        List<LogHandle> candidates;
+        synchronized (logs) {
+            candidates = new ArrayList<>(logs.values()); // least recently used first
+        }
+        for (LogHandle handle : candidates) {
+            if (openLogCount.get() <= maxOpenLogs) {
+                return;
+            }
+            synchronized (handle) {
+                if (handle.users == 0) {
+                    closeLog(handle);
+                }
+            }
+        }
+    }
+
+    private void closeLog(LogHandle handle) {
+        if (handle.wal == null) {
+            return;
+        }
+        try {
+            handle.wal.close();
+        } catch (RuntimeException e) {
+            logger.warn("Failed to close WAL {}", handle.directoryPath, e);
+        }
+        handle.wal = null;
+        openLogCount.decrementAndGet();
+    }
+
+    /**
+     * The sync thread of the log's device, resolved on the first commit only: looking up the file
+     * store costs a stat and a scan of the mount table.
+     */
+    private DeviceSyncer syncerFor(LogHandle handle) {
+        DeviceSyncer syncer = handle.syncer;
+        if (syncer == null) {
+            FileStore device;
+            try {
+                device = Files.getFileStore(handle.directoryPath);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to resolve the device of " + handle.directoryPath, e);
+            }
+            syncer = syncers.computeIfAbsent(device, d -> new DeviceSyncer(d.name()));
+            handle.syncer = syncer;
+        }
+        return syncer;
+    }
+
+    private static void validateName(String name) {
+        if (name == null || name.isEmpty() || name.equals(".") || name.equals("..")
+                || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0) {
+            throw new IllegalArgumentException("Invalid WAL name: " + name);
+        }
+    }
+
+    private static void shutdown(ExecutorService executor) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ThreadFactory daemonThreadFactory(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * A hosted log. {@code wal} and {@code users} are guarded by the handle's monitor.
+     */
+    private static final class LogHandle {
+        private final Path directoryPath;
+        private WAL wal;
+        private int users;
+        private volatile DeviceSyncer syncer; // the log's directory never changes device
+
+        LogHandle(Path directoryPath) {
+            this.directoryPath = directoryPath;
+        }
+    }
+
+    /**
+     * Serializes fsyncs for one device. Requests are collected until the sync thread picks them up;
+     * each log in a batch is committed once however many requests it received. The whole batch is
+     * written to the file system before the first fsync, so with a journaling file system that
+     * fsync commits the metadata of every log in the batch and the ones after it have little left
+     * to do.
+     */
+    private static final class DeviceSyncer {
+        private final ExecutorService executor;
+        private Map<LogHandle, CompletableFuture<Void>> pending = new LinkedHashMap<>(); // guarded by this
+
+        DeviceSyncer(String deviceName) {
+            this.executor = Executors.newSingleThreadExecutor(daemonThreadFactory("wal-sync-" + deviceName));
+        }
+
+        CompletableFuture<Void> requestSync(LogHandle handle) {
+            synchronized (this) {
+                boolean idle = pending.isEmpty();
+                CompletableFuture<Void> future = pending.computeIfAbsent(handle, h -> new CompletableFuture<>());
+                if (idle) {
+                    executor.execute(this::syncPending);
+                }
+                return future;
+            }
+        }
+
+        private void syncPending() {
+            Map<LogHandle, CompletableFuture<Void>> batch;
+            synchronized (this) {
+                batch = pending;
+                pending = new LinkedHashMap<>();
+            }
+
+            // Requesters hold their handle until the future completes, so every WAL here is open.
+            for (Map.Entry<LogHandle, CompletableFuture<Void>> entry : batch.entrySet()) {
+                try {
+                    entry.getKey().wal.writeOut();
+                } catch (RuntimeException e) {
+                    entry.getValue().completeExceptionally(e);
+                }
+            }
+            for (Map.Entry<LogHandle, CompletableFuture<Void>> entry : batch.entrySet()) {
+                if (entry.getValue().isDone()) {
+                    continue; // the write-out failed
+                }
+                // A log whose previous segment is still being sealed is committed once it is, as a
+                // later task on this thread, rather than holding up the rest of the batch.
+                CompletableFuture<Void> requested = entry.getValue();
+                try {
+                    entry.getKey().wal.commitAsync(executor).whenComplete((ignored, error) -> {
+                        if (error != null) {
+                            requested.completeExceptionally(error);
+                        } else {
+                            requested.complete(null);
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    requested.completeExceptionally(e);
+                }
+            }
+        }
+
+        void close() {
+            shutdown(executor);
+        }
+    }
+
+    public static class Builder {
+        private String rootDirectoryPath;
+        private boolean immediateFsync;
+        private long maxSegmentSize = 64L * 1024 * 1024;
+        private long maxSegments = 10;
+        private WALOptions options = WALOptions.getDefaultInstance();
+        private int maxOpenLogs = 1024;
+        private int flushThreads = 2;
+        private int rotationThreads = 2;
+        private int retentionThreads = 1;
+        private int compactionThreads = 1;
+
+        private Builder() {
+        }
+
+        public Builder setRootDirectoryPath(String rootDirectoryPath) {
+            this.rootDirectoryPath = rootDirectoryPath;
+            return this;
+        }
+
+        public Builder setImmediateFsync(boolean immediateFsync) {
+            this.immediateFsync = immediateFsync;
+            return this;
+        }
+
+        public Builder setMaxSegmentSize(long maxSegmentSize) {
+            this.maxSegmentSize = maxSegmentSize;
+            return this;
+        }
+
+        public Builder setMaxSegments(long maxSegments) {
+            this.maxSegments = maxSegments;
+            return this;
+        }
+
+        /**
+         * Options applied to every log. An archive directory gets one subdirectory per log.
+         */
+        public Builder setOptions(WALOptions options) {
+            this.options = options;
+            return this;
+        }
+
+        /**
+         * Logs kept open at once; idle logs beyond this are closed, least recently used first.
+         */
+        public Builder setMaxOpenLogs(int maxOpenLogs) {
+            this.maxOpenLogs = maxOpenLogs;
+            return this;
+        }
+
+        public Builder setFlushThreads(int flushThreads) {
+            this.flushThreads = flushThreads;
+            return this;
+        }
+
+        public Builder setRotationThreads(int rotationThreads) {
+            this.rotationThreads = rotationThreads;
+            return this;
+        }
+
+        /**
+         * Threads for retention passes, which delete and archive segments.
+         */
+        public Builder setRetentionThreads(int retentionThreads) {
+            this.retentionThreads = retentionThreads;
+            return this;
+        }
+
+        /**
+         * Threads for compaction passes of logs with compaction enabled.
+         */
+        public Builder setCompactionThreads(int compactionThreads) {
+            this.compactionThreads = compactionThreads;
+            return this;
+        }
+
+        public WALManager build() {
+            if (rootDirectoryPath == null) {
+                throw new IllegalArgumentException("Root directory path is required");
+            }
+            if (maxOpenLogs < 1 || flushThreads < 1 || rotationThreads < 1 || retentionThreads < 1
+                    || compactionThreads < 1) {
+                throw new IllegalArgumentException("Open log and thread limits must be positive");
+            }
+            return new WALManager(this);
+        }
+    }
+}
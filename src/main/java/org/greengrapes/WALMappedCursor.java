@@ -0,0 +1,273 @@
+package org.greengrapes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Deque;
+import java.util.zip.GZIPInputStream;
+
+import static org.greengrapes.WALSegmentReader.MAX_ENTRY_SIZE;
+
+/**
+ * Zero-copy cursor that memory-maps segments and exposes each record's payload as a read-only
+ * view into the mapping. The cursor itself is the record: after {@link #advance()} returns true,
+ * the getters describe the current record.
+ * <p>
+ * The buffer returned by {@link #getData()} is reused and repositioned on every advance and must
+ * not be used once the cursor has moved on or been closed. Nothing is allocated per record;
+ * archived segments are decompressed once into a heap buffer per segment. Live segments are
+ * leased until the cursor moves past them, so retention does not remove them in the meantime.
+ */
+public class WALMappedCursor implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(WALMappedCursor.class);
+    private static final int SIZE_PREFIX_BYTES = WALFormat.SIZE_PREFIX_BYTES;
+
+    private final String archiveDirectoryPath;
+    private final WALFilter filter;
+    private final Checksum checksum;
+    private final WALSegmentLeases.Lease lease;
+    private final Deque<WALSegmentSource> sources;
+    private final WALEntryView view = new WALEntryView();
+    private final Runnable onClose;
+
+    private ByteBuffer segment;
+    private long segmentNumber;
+    private ByteBuffer data;
+    private ByteBuffer key;
+    private int position;
+    private int version;
+    private int trailerSize;
+    private boolean blockAligned;
+    private boolean closed;
+
+    /**
+     * @param onClose run once when the cursor is closed or runs out, e.g. to release a read lease
+     */
+    WALMappedCursor(WALSegmentLeases.Lease lease, String archiveDirectoryPath, WALFilter filter, Checksum checksum, Runnable onClose) {
+        this.archiveDirectoryPath = archiveDirectoryPath;
+        this.filter = filter;
+        this.checksum = checksum;
+        this.onClose = onClose;
+        this.lease = lease;
+        this.sources = lease.sources();
+    }
+
+    /**
+     * Moves to the next record that matches the filter. Only the header of each entry is decoded
+     * to evaluate the filter; the payload of a match is checksummed, others are skipped untouched.
+     *
+     * @return false once every segment has been read or the scan has passed the LSN range
+     */
+    public boolean advance() {
+        try {
+            while (true) {
+                if (segment == null && !mapNextSource()) {
+                    close();
+                    return false;
+                }
+
+                int limit = segment.limit();
+                if (position + SIZE_PREFIX_BYTES > limit) {
+                    release();
+                    continue;
+                }
+
+                int frameStart = position;
+                int size = segment.getInt(position);
+                if (blockAligned) {
+                    if (WALFormat.isPadding(position, size)) {
+                        position -= size;
+                        continue;
+                    }
+                    if (!WALFormat.fitsInBlock(position, size)) {
+                        skipDamagedBlock(frameStart, "invalid entry size " + size);
+                        continue;
+                    }
+                }
+                if (size <= 0 || size > MAX_ENTRY_SIZE) {
+                    throw new IOException("Invalid WAL entry size: " + size);
+                }
+                if ((long) position + SIZE_PREFIX_BYTES + size + trailerSize > limit) {
+                    release(); // frame only partially flushed
+                    continue;
+                }
+                if (trailerSize > 0 && segment.getInt(position + SIZE_PREFIX_BYTES + size) != size) {
+                    if (blockAligned) {
+                        skipDamagedBlock(frameStart, "frame trailer does not match its size prefix " + size);
+                        continue;
+                    }
+                    throw new IOException("WAL frame trailer does not match its size prefix " + size);
+                }
+
+                try {
+                    view.decode(segment, position + SIZE_PREFIX_BYTES, size);
+                } catch (IOException e) {
+                    if (blockAligned) {
+                        skipDamagedBlock(frameStart, e.getMessage());
+                        continue;
+                    }
+                    throw e;
+                }
+                position += SIZE_PREFIX_BYTES + size + trailerSize;
+
+                if (filter.isPastRange(view.getLogSequenceNumber())) {
+                    close();
+                    return false;
+                }
+                if (filter.matches(view, segment)) {
+                    data.limit(view.getDataOffset() + view.getDataLength()).position(view.getDataOffset());
+                    key.limit(view.getKeyOffset() + view.getKeyLength()).position(view.getKeyOffset());
+                    try {
+                        checksum.verify(view.getLogSequenceNumber(), view.getType(), key, data, view.isCheckpoint(),
+                                view.getFragment(), view.getFragmentOf(), view.getRecordCRC(), view.getCRC(), version);
+                    } catch (IllegalStateException e) {
+                        if (blockAligned) {
+                            skipDamagedBlock(frameStart, e.getMessage());
+                            continue;
+                        }
+                        throw e;
+                    }
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public long getLogSequenceNumber() {
+        return view.getLogSequenceNumber();
+    }
+
+    public boolean isCheckpoint() {
+        return view.isCheckpoint();
+    }
+
+    public int getType() {
+        return view.getType();
+    }
+
+    public WALRecord.Fragment getFragment() {
+        return WALRecord.Fragment.forNumber(view.getFragment());
+    }
+
+    /**
+     * Read-only view of the current key, empty if the record has none. Same lifetime as {@link #getData()}.
+     */
+    public ByteBuffer getKey() {
+        return key;
+    }
+
+    /**
+     * Read-only view of the current payload between its position and limit.
+     */
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    /**
+     * Copies the current record out of the mapping.
+     */
+    public WALRecord toRecord() {
+        byte[] keyBytes = new byte[key.remaining()];
+        key.duplicate().get(keyBytes);
+        byte[] dataBytes = new byte[data.remaining()];
+        data.duplicate().get(dataBytes);
+        return new WALRecord(view.getLogSequenceNumber(), view.getType(), keyBytes, view.isCheckpoint(), getFragment(), view.getFragmentOf(),
+                dataBytes);
+    }
+
+    @Override
+    public void close() {
+        release();
+        sources.clear();
+        lease.close();
+        if (!closed) {
+            closed = true;
+            onClose.run();
+        }
+    }
+
+    private boolean mapNextSource() throws IOException {
+        while (!sources.isEmpty()) {
+            WALSegmentSource source = sources.poll();
+            segmentNumber = source.segmentNumber();
+            try {
+                map(source.preferredPath());
+            } catch (NoSuchFileException e) {
+                Path archivePath = source.fallbackPath(archiveDirectoryPath);
+                if (archivePath == null) {
+                    lease.release(segmentNumber);
+                    logger.warn("WAL segment {} disappeared before it could be read", segmentNumber);
+                    continue;
+                }
+                map(archivePath);
+            }
+
+            if (segment.limit() > position) {
+                return true;
+            }
+            release();
+        }
+        return false;
+    }
+
+    private void map(Path path) throws IOException {
+        segment = mapSegment(path);
+        data = segment.duplicate();
+        key = segment.duplicate();
+        version = WALFormat.detectVersion(segment);
+        position = WALFormat.headerSize(version);
+        trailerSize = WALFormat.trailerSize(version);
+        blockAligned = WALFormat.isBlockAligned(version);
+    }
+
+    /**
+     * Resumes a block-aligned segment at the block after a damaged frame, which is logged.
+     */
+    private void skipDamagedBlock(int frameStart, String problem) {
+        position = (int) WALFormat.skipDamagedBlock(frameStart, segment.limit(), problem);
+    }
+
+    /**
+     * Maps a live segment read-only, or decompresses an archived one into a heap buffer. The
+     * returned buffer is little-endian.
+     */
+    static ByteBuffer mapSegment(Path path) throws IOException {
+        ByteBuffer segment;
+        if (path.getFileName().toString().endsWith(".gz")) {
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(path))) {
+                segment = ByteBuffer.wrap(in.readAllBytes()).asReadOnlyBuffer();
+            }
+        } else {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("WAL segment too large to map: " + size + " bytes");
+                }
+                // The mapping stays valid after the channel is closed.
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        }
+        return segment.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void release() {
+        if (segment != null) {
+            lease.release(segmentNumber);
+        }
+        segment = null;
+        data = null;
+        key = null;
+        position = 0;
+    }
+}
@@ -0,0 +1,209 @@
+package org.greengrapes;
+
+import java.time.Duration;
+
+/**
+ * Optional WAL settings that go beyond the arguments of {@link WAL#openWAL(String, boolean, long, long)}.
+ */
+public class WALOptions {
+    private static final Duration DEFAULT_RETENTION_CHECK_INTERVAL = Duration.ofSeconds(10);
+    private static final Duration DEFAULT_COMPACTION_CHECK_INTERVAL = Duration.ofMinutes(1);
+    private static final Duration DEFAULT_COMPACTION_TOMBSTONE_RETENTION = Duration.ofDays(1);
+    private static final double DEFAULT_COMPACTION_MIN_DIRTY_RATIO = 0.5;
+    private static final WALOptions DEFAULT_INSTANCE = newBuilder().build();
+
+    private final String archiveDirectoryPath;
+    private final long retentionMaxBytes;
+    private final Duration retentionMaxAge;
+    private final Duration retentionCheckInterval;
+    private final boolean compactionEnabled;
+    private final Duration compactionCheckInterval;
+    private final int compactionTombstoneType;
+    private final Duration compactionTombstoneRetention;
+    private final double compactionMinDirtyRatio;
+    private final boolean blockLayout;
+
+    private WALOptions(Builder builder) {
+        this.archiveDirectoryPath = builder.archiveDirectoryPath;
+        this.retentionMaxBytes = builder.retentionMaxBytes;
+        this.retentionMaxAge = builder.retentionMaxAge;
+        this.retentionCheckInterval = builder.retentionCheckInterval;
+        this.compactionEnabled = builder.compactionEnabled;
+        this.compactionCheckInterval = builder.compactionCheckInterval;
+        this.compactionTombstoneType = builder.compactionTombstoneType;
+        this.compactionTombstoneRetention = builder.compactionTombstoneRetention;
+        this.compactionMinDirtyRatio = builder.compactionMinDirtyRatio;
+        this.blockLayout = builder.blockLayout;
+    }
+
+    public static WALOptions getDefaultInstance() {
+        return DEFAULT_INSTANCE;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public Builder toBuilder() {
+        return new Builder()
+                .setArchiveDirectoryPath(archiveDirectoryPath)
+                .setRetentionMaxBytes(retentionMaxBytes)
+                .setRetentionMaxAge(retentionMaxAge)
+                .setRetentionCheckInterval(retentionCheckInterval)
+                .setCompactionEnabled(compactionEnabled)
+                .setCompactionCheckInterval(compactionCheckInterval)
+                .setCompactionTombstoneType(compactionTombstoneType)
+                .setCompactionTombstoneRetention(compactionTombstoneRetention)
+                .setCompactionMinDirtyRatio(compactionMinDirtyRatio)
+                .setBlockLayout(blockLayout);
+    }
+
+    public boolean hasArchiveDirectoryPath() {
+        return archiveDirectoryPath != null;
+    }
+
+    /**
+     * Directory that receives compressed copies of retired segments, or null if they are deleted.
+     */
+    public String getArchiveDirectoryPath() {
+        return archiveDirectoryPath;
+    }
+
+    /**
+     * Upper bound on the total size of live segments in bytes, or 0 for no limit.
+     */
+    public long getRetentionMaxBytes() {
+        return retentionMaxBytes;
+    }
+
+    /**
+     * Sealed segments last modified longer ago than this are retired, or null for no limit.
+     */
+    public Duration getRetentionMaxAge() {
+        return retentionMaxAge;
+    }
+
+    /**
+     * How often the background retention task runs in addition to running after every rotation.
+     */
+    public Duration getRetentionCheckInterval() {
+        return retentionCheckInterval;
+    }
+
+    /**
+     * Whether sealed segments are compacted down to the newest record of each key in the background.
+     */
+    public boolean isCompactionEnabled() {
+        return compactionEnabled;
+    }
+
+    /**
+     * How often the background compaction task checks whether the sealed segments are dirty enough
+     * to compact, in addition to checking after every sealed segment.
+     */
+    public Duration getCompactionCheckInterval() {
+        return compactionCheckInterval;
+    }
+
+    /**
+     * Record type that marks a key as deleted, or 0 if the log has no tombstones.
+     */
+    public int getCompactionTombstoneType() {
+        return compactionTombstoneType;
+    }
+
+    /**
+     * How long a tombstone that is the newest record of its key is kept after its segment was
+     * written, so readers replaying from an older snapshot still see the delete.
+     */
+    public Duration getCompactionTombstoneRetention() {
+        return compactionTombstoneRetention;
+    }
+
+    /**
+     * Fraction of sealed frame bytes that must be obsolete before a compaction pass rewrites anything.
+     */
+    public double getCompactionMinDirtyRatio() {
+        return compactionMinDirtyRatio;
+    }
+
+    /**
+     * Whether new segments are laid out in fixed 32 KB blocks that no frame straddles, so a torn or
+     * corrupted write costs at most the rest of its block instead of the rest of the segment.
+     * Records too large for a block are rejected and have to be written as a stream instead.
+     * Existing segments keep the layout they were written with.
+     */
+    public boolean isBlockLayout() {
+        return blockLayout;
+    }
+
+    public static class Builder {
+        private String archiveDirectoryPath;
+        private long retentionMaxBytes;
+        private Duration retentionMaxAge;
+        private Duration retentionCheckInterval = DEFAULT_RETENTION_CHECK_INTERVAL;
+        private boolean compactionEnabled;
+        private Duration compactionCheckInterval = DEFAULT_COMPACTION_CHECK_INTERVAL;
+        private int compactionTombstoneType;
+        private Duration compactionTombstoneRetention = DEFAULT_COMPACTION_TOMBSTONE_RETENTION;
+        private double compactionMinDirtyRatio = DEFAULT_COMPACTION_MIN_DIRTY_RATIO;
+        private boolean blockLayout;
+
+        private Builder() {
+        }
+
+        public Builder setArchiveDirectoryPath(String archiveDirectoryPath) {
+            this.archiveDirectoryPath = archiveDirectoryPath;
+            return this;
+        }
+
+        public Builder setRetentionMaxBytes(long retentionMaxBytes) {
+            this.retentionMaxBytes = retentionMaxBytes;
+            return this;
+        }
+
+        public Builder setRetentionMaxAge(Duration retentionMaxAge) {
+            this.retentionMaxAge = retentionMaxAge;
+            return this;
+        }
+
+        public Builder setRetentionCheckInterval(Duration retentionCheckInterval) {
+            this.retentionCheckInterval = retentionCheckInterval;
+            return this;
+        }
+
+        public Builder setCompactionEnabled(boolean compactionEnabled) {
+            this.compactionEnabled = compactionEnabled;
+            return this;
+        }
+
+        public Builder setCompactionCheckInterval(Duration compactionCheckInterval) {
+            this.compactionCheckInterval = compactionCheckInterval;
+            return this;
+        }
+
+        public Builder setCompactionTombstoneType(int compactionTombstoneType) {
+            this.compactionTombstoneType = compactionTombstoneType;
+            return this;
+        }
+
+        public Builder setCompactionTombstoneRetention(Duration compactionTombstoneRetention) {
+            this.compactionTombstoneRetention = compactionTombstoneRetention;
+            return this;
+        }
+
+        public Builder setCompactionMinDirtyRatio(double compactionMinDirtyRatio) {
+            this.compactionMinDirtyRatio = compactionMinDirtyRatio;
+            return this;
+        }
+
+        public Builder setBlockLayout(boolean blockLayout) {
+            this.blockLayout = blockLayout;
+            return this;
+        }
+
+        public WALOptions build() {
+            return new WALOptions(this);
+        }
+    }
+}
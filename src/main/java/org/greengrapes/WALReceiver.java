@@ -0,0 +1,120 @@
+package org.greengrapes;
+
+import org.greengrapes.proto.WALEntry;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+import static org.greengrapes.WALSegmentReader.MAX_ENTRY_SIZE;
+import static org.greengrapes.WALShipper.CHUNK_HEADER_SIZE;
+
+/**
+ * Applies chunks produced by a {@link WALShipper} to a local WAL. Every frame is checksum-verified
+ * before it is appended, and the primary's LSNs are kept as-is. Frames at or below the local last
+ * LSN are dropped, so re-shipped ranges are harmless; a frame past the next LSN means records went
+ * missing on the way and is refused, unless the receiver was created to allow gaps.
+ */
+public class WALReceiver {
+    private static final Checksum CHECKSUM = new Checksum();
+    private static final int SIZE_PREFIX_BYTES = WALFormat.SIZE_PREFIX_BYTES;
+
+    private final WAL wal;
+    private final boolean allowGaps;
+    private final ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer sizePrefix = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer sizeTrailer = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer frame = ByteBuffer.allocate(8 * 1024);
+
+    public WALReceiver(WAL wal) {
+        this(wal, false);
+    }
+
+    /**
+     * @param allowGaps accept frames past the next LSN, e.g. from a compacted log or one with a
+     *                  damaged block, leaving the skipped LSNs unused
+     */
+    public WALReceiver(WAL wal, boolean allowGaps) {
+        this.wal = wal;
+        this.allowGaps = allowGaps;
+    }
+
+    /**
+     * Reads chunks until the source reaches end-of-stream.
+     *
+     * @return the last LSN of the local WAL once the stream has been drained
+     */
+    public long receive(ReadableByteChannel source) throws IOException {
+        while (readFully(source, chunkHeader.clear(), true)) {
+            int version = chunkHeader.getInt();
+            long length = chunkHeader.getLong();
+            if (version != WALFormat.VERSION_1 && version != WALFormat.VERSION_2 && version != WALFormat.VERSION_3) {
+                throw new IOException("Unsupported WAL shipping format version: " + version);
+            }
+            int trailerSize = WALFormat.trailerSize(version);
+            boolean blockAligned = WALFormat.isBlockAligned(version);
+
+            while (length > 0) {
+                readFully(source, sizePrefix.clear(), false);
+                int size = sizePrefix.getInt();
+                if (blockAligned && size <= -WALFormat.MIN_PADDING && -size <= length) {
+                    // Block padding between frames; the local WAL pads to its own layout.
+                    readFully(source, frameBuffer(-size - SIZE_PREFIX_BYTES), false);
+                    length += size;
+                    continue;
+                }
+                int frameSize = WALFormat.frameSize(version, size);
+                if (size <= 0 || size > MAX_ENTRY_SIZE || frameSize > length) {
+                    throw new IOException("Invalid WAL entry size: " + size);
+                }
+
+                readFully(source, frameBuffer(size), false);
+                if (trailerSize > 0) {
+                    readFully(source, sizeTrailer.clear(), false);
+                    if (sizeTrailer.getInt() != size) {
+                        throw new IOException("WAL frame trailer does not match its size prefix " + size);
+                    }
+                }
+                WALEntry entry = WALEntry.parseFrom(frame);
+                CHECKSUM.verify(entry, version);
+                long expected = wal.getLastLogSequenceNumber() + 1;
+                if (entry.getLogSequenceNumber() > expected && !allowGaps) {
+                    throw new IOException("Gap in shipped WAL records: expected LSN " + expected + " but got "
+                            + entry.getLogSequenceNumber());
+                }
+                wal.append(entry);
+
+                length -= frameSize;
+            }
+        }
+
+        return wal.getLastLogSequenceNumber();
+    }
+
+    private ByteBuffer frameBuffer(int size) {
+        if (frame.capacity() < size) {
+            frame = ByteBuffer.allocate(Math.max(size, frame.capacity() * 2));
+        }
+        frame.clear().limit(size);
+        return frame;
+    }
+
+    /**
+     * Fills the remaining space of the buffer and flips it for reading. Returns false only when
+     * {@code allowEof} is set and the stream ended cleanly before the first byte.
+     */
+    private static boolean readFully(ReadableByteChannel source, ByteBuffer buffer, boolean allowEof) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer) < 0) {
+                if (allowEof && buffer.position() == 0) {
+                    return false;
+                }
+                throw new EOFException("Unexpected end of WAL shipping stream");
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+}
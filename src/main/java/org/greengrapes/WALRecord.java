@@ -1,19 +1,123 @@
 package org.greengrapes;
 
+import org.greengrapes.proto.WALEntry;
+
 public class WALRecord {
+    private static final byte[] NO_KEY = new byte[0];
+
     private final long logSequenceNumber;
+    private final int type;
+    private final byte[] key;
+    private final boolean checkpoint;
+    private final Fragment fragment;
+    private final long fragmentOf;
     private final byte[] data;
 
     public WALRecord(long logSequenceNumber, byte[] data) {
+        this(logSequenceNumber, 0, NO_KEY, false, data);
+    }
+
+    public WALRecord(long logSequenceNumber, int type, byte[] key, boolean checkpoint, byte[] data) {
+        this(logSequenceNumber, type, key, checkpoint, Fragment.NONE, data);
+    }
+
+    public WALRecord(long logSequenceNumber, int type, byte[] key, boolean checkpoint, Fragment fragment, byte[] data) {
+        this(logSequenceNumber, type, key, checkpoint, fragment, 0, data);
+    }
+
+    public WALRecord(long logSequenceNumber, int type, byte[] key, boolean checkpoint, Fragment fragment, long fragmentOf,
+                     byte[] data) {
         this.logSequenceNumber = logSequenceNumber;
+        this.type = type;
+        this.key = key;
+        this.checkpoint = checkpoint;
+        this.fragment = fragment;
+        this.fragmentOf = fragmentOf;
         this.data = data;
     }
 
+    static WALRecord fromEntry(WALEntry entry) {
+        return new WALRecord(
+                entry.getLogSequenceNumber(),
+                entry.getType(),
+                entry.hasKey() ? entry.getKey().toByteArray() : NO_KEY,
+                entry.getIsCheckpoint(),
+                Fragment.forNumber(entry.getFragment()),
+                entry.getFragmentOf(),
+                entry.getData().toByteArray()
+        );
+    }
+
     public long getLogSequenceNumber() {
         return logSequenceNumber;
     }
 
+    /**
+     * Application-defined record type, or 0 for untyped records.
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Record key, or an empty array for records written without one.
+     */
+    public byte[] getKey() {
+        return key;
+    }
+
+    public boolean isCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Which part of a large streamed record this is, or {@link Fragment#NONE} for a whole record.
+     * Open a streamed record by the LSN of its first fragment with {@link WAL#openRecordStream(long)}.
+     */
+    public Fragment getFragment() {
+        return fragment;
+    }
+
+    /**
+     * LSN of the first fragment of the record this middle or last fragment belongs to, or 0.
+     */
+    public long getFragmentOf() {
+        return fragmentOf;
+    }
+
     public byte[] getData() {
         return data;
     }
+
+    /**
+     * Position of a frame within a record written with {@link WAL#write(int, byte[], java.io.InputStream)}.
+     */
+    public enum Fragment {
+        NONE(0),
+        FIRST(1),
+        MIDDLE(2),
+        LAST(3);
+
+        private final int number;
+
+        Fragment(int number) {
+            this.number = number;
+        }
+
+        /**
+         * Value stored in the {@code fragment} field of a WAL entry.
+         */
+        public int getNumber() {
+            return number;
+        }
+
+        public static Fragment forNumber(int number) {
+            for (Fragment fragment : values()) {
+                if (fragment.number == number) {
+                    return fragment;
+                }
+            }
+            throw new IllegalArgumentException("Unknown fragment marker " + number);
+        }
+    }
 }
@@ -0,0 +1,111 @@
+package org.greengrapes;
+
+import com.google.protobuf.ByteString;
+import org.greengrapes.proto.WALEntry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Streams the payload of one record, following the fragments of a large record through the log.
+ * Only the current fragment is held in memory; fragments of other records and unrelated entries
+ * in between are skipped.
+ */
+final class WALRecordInputStream extends InputStream {
+    private final WALCursor cursor;
+    private final long logSequenceNumber;
+    private final CRC32 recordChecksum = new CRC32();
+
+    private ByteString current;
+    private int offset;
+    private boolean last;
+
+    WALRecordInputStream(WALCursor cursor, long logSequenceNumber) {
+        this.cursor = cursor;
+        this.logSequenceNumber = logSequenceNumber;
+
+        WALEntry first = cursor.hasNext() ? cursor.nextEntry() : null;
+        if (first == null || first.getLogSequenceNumber() != logSequenceNumber) {
+            cursor.close();
+            throw new IllegalArgumentException("No committed record with LSN " + logSequenceNumber);
+        }
+
+        WALRecord.Fragment fragment = WALRecord.Fragment.forNumber(first.getFragment());
+        if (fragment != WALRecord.Fragment.NONE && fragment != WALRecord.Fragment.FIRST) {
+            cursor.close();
+            throw new IllegalArgumentException("LSN " + logSequenceNumber + " is a continuation of record " + first.getFragmentOf());
+        }
+
+        this.current = first.getData();
+        this.last = fragment == WALRecord.Fragment.NONE;
+        recordChecksum.update(current.asReadOnlyByteBuffer());
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        return current.byteAt(offset++) & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        int count = Math.min(len, current.size() - offset);
+        current.copyTo(buffer, offset, off, count);
+        offset += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current.size() - offset;
+    }
+
+    @Override
+    public void close() {
+        cursor.close();
+    }
+
+    /**
+     * Moves to the next fragment once the current one is used up; false at the end of the record.
+     */
+    private boolean ensureAvailable() throws IOException {
+        while (offset == current.size()) {
+            if (last) {
+                return false;
+            }
+            nextFragment();
+        }
+        return true;
+    }
+
+    private void nextFragment() throws IOException {
+        while (cursor.hasNext()) {
+            WALEntry entry = cursor.nextEntry();
+            if (!entry.hasFragmentOf() || entry.getFragmentOf() != logSequenceNumber) {
+                continue;
+            }
+
+            current = entry.getData();
+            offset = 0;
+            recordChecksum.update(current.asReadOnlyByteBuffer());
+
+            if (entry.getFragment() == WALRecord.Fragment.LAST.getNumber()) {
+                last = true;
+                if ((int) recordChecksum.getValue() != entry.getRecordCRC()) {
+                    throw new IOException("Record checksum mismatch for record with LSN " + logSequenceNumber);
+                }
+            }
+            return;
+        }
+        throw new IOException("Record with LSN " + logSequenceNumber + " is incomplete: its last fragment is missing");
+    }
+}
@@ -0,0 +1,405 @@
+package org.greengrapes;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.greengrapes.proto.WALEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+import static org.greengrapes.WALSegmentReader.MAX_ENTRY_SIZE;
+
+/**
+ * Replays records in LSN order with reads running ahead of decoding. A dedicated I/O thread reads
+ * segments sequentially in large chunks into a small pool of buffers while the caller decodes the
+ * previous ones, so replay is limited by disk bandwidth rather than by one read per frame.
+ * <p>
+ * Frames that straddle two chunks are reassembled; the chunk stream crosses segment and archive
+ * boundaries without the caller noticing; each segment's header, if any, is recognised at the start
+ * of its first chunk. A partial frame at the end of a segment is treated as an unflushed tail and
+ * skipped, as in {@link WALSegmentReader}. Each live segment stays leased until the I/O thread has
+ * read it, so retention does not remove segments the replay has yet to reach.
+ */
+public class WALReplayReader implements Iterator<WALRecord>, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(WALReplayReader.class);
+    private static final int SIZE_PREFIX_BYTES = WALFormat.SIZE_PREFIX_BYTES;
+    private static final long SEGMENT_ENDED = Long.MIN_VALUE;
+    private static final Chunk END_OF_STREAM = new Chunk(null, true, null);
+
+    private final long fromLogSequenceNumber;
+    private final long toLogSequenceNumber;
+    private final Checksum checksum;
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+    private final BlockingQueue<Chunk> filledChunks = new LinkedBlockingQueue<>();
+    private final WALSegmentLeases.Lease lease;
+    private final Thread ioThread;
+    private final byte[] intBytes = new byte[Integer.BYTES];
+
+    private Chunk current;
+    private boolean atSegmentStart = true;
+    private int version;
+    private int trailerSize;
+    private boolean blockAligned;
+    private long chunkOffset; // offset within its segment of the current chunk's first byte
+    private WALRecord next;
+    private boolean finished;
+
+    /**
+     * @param bufferCount number of read buffers; 2 gives double buffering, 3 lets a read run while a
+     *                    full buffer waits for the decoder
+     */
+    WALReplayReader(WALSegmentLeases.Lease lease, String archiveDirectoryPath, long fromLogSequenceNumber, long toLogSequenceNumber,
+                    Checksum checksum, int bufferCount, int bufferSize) {
+        if (bufferCount < 2 || bufferSize < SIZE_PREFIX_BYTES) {
+            throw new IllegalArgumentException("Replay needs at least two buffers of at least " + SIZE_PREFIX_BYTES + " bytes");
+        }
+        this.fromLogSequenceNumber = fromLogSequenceNumber;
+        this.toLogSequenceNumber = toLogSequenceNumber;
+        this.checksum = checksum;
+        this.freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            freeBuffers.add(ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN));
+        }
+
+        this.lease = lease;
+        this.ioThread = new Thread(() -> readAhead(lease, archiveDirectoryPath), "wal-replay-io");
+        this.ioThread.setDaemon(true);
+        this.ioThread.start();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (finished) {
+            return false;
+        }
+
+        try {
+            WALEntry entry;
+            while ((entry = nextEntry()) != null) {
+                long lsn = entry.getLogSequenceNumber();
+                if (lsn > toLogSequenceNumber) {
+                    break;
+                }
+                if (lsn >= fromLogSequenceNumber) {
+                    next = WALRecord.fromEntry(entry);
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException(e);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+
+        close();
+        return false;
+    }
+
+    @Override
+    public WALRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        WALRecord record = next;
+        next = null;
+        return record;
+    }
+
+    /**
+     * Stops the I/O thread. Records already returned stay valid.
+     */
+    @Override
+    public void close() {
+        finished = true;
+        current = null;
+        next = null;
+        ioThread.interrupt();
+        lease.close();
+    }
+
+    /**
+     * Decodes the next frame, or returns null once every segment has been consumed.
+     */
+    private WALEntry nextEntry() throws IOException {
+        while (true) {
+            if (current == null && (current = takeChunk()) == null) {
+                return null;
+            }
+
+            if (!current.buffer.hasRemaining()) {
+                recycleCurrent();
+                continue;
+            }
+
+            if (atSegmentStart) {
+                chunkOffset = 0;
+            }
+            long frameStart = segmentOffset();
+            long prefix = readInt();
+            if (prefix == SEGMENT_ENDED) {
+                continue; // partial size prefix at the end of a segment
+            }
+            int size = (int) prefix;
+
+            if (atSegmentStart) {
+                atSegmentStart = false;
+                version = WALFormat.VERSION_1;
+                trailerSize = 0;
+                blockAligned = false;
+                if (size == WALFormat.MAGIC) {
+                    long header = readInt();
+                    if (header != SEGMENT_ENDED) {
+                        version = WALFormat.checkVersion((int) header);
+                        trailerSize = WALFormat.trailerSize(version);
+                        blockAligned = WALFormat.isBlockAligned(version);
+                    }
+                    continue;
+                }
+            }
+
+            if (blockAligned) {
+                if (WALFormat.isPadding(frameStart, size)) {
+                    skipTo(frameStart - size);
+                    continue;
+                }
+                if (!WALFormat.fitsInBlock(frameStart, size)) {
+                    skipDamagedBlock(frameStart, "invalid entry size " + size);
+                    continue;
+                }
+            }
+            if (size <= 0 || size > MAX_ENTRY_SIZE) {
+                throw new IOException("Invalid WAL entry size: " + size);
+            }
+
+            WALEntry entry;
+            try {
+                if (current.buffer.remaining() >= size) {
+                    ByteBuffer frame = current.buffer.duplicate();
+                    frame.limit(frame.position() + size);
+                    current.buffer.position(frame.limit());
+                    entry = WALEntry.parseFrom(frame);
+                } else {
+                    byte[] frame = new byte[size];
+                    if (!readAcrossChunks(frame)) {
+                        continue; // partial frame at the end of a segment
+                    }
+                    entry = WALEntry.parseFrom(frame);
+                }
+            } catch (InvalidProtocolBufferException e) {
+                if (!blockAligned) {
+                    throw e;
+                }
+                skipDamagedBlock(frameStart, e.getMessage());
+                continue;
+            }
+
+            if (trailerSize > 0) {
+                long trailer = readInt();
+                if (trailer == SEGMENT_ENDED) {
+                    continue; // frame written up to its trailer only
+                }
+                if (trailer != size) {
+                    if (blockAligned) {
+                        skipDamagedBlock(frameStart, "frame trailer does not match its size prefix " + size);
+                        continue;
+                    }
+                    throw new IOException("WAL frame trailer does not match its size prefix " + size);
+                }
+            }
+
+            try {
+                checksum.verify(entry, version);
+            } catch (IllegalStateException e) {
+                if (!blockAligned) {
+                    throw e;
+                }
+                skipDamagedBlock(frameStart, e.getMessage());
+                continue;
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Offset within its segment of the next byte of the current chunk.
+     */
+    private long segmentOffset() {
+        return chunkOffset + current.buffer.position();
+    }
+
+    /**
+     * Resumes a block-aligned segment at the block after a damaged frame, which is logged.
+     */
+    private void skipDamagedBlock(long frameStart, String problem) throws IOException {
+        skipTo(WALFormat.skipDamagedBlock(frameStart, Long.MAX_VALUE, problem));
+    }
+
+    /**
+     * Consumes the current segment up to {@code offset}, across chunks, or to its end if it is shorter.
+     */
+    private void skipTo(long offset) throws IOException {
+        while (current != null) {
+            ByteBuffer buffer = current.buffer;
+            long skip = offset - segmentOffset();
+            if (skip <= buffer.remaining()) {
+                buffer.position(buffer.position() + (int) skip);
+                return;
+            }
+            boolean segmentEnded = current.endOfSegment;
+            recycleCurrent();
+            if (segmentEnded) {
+                return;
+            }
+            current = takeChunk();
+        }
+    }
+
+    /**
+     * Reads a little-endian int, from the current chunk or across chunks, or returns
+     * {@link #SEGMENT_ENDED} if the segment ends first.
+     */
+    private long readInt() throws IOException {
+        if (current.buffer.remaining() >= Integer.BYTES) {
+            return current.buffer.getInt();
+        }
+        if (readAcrossChunks(intBytes)) {
+            return ByteBuffer.wrap(intBytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        }
+        return SEGMENT_ENDED;
+    }
+
+    /**
+     * Fills {@code destination} from the current chunk and the following chunks of the same
+     * segment. Returns false, with the rest of the segment consumed, if the segment ends first.
+     */
+    private boolean readAcrossChunks(byte[] destination) throws IOException {
+        int filled = 0;
+        while (current != null) {
+            ByteBuffer buffer = current.buffer;
+            int length = Math.min(buffer.remaining(), destination.length - filled);
+            buffer.get(destination, filled, length);
+            filled += length;
+            if (filled == destination.length) {
+                return true;
+            }
+
+            // The chunk is used up and more bytes are needed.
+            boolean segmentEnded = current.endOfSegment;
+            recycleCurrent();
+            if (segmentEnded) {
+                return false;
+            }
+            current = takeChunk();
+        }
+        return false;
+    }
+
+    private Chunk takeChunk() throws IOException {
+        Chunk chunk;
+        try {
+            chunk = filledChunks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for WAL data", e);
+        }
+        if (chunk.error != null) {
+            throw new IOException("Failed to read WAL segment", chunk.error);
+        }
+        return chunk == END_OF_STREAM ? null : chunk;
+    }
+
+    private void recycleCurrent() {
+        chunkOffset += current.buffer.limit();
+        if (current.endOfSegment) {
+            atSegmentStart = true; // the next chunk starts a segment, which may begin with a header
+        }
+        freeBuffers.add(current.buffer);
+        current = null;
+    }
+
+    /**
+     * Body of the I/O thread: streams every source into chunks, one segment after another.
+     */
+    private void readAhead(WALSegmentLeases.Lease lease, String archiveDirectoryPath) {
+        try {
+            for (WALSegmentSource source : lease.sources()) {
+                try (ReadableByteChannel channel = open(source, archiveDirectoryPath)) {
+                    if (channel != null) {
+                        readSegment(channel);
+                    }
+                } finally {
+                    lease.release(source.segmentNumber()); // read to the end, or given up on
+                }
+            }
+            filledChunks.add(END_OF_STREAM);
+        } catch (InterruptedException e) {
+            // closed by the reader
+        } catch (IOException | RuntimeException e) {
+            if (!Thread.currentThread().isInterrupted()) {
+                filledChunks.add(new Chunk(null, true, e));
+            }
+        }
+    }
+
+    private void readSegment(ReadableByteChannel channel) throws IOException, InterruptedException {
+        boolean endOfSegment = false;
+        while (!endOfSegment) {
+            ByteBuffer buffer = freeBuffers.take();
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    endOfSegment = true;
+                    break;
+                }
+            }
+            buffer.flip();
+            filledChunks.add(new Chunk(buffer, endOfSegment, null));
+        }
+    }
+
+    private static ReadableByteChannel open(WALSegmentSource source, String archiveDirectoryPath) throws IOException {
+        try {
+            return open(source.preferredPath());
+        } catch (NoSuchFileException e) {
+            Path archivePath = source.fallbackPath(archiveDirectoryPath);
+            if (archivePath != null) {
+                return open(archivePath);
+            }
+            logger.warn("WAL segment {} disappeared before it could be read", source.segmentNumber());
+            return null;
+        }
+    }
+
+    private static ReadableByteChannel open(Path path) throws IOException {
+        if (path.getFileName().toString().endsWith(".gz")) {
+            return Channels.newChannel(new GZIPInputStream(Files.newInputStream(path), 64 * 1024));
+        }
+        return FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    /**
+     * A filled buffer, flipped for reading. {@code endOfSegment} marks the last chunk of a segment.
+     */
+    private record Chunk(ByteBuffer buffer, boolean endOfSegment, Throwable error) {
+    }
+}
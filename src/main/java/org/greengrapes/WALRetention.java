@@ -0,0 +1,224 @@
+package org.greengrapes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+import static org.greengrapes.WALUtils.getAllSegmentNumbers;
+import static org.greengrapes.WALUtils.getSegmentFilePath;
+import static org.greengrapes.WALUtils.getSegmentIndexFilePath;
+
+/**
+ * Enforces segment retention on a background thread so appenders never list directories or
+ * unlink files. Segments older than the active one are retired, oldest first, when they exceed
+ * the segment count, the total byte budget, or the maximum age. All segments selected in one pass
+ * are retired as a batch. Segments from {@code firstProtectedSegment} on, i.e. those holding
+ * records after the log's retention floor, are never retired.
+ * <p>
+ * A retired segment that a reader still holds a lease on is deleted or archived only when the last
+ * lease is released, on the releasing thread; until then it no longer counts against the limits.
+ * Deleted segments are reported to {@code segmentRemoved}; archived ones are reported by the archiver.
+ */
+class WALRetention {
+    private static final Logger logger = LoggerFactory.getLogger(WALRetention.class);
+
+    private final String directoryPath;
+    private final long maxSegments;
+    private final long maxBytes;
+    private final Duration maxAge;
+    private final LongSupplier activeSegmentNumber;
+    private final LongSupplier firstProtectedSegment;
+    private final WALArchiver archiver;
+    private final WALSegmentLeases leases;
+    private final LongConsumer segmentRemoved;
+    private final AtomicBoolean runQueued = new AtomicBoolean();
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private final ScheduledFuture<?> periodicTask;
+    private volatile boolean closed;
+
+    WALRetention(String directoryPath, long maxSegments, WALOptions options, LongSupplier activeSegmentNumber,
+                 LongSupplier firstProtectedSegment, WALArchiver archiver, WALSegmentLeases leases, LongConsumer segmentRemoved) {
+        this(directoryPath, maxSegments, options, activeSegmentNumber, firstProtectedSegment, archiver, leases, segmentRemoved, Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "wal-retention");
+            thread.setDaemon(true);
+            return thread;
+        }), true);
+    }
+
+    /**
+     * Runs retention on a scheduler shared with other logs. The scheduler is not shut down on close.
+     */
+    WALRetention(String directoryPath, long maxSegments, WALOptions options, LongSupplier activeSegmentNumber,
+                 LongSupplier firstProtectedSegment, WALArchiver archiver, WALSegmentLeases leases, LongConsumer segmentRemoved,
+                 ScheduledExecutorService scheduler) {
+        this(directoryPath, maxSegments, options, activeSegmentNumber, firstProtectedSegment, archiver, leases, segmentRemoved,
+                scheduler, false);
+    }
+
+    private WALRetention(String directoryPath, long maxSegments, WALOptions options, LongSupplier activeSegmentNumber,
+                         LongSupplier firstProtectedSegment, WALArchiver archiver, WALSegmentLeases leases, LongConsumer segmentRemoved,
+                         ScheduledExecutorService scheduler, boolean ownsScheduler) {
+        this.directoryPath = directoryPath;
+        this.maxSegments = maxSegments;
+        this.maxBytes = options.getRetentionMaxBytes();
+        this.maxAge = options.getRetentionMaxAge();
+        this.activeSegmentNumber = activeSegmentNumber;
+        this.firstProtectedSegment = firstProtectedSegment;
+        this.archiver = archiver;
+        this.leases = leases;
+        this.segmentRemoved = segmentRemoved;
+
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+
+        long interval = options.getRetentionCheckInterval().toMillis();
+        this.periodicTask = scheduler.scheduleWithFixedDelay(this::runSafely, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Asks for a retention pass without waiting for it. Requests that arrive while a pass is
+     * already queued are folded into it.
+     */
+    void trigger() {
+        if (runQueued.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(() -> {
+                    runQueued.set(false);
+                    runSafely();
+                });
+            } catch (RuntimeException e) {
+                runQueued.set(false); // scheduler already shut down
+            }
+        }
+    }
+
+    void close() {
+        closed = true;
+        periodicTask.cancel(false);
+        if (!ownsScheduler) {
+            return;
+        }
+
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(1, TimeUnit.MINUTES)) {
+                scheduler.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs one retention pass on the calling thread and returns the retired segment numbers.
+     */
+    List<Long> enforce() throws IOException {
+        long active = activeSegmentNumber.getAsLong();
+        List<SegmentFile> segments = new ArrayList<>();
+        long totalBytes = 0;
+        int liveCount = 0;
+
+        List<Long> segmentNumbers = getAllSegmentNumbers(directoryPath);
+        segmentNumbers.sort(Long::compareTo);
+        for (long segmentNumber : segmentNumbers) {
+            if (segmentNumber > active) {
+                break; // the pre-opened spare holds no records, so it doesn't count
+            }
+            if (archiver != null && archiver.isPending(segmentNumber)) {
+                continue; // already retired, waiting to be archived
+            }
+            if (leases.isRetired(segmentNumber)) {
+                continue; // already retired, waiting for its readers
+            }
+
+            Path path = Path.of(getSegmentFilePath(directoryPath, segmentNumber));
+            try {
+                long size = Files.size(path);
+                totalBytes += size;
+                liveCount++;
+                if (segmentNumber < active) {
+                    segments.add(new SegmentFile(segmentNumber, size, Files.getLastModifiedTime(path).toMillis()));
+                }
+            } catch (NoSuchFileException e) {
+                // removed concurrently
+            }
+        }
+
+        long ageCutoff = maxAge != null ? System.currentTimeMillis() - maxAge.toMillis() : Long.MIN_VALUE;
+        long protectedFrom = -1; // looked up once something is due, since that reads segment headers
+        List<Long> retired = new ArrayList<>();
+        for (SegmentFile segment : segments) {
+            boolean overCount = liveCount > maxSegments;
+            boolean overBytes = maxBytes > 0 && totalBytes > maxBytes;
+            boolean tooOld = segment.lastModifiedMillis < ageCutoff;
+            if (!overCount && !overBytes && !tooOld) {
+                break; // segments are oldest first, so no later one can qualify either
+            }
+            if (protectedFrom == -1) {
+                protectedFrom = firstProtectedSegment.getAsLong();
+            }
+            if (segment.segmentNumber >= protectedFrom) {
+                break; // holds records after the retention floor, and so do all later ones
+            }
+
+            retired.add(segment.segmentNumber);
+            liveCount--;
+            totalBytes -= segment.size;
+        }
+
+        for (long segmentNumber : retired) {
+            retire(segmentNumber);
+        }
+        return retired;
+    }
+
+    private void retire(long segmentNumber) {
+        leases.retire(segmentNumber, () -> remove(segmentNumber));
+    }
+
+    private void remove(long segmentNumber) {
+        if (archiver != null) {
+            archiver.archive(segmentNumber);
+            return;
+        }
+
+        Path filePath = Path.of(getSegmentFilePath(directoryPath, segmentNumber));
+        try {
+            Files.deleteIfExists(filePath);
+            Files.deleteIfExists(Path.of(getSegmentIndexFilePath(directoryPath, segmentNumber)));
+            segmentRemoved.accept(segmentNumber);
+            logger.info("Deleted WAL segment file: {}", filePath);
+        } catch (IOException e) {
+            logger.warn("Failed to delete WAL segment file: {}", filePath, e);
+        }
+    }
+
+    private void runSafely() {
+        if (closed && !ownsScheduler) {
+            return; // a trigger queued on the shared scheduler after the log was closed
+        }
+        try {
+            enforce();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("WAL retention pass failed in {}", directoryPath, e);
+        }
+    }
+
+    private record SegmentFile(long segmentNumber, long size, long lastModifiedMillis) {
+    }
+}
@@ -0,0 +1,281 @@
+package org.greengrapes;
+
+import org.greengrapes.proto.WALEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static org.greengrapes.WALSegmentReader.MAX_ENTRY_SIZE;
+
+/**
+ * Streams records newest first, from the end of the newest segment back through older and
+ * archived ones, holding at most one segment mapped at a time. Live segments are leased until the
+ * cursor moves past them, so retention does not remove them in the meantime.
+ * <p>
+ * Version 2 segments are walked backwards through their frame trailers, so reading the last few
+ * records only touches those frames. Version 1 segments have no trailers: their size prefixes are
+ * walked forward once to index the frames, as is a version 2 segment whose tail is a partially
+ * written frame. The padding frames of version 3 segments are stepped over in either direction,
+ * and a damaged block of one is skipped: the frames before it are indexed forward, and a frame
+ * that fails its checksum is left out. Walking back through the trailers can still reach intact
+ * frames after the damage in its block, which forward readers give up with the rest of the block.
+ */
+public class WALReverseCursor implements Iterator<WALRecord>, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(WALReverseCursor.class);
+    private static final int SIZE_PREFIX_BYTES = WALFormat.SIZE_PREFIX_BYTES;
+
+    private final String archiveDirectoryPath;
+    private final long fromLogSequenceNumber;
+    private final long toLogSequenceNumber;
+    private final Checksum checksum;
+    private final WALSegmentLeases.Lease lease;
+    private final Deque<WALSegmentSource> sources;
+    private final Runnable onClose;
+
+    private ByteBuffer segment;
+    private long segmentNumber;
+    private int version;
+    private int headerSize;
+    private boolean blockAligned;
+    private int end;            // end of the next frame to return when walking trailers
+    private int[] frameStarts;  // set instead when the segment had to be indexed forward
+    private int frameCount;
+    private WALRecord next;
+    private boolean closed;
+
+    /**
+     * Reads records with an LSN in {@code [fromLogSequenceNumber, toLogSequenceNumber]}, highest first.
+     *
+     * @param onClose run once when the cursor is closed or runs out, e.g. to release a read lease
+     */
+    WALReverseCursor(WALSegmentLeases.Lease lease, String archiveDirectoryPath, long fromLogSequenceNumber, long toLogSequenceNumber,
+                     Checksum checksum, Runnable onClose) {
+        this.onClose = onClose;
+        this.archiveDirectoryPath = archiveDirectoryPath;
+        this.fromLogSequenceNumber = fromLogSequenceNumber;
+        this.toLogSequenceNumber = toLogSequenceNumber;
+        this.checksum = checksum;
+        this.lease = lease;
+        this.sources = lease.sources();
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (next == null) {
+                WALEntry entry = previousEntry();
+                if (entry == null || entry.getLogSequenceNumber() < fromLogSequenceNumber) {
+                    close();
+                    return false;
+                }
+                if (entry.getLogSequenceNumber() <= toLogSequenceNumber) {
+                    next = WALRecord.fromEntry(entry);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public WALRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        WALRecord record = next;
+        next = null;
+        return record;
+    }
+
+    @Override
+    public void close() {
+        release();
+        sources.clear();
+        lease.close();
+        next = null;
+        if (!closed) {
+            closed = true;
+            onClose.run();
+        }
+    }
+
+    private WALEntry previousEntry() throws IOException {
+        while (true) {
+            if (segment == null && !mapPreviousSource()) {
+                return null;
+            }
+
+            int start = previousFrameStart();
+            if (start < 0) {
+                release();
+                continue;
+            }
+
+            ByteBuffer frame = segment.duplicate();
+            frame.limit(start + SIZE_PREFIX_BYTES + segment.getInt(start)).position(start + SIZE_PREFIX_BYTES);
+            try {
+                WALEntry entry = WALEntry.parseFrom(frame);
+                checksum.verify(entry, version);
+                return entry;
+            } catch (IOException | IllegalStateException e) {
+                if (!blockAligned) {
+                    throw e;
+                }
+                logger.warn("Skipping a damaged WAL frame at offset {} of segment {}: {}", start, segmentNumber, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Offset of the frame before the last one returned from this segment, or -1 at its start.
+     */
+    private int previousFrameStart() throws IOException {
+        if (frameStarts != null) {
+            return frameCount > 0 ? frameStarts[--frameCount] : -1;
+        }
+        if (end <= headerSize) {
+            return -1;
+        }
+
+        int start = frameStartBefore(end);
+        while (start < 0 && blockAligned && end > headerSize) {
+            int padding = paddingBefore(end);
+            if (padding == 0) {
+                break;
+            }
+            end -= padding;
+            start = end > headerSize ? frameStartBefore(end) : -1;
+        }
+        if (end <= headerSize) {
+            return -1;
+        }
+        if (start < 0) {
+            if (!blockAligned) {
+                throw new IOException("Corrupt WAL frame trailer before offset " + end);
+            }
+            indexFrames(WALFormat.VERSION_3, end); // damaged framing: find the intact frames before it forward
+            return frameCount > 0 ? frameStarts[--frameCount] : -1;
+        }
+        end = start;
+        return start;
+    }
+
+    /**
+     * Start of the version 2 frame ending at {@code frameEnd}, or -1 if its trailer and size prefix
+     * do not describe a whole frame.
+     */
+    private int frameStartBefore(int frameEnd) {
+        if (frameEnd - headerSize < 2 * Integer.BYTES) {
+            return -1;
+        }
+        int size = segment.getInt(frameEnd - Integer.BYTES);
+        int start = frameEnd - WALFormat.frameSize(WALFormat.VERSION_2, size);
+        if (size <= 0 || size > MAX_ENTRY_SIZE || start < headerSize || segment.getInt(start) != size) {
+            return -1;
+        }
+        return start;
+    }
+
+    /**
+     * Length of the padding frame of a version 3 segment that ends at {@code frameEnd}, or 0 if
+     * the frame ending there is not padding.
+     */
+    private int paddingBefore(int frameEnd) {
+        if (frameEnd % WALFormat.BLOCK_SIZE != 0 || frameEnd - headerSize < WALFormat.MIN_PADDING) {
+            return 0;
+        }
+        int size = segment.getInt(frameEnd - Integer.BYTES);
+        int start = frameEnd + size;
+        return size <= -WALFormat.MIN_PADDING && start >= headerSize && segment.getInt(start) == size ? -size : 0;
+    }
+
+    private boolean mapPreviousSource() throws IOException {
+        while (!sources.isEmpty()) {
+            WALSegmentSource source = sources.pollLast();
+            segmentNumber = source.segmentNumber();
+            try {
+                map(source.preferredPath());
+            } catch (NoSuchFileException e) {
+                Path archivePath = source.fallbackPath(archiveDirectoryPath);
+                if (archivePath == null) {
+                    lease.release(segmentNumber);
+                    logger.warn("WAL segment {} disappeared before it could be read", segmentNumber);
+                    continue;
+                }
+                map(archivePath);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void map(Path path) throws IOException {
+        segment = WALMappedCursor.mapSegment(path);
+        version = WALFormat.detectVersion(segment);
+        headerSize = WALFormat.headerSize(version);
+        end = segment.limit();
+        frameStarts = null;
+        blockAligned = WALFormat.isBlockAligned(version);
+
+        if (end <= headerSize) {
+            end = headerSize; // empty, or a header still being written
+        } else if (version < WALFormat.VERSION_2 || (frameStartBefore(end) < 0 && paddingBefore(end) == 0)) {
+            indexFrames(version, end);
+        }
+    }
+
+    /**
+     * Walks the size prefixes forward up to {@code limit} and records where every whole frame starts.
+     */
+    private void indexFrames(int version, int limit) throws IOException {
+        frameStarts = new int[64];
+        frameCount = 0;
+
+        int position = headerSize;
+        while (position + SIZE_PREFIX_BYTES <= limit) {
+            int size = segment.getInt(position);
+            if (blockAligned) {
+                if (WALFormat.isPadding(position, size)) {
+                    position -= size;
+                    continue;
+                }
+                String damage = WALFormat.frameDamage(segment, position, limit);
+                if (damage != null) {
+                    position = (int) WALFormat.skipDamagedBlock(position, limit, damage);
+                    continue;
+                }
+            }
+            if (size <= 0 || size > MAX_ENTRY_SIZE) {
+                throw new IOException("Invalid WAL entry size: " + size);
+            }
+            int frameSize = WALFormat.frameSize(version, size);
+            if ((long) position + frameSize > limit) {
+                break; // frame only partially flushed
+            }
+
+            if (frameCount == frameStarts.length) {
+                frameStarts = Arrays.copyOf(frameStarts, frameCount * 2);
+            }
+            frameStarts[frameCount++] = position;
+            position += frameSize;
+        }
+    }
+
+    private void release() {
+        if (segment != null) {
+            lease.release(segmentNumber);
+        }
+        segment = null;
+        frameStarts = null;
+        frameCount = 0;
+    }
+}
@@ -10,16 +10,22 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
 
 public class WALSegment {
 
     private static final long DEFAULT_SYNC_INTERVAL = 200L; // milliseconds
+    private static final int OFFSET_SAMPLE_INTERVAL = 32; // frames between samples of the LSN-to-offset table
 
     private final long segmentNumber;
     private final boolean immediateFsync;
@@ -28,12 +34,55 @@ public class WALSegment {
     private final BufferedOutputStream bufferedStream;
     private final FileChannel channel;
     private final WALSegmentReader reader;
+    private final int version;
     private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private final ScheduledFuture<?> flushTask;
     private final ReentrantLock lock = new ReentrantLock(true);
 
-    private long logicalBufferSize = 0;
+    private volatile CompletableFuture<?> predecessorSealed = CompletableFuture.completedFuture(null);
+    private volatile LongConsumer commitListener = lsn -> { };
+    private long size;
+    private long lastLogSequenceNumber;
+    private boolean closed;
+
+    // Sparse LSN-to-offset table of the frames written by this instance, used to find truncation points.
+    private long[] sampledLogSequenceNumbers = new long[16];
+    private long[] sampledOffsets = new long[16];
+    private int sampleCount;
+    private long framesWritten;
+
+    // Published by every flush; readers use them instead of the writer lock.
+    private volatile long committedSize;
+    private volatile long committedLogSequenceNumber;
 
     public WALSegment(long segmentNumber, String filePath, Boolean immediateFsync, Checksum checksum) {
+        this(segmentNumber, filePath, immediateFsync, checksum, Executors.newSingleThreadScheduledExecutor(), true);
+    }
+
+    /**
+     * Creates a segment whose periodic flush runs on a scheduler shared with other segments.
+     * The scheduler is not shut down when the segment is closed.
+     */
+    public WALSegment(long segmentNumber, String filePath, boolean immediateFsync, Checksum checksum, ScheduledExecutorService scheduler) {
+        this(segmentNumber, filePath, immediateFsync, checksum, scheduler, WALFormat.CURRENT_VERSION);
+    }
+
+    /**
+     * As above, creating the file with the given {@link WALFormat} version if it does not exist yet.
+     */
+    WALSegment(long segmentNumber, String filePath, boolean immediateFsync, Checksum checksum, ScheduledExecutorService scheduler,
+               int newFileVersion) {
+        this(segmentNumber, filePath, immediateFsync, checksum, scheduler, false, newFileVersion);
+    }
+
+    private WALSegment(long segmentNumber, String filePath, boolean immediateFsync, Checksum checksum,
+                       ScheduledExecutorService scheduler, boolean ownsScheduler) {
+        this(segmentNumber, filePath, immediateFsync, checksum, scheduler, ownsScheduler, WALFormat.CURRENT_VERSION);
+    }
+
+    private WALSegment(long segmentNumber, String filePath, boolean immediateFsync, Checksum checksum,
+                       ScheduledExecutorService scheduler, boolean ownsScheduler, int newFileVersion) {
         this.segmentNumber = segmentNumber;
         this.immediateFsync = immediateFsync;
         this.checksum = checksum;
@@ -48,33 +97,88 @@ public class WALSegment {
             );
 
             this.channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            if (channel.size() > 0 && channel.size() < WALFormat.HEADER_SIZE && WALFormat.isTornHeader(path)) {
+                channel.truncate(0); // a crash cut the header short; frames appended after it would be unreadable
+            }
+            if (channel.size() == 0) {
+                this.version = WALFormat.checkVersion(newFileVersion);
+                channel.write(WALFormat.header(version)); // ahead of any buffered frame
+            } else {
+                this.version = WALFormat.readVersion(path); // an existing segment keeps its layout
+                if (version >= WALFormat.VERSION_2) {
+                    long intactLength = new WALSegmentReader(path.toString(), checksum).intactLength();
+                    if (intactLength < channel.size()) {
+                        channel.truncate(intactLength); // a crash tore the last frame; append in its place
+                    }
+                }
+            }
+            this.size = channel.size();
+            this.committedSize = size;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
 
         this.reader = new WALSegmentReader(path.toString(), checksum);
 
-        this.scheduler = Executors.newSingleThreadScheduledExecutor();
-        this.scheduler.scheduleWithFixedDelay(this::flush, DEFAULT_SYNC_INTERVAL, DEFAULT_SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+        this.flushTask = scheduler.scheduleWithFixedDelay(this::flushInBackground, DEFAULT_SYNC_INTERVAL, DEFAULT_SYNC_INTERVAL,
+                TimeUnit.MILLISECONDS);
     }
 
     public long getSegmentNumber() {
         return segmentNumber;
     }
 
+    /**
+     * Bytes written to this segment, including those still buffered. Tracked in memory so the
+     * rotation check on every write does not stat the file.
+     */
     public long size() {
+        lock.lock();
         try {
-            return Files.size(path) + logicalBufferSize;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            return size;
+        } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * Bytes of whole frames handed to the file system by the last flush. Frames below this offset
+     * can be read without coordinating with writers.
+     */
+    public long committedSize() {
+        return committedSize;
+    }
+
+    /**
+     * LSN of the last record written by this segment that has been flushed, or 0 if none has.
+     */
+    public long getCommittedLogSequenceNumber() {
+        return committedLogSequenceNumber;
+    }
+
+    /**
+     * Called with the committed LSN after each flush, once the predecessor segment is sealed so
+     * the reported LSN never runs ahead of records still buffered in an earlier segment.
+     */
+    void setCommitListener(LongConsumer commitListener) {
+        this.commitListener = commitListener;
+    }
+
+    /**
+     * Makes every fsync of this segment wait until the given predecessor is sealed, so a record
+     * can never be durable while an earlier record in the previous segment is not.
+     */
+    void setPredecessorSealed(CompletableFuture<?> predecessorSealed) {
+        this.predecessorSealed = predecessorSealed;
+    }
+
     public void write(WALEntry entry) {
         lock.lock();
         try {
             byte[] data = entry.toBuilder()
-                    .setCRC(checksum.compute(entry.getLogSequenceNumber(), entry.getData().toByteArray()))
+                    .setCRC(checksum.compute(entry, version))
                     .build()
                     .toByteArray();
 
@@ -84,10 +188,31 @@ public class WALSegment {
                     .putInt(data.length)
                     .array();
 
+            int frameSize = WALFormat.frameSize(version, data.length);
+            if (WALFormat.isBlockAligned(version)) {
+                if (frameSize > WALFormat.MAX_BLOCK_FRAME_SIZE) {
+                    throw new IllegalArgumentException("WAL entry of " + data.length + " bytes does not fit in a "
+                            + WALFormat.BLOCK_SIZE + "-byte block");
+                }
+                int padding = WALFormat.paddingBefore(size, frameSize);
+                if (padding > 0) {
+                    bufferedStream.write(WALFormat.padding(padding));
+                    size += padding;
+                }
+            }
+
+            if (framesWritten++ % OFFSET_SAMPLE_INTERVAL == 0) {
+                sampleOffset(entry.getLogSequenceNumber(), size);
+            }
+
             bufferedStream.write(sizeBytes);
             bufferedStream.write(data);
+            if (version >= WALFormat.VERSION_2) {
+                bufferedStream.write(sizeBytes); // back-pointer to the start of the frame
+            }
 
-            logicalBufferSize += sizeBytes.length + data.length;
+            size += frameSize;
+            lastLogSequenceNumber = entry.getLogSequenceNumber();
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
@@ -95,14 +220,71 @@ public class WALSegment {
         }
     }
 
+    /**
+     * Reads the records committed by the last flush. Records still buffered are not returned;
+     * call {@link #flush()} first to include them.
+     */
     public List<WALEntry> readAll() {
-        flush();
-        return reader.readAll();
+        return reader.readAll(committedSize);
     }
 
     public WALEntry readLastEntry() throws IOException {
-        flush();
-        return reader.readLastEntry();
+        return reader.readLastEntry(committedSize);
+    }
+
+    /**
+     * Offset of a frame boundary at or before the frame with {@code logSequenceNumber}, from which a
+     * forward walk finds it in at most {@value #OFFSET_SAMPLE_INTERVAL} frames; -1 if this instance
+     * did not write a frame at or before that LSN.
+     */
+    long findOffsetHint(long logSequenceNumber) {
+        lock.lock();
+        try {
+            int low = 0;
+            int high = sampleCount - 1;
+            long hint = -1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (sampledLogSequenceNumbers[middle] <= logSequenceNumber) {
+                    hint = sampledOffsets[middle];
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return hint;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cuts the file to {@code offset}, a frame boundary found with {@link WALSegmentReader#findCutOffset},
+     * and fsyncs it. The caller flushes first and keeps writers out; {@code logSequenceNumber} is the
+     * LSN of the last frame kept.
+     */
+    void truncate(long offset, long logSequenceNumber) {
+        lock.lock();
+        try {
+            bufferedStream.flush();
+            committedSize = Math.min(committedSize, offset); // readers stop at the cut before it happens
+            committedLogSequenceNumber = Math.min(committedLogSequenceNumber, logSequenceNumber);
+            channel.truncate(offset);
+            channel.force(true);
+
+            size = offset;
+            lastLogSequenceNumber = logSequenceNumber;
+            committedSize = offset;
+            committedLogSequenceNumber = logSequenceNumber;
+            while (sampleCount > 0 && sampledOffsets[sampleCount - 1] >= offset) {
+                sampleCount--;
+            }
+            framesWritten = 0; // sample the next frame, the first past the cut
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void flush() {
@@ -113,12 +295,44 @@ public class WALSegment {
         flush(true);
     }
 
+    /**
+     * Commits without parking the calling thread on the predecessor's seal: the fsync runs now if
+     * the predecessor is sealed, otherwise on {@code executor} once it is. For threads shared by
+     * many logs, which one slow seal must not hold up.
+     */
+    CompletableFuture<Void> commitAsync(Executor executor) {
+        if (!predecessorSealed.isDone()) {
+            return predecessorSealed.thenRunAsync(this::commit, executor);
+        }
+        commit();
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Writes the buffered frames to the file without an fsync, so it never waits for the predecessor.
+     */
+    void writeOut() {
+        lock.lock();
+        try {
+            flushBuffer();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public void flush(boolean forceSync) {
+        boolean sync = forceSync || immediateFsync;
+        if (sync) {
+            predecessorSealed.join(); // waited for outside the lock so appenders are not held up
+        }
+
         lock.lock();
         try {
             flushBuffer();
 
-            if (forceSync || immediateFsync) {
+            if (sync) {
                 syncDisk();
             }
         } catch (IOException e) {
@@ -131,6 +345,11 @@ public class WALSegment {
     public void close() {
         lock.lock();
         try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
             commit();
 
             try {
@@ -139,13 +358,16 @@ public class WALSegment {
                 throw new RuntimeException(e);
             }
 
-            scheduler.shutdown();
-            try {
-                if (!scheduler.awaitTermination(1, TimeUnit.SECONDS)) {
-                    scheduler.shutdownNow();
+            flushTask.cancel(false);
+            if (ownsScheduler) {
+                scheduler.shutdown();
+                try {
+                    if (!scheduler.awaitTermination(1, TimeUnit.SECONDS)) {
+                        scheduler.shutdownNow();
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
                 }
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
             }
 
             try {
@@ -158,9 +380,38 @@ public class WALSegment {
         }
     }
 
+    /**
+     * The periodic flush, run on a scheduler that may be shared with other logs. With immediate
+     * fsync it only writes the buffer out while the predecessor is still being sealed, and leaves
+     * the fsync to a later run.
+     */
+    private void flushInBackground() {
+        if (immediateFsync && !predecessorSealed.isDone()) {
+            writeOut();
+            return;
+        }
+        flush();
+    }
+
+    private void sampleOffset(long logSequenceNumber, long offset) {
+        if (sampleCount == sampledOffsets.length) {
+            sampledLogSequenceNumbers = Arrays.copyOf(sampledLogSequenceNumbers, sampleCount * 2);
+            sampledOffsets = Arrays.copyOf(sampledOffsets, sampleCount * 2);
+        }
+        sampledLogSequenceNumbers[sampleCount] = logSequenceNumber;
+        sampledOffsets[sampleCount] = offset;
+        sampleCount++;
+    }
+
     private void flushBuffer() throws IOException {
         bufferedStream.flush();
-        logicalBufferSize = 0;
+        committedLogSequenceNumber = lastLogSequenceNumber;
+        committedSize = size;
+
+        // Re-reported on every flush so a report skipped while the predecessor was sealing is caught up.
+        if (committedLogSequenceNumber > 0 && predecessorSealed.isDone()) {
+            commitListener.accept(committedLogSequenceNumber);
+        }
     }
 
     private void syncDisk() throws IOException {
@@ -0,0 +1,299 @@
+package org.greengrapes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static org.greengrapes.WALSegmentReader.MAX_ENTRY_SIZE;
+
+/**
+ * Key index of a sealed segment, stored next to it: a Bloom filter over the keys in the segment
+ * and a sorted block mapping each key to the offset of the newest frame carrying it. Lookups map
+ * the file and search it in place, so a segment whose filter rules a key out costs a few bit tests.
+ * <p>
+ * Layout (little-endian): {@code [int version][long segmentSize][int hashCount][int bloomWords]
+ * [long * bloomWords][int keyCount][int * keyCount entry positions][entries][int CRC32]}, where each
+ * entry is {@code [int keyLength][key][long frameOffset]} and entry positions are relative to the first
+ * entry. Entries are sorted by key, compared as unsigned bytes. {@code segmentSize} is the length of
+ * the segment the index was built from, so an index that outlived a truncation or rewrite of its
+ * segment can be told apart from a current one.
+ */
+final class WALSegmentIndex {
+    private static final Logger logger = LoggerFactory.getLogger(WALSegmentIndex.class);
+    private static final int INDEX_FORMAT_VERSION = 2;
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASH_COUNT = 7; // optimal for 10 bits per key, about 1% false positives
+
+    private final ByteBuffer index;
+    private final long segmentSize;
+    private final int hashCount;
+    private final int bloomOffset;
+    private final long bloomBits;
+    private final int keyCount;
+    private final int positionsOffset;
+    private final int entriesOffset;
+
+    private WALSegmentIndex(ByteBuffer index) throws IOException {
+        this.index = index;
+        int version = index.getInt(0);
+        if (version != INDEX_FORMAT_VERSION) {
+            throw new IOException("Unsupported WAL index format version " + version);
+        }
+        this.segmentSize = index.getLong(4);
+        this.hashCount = index.getInt(12);
+        int bloomWords = index.getInt(16);
+        this.bloomOffset = 20;
+        this.bloomBits = (long) bloomWords * Long.SIZE;
+        this.keyCount = index.getInt(bloomOffset + bloomWords * Long.BYTES);
+        this.positionsOffset = bloomOffset + bloomWords * Long.BYTES + Integer.BYTES;
+        this.entriesOffset = positionsOffset + keyCount * Integer.BYTES;
+    }
+
+    /**
+     * Maps an index file and checks its checksum.
+     */
+    static WALSegmentIndex open(Path indexPath) throws IOException {
+        ByteBuffer index;
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 4 * Integer.BYTES + Long.BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid WAL index size: " + size);
+            }
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        int bodyLength = index.limit() - Integer.BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(index.duplicate().limit(bodyLength));
+        if ((int) crc.getValue() != index.getInt(bodyLength)) {
+            throw new IOException("WAL index checksum mismatch: " + indexPath);
+        }
+        return new WALSegmentIndex(index.duplicate().limit(bodyLength).order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    /**
+     * Indexes the keyed frames of a sealed segment and writes the index atomically to {@code indexPath}.
+     */
+    static void build(Path segmentPath, Path indexPath) throws IOException {
+        Map<ByteBuffer, Long> newestOffsets = new HashMap<>();
+        WALEntryView view = new WALEntryView();
+        ByteBuffer segment = WALMappedCursor.mapSegment(segmentPath);
+        forEachFrame(segment, view, (buffer, offset) -> {
+            if (view.getKeyLength() > 0) {
+                byte[] key = new byte[view.getKeyLength()];
+                buffer.get(view.getKeyOffset(), key);
+                newestOffsets.put(ByteBuffer.wrap(key), (long) offset);
+            }
+        });
+
+        byte[][] keys = newestOffsets.keySet().stream().map(ByteBuffer::array).toArray(byte[][]::new);
+        Arrays.sort(keys, Arrays::compareUnsigned);
+
+        int bloomWords = Math.max(1, (int) ((Math.max(keys.length, 1) * (long) BITS_PER_KEY + Long.SIZE - 1) / Long.SIZE));
+        long[] bloom = new long[bloomWords];
+        int entriesSize = 0;
+        for (byte[] key : keys) {
+            setBits(bloom, key);
+            entriesSize += Integer.BYTES + key.length + Long.BYTES;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(3 * Integer.BYTES + Long.BYTES + bloomWords * Long.BYTES + Integer.BYTES
+                        + keys.length * Integer.BYTES + entriesSize + Integer.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(INDEX_FORMAT_VERSION)
+                .putLong(segment.limit())
+                .putInt(HASH_COUNT)
+                .putInt(bloomWords);
+        for (long word : bloom) {
+            out.putLong(word);
+        }
+        out.putInt(keys.length);
+        int position = 0;
+        for (byte[] key : keys) {
+            out.putInt(position);
+            position += Integer.BYTES + key.length + Long.BYTES;
+        }
+        for (byte[] key : keys) {
+            out.putInt(key.length).put(key).putLong(newestOffsets.get(ByteBuffer.wrap(key)));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(out.array(), 0, out.position());
+        out.putInt((int) crc.getValue());
+
+        Path tempPath = Files.createTempFile(indexPath.getParent(), indexPath.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+        Files.move(tempPath, indexPath, StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("Indexed {} keys of WAL segment {}", keys.length, segmentPath);
+    }
+
+    /**
+     * Length of the segment when the index was built.
+     */
+    long segmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Offset of the newest frame of the segment with this key, or -1 if there is none.
+     */
+    long find(byte[] key) {
+        if (!mightContain(key)) {
+            return -1;
+        }
+
+        int low = 0;
+        int high = keyCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entry = entriesOffset + index.getInt(positionsOffset + middle * Integer.BYTES);
+            int comparison = compareKey(entry, key);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return index.getLong(entry + Integer.BYTES + key.length);
+            }
+        }
+        return -1;
+    }
+
+    boolean mightContain(byte[] key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) % bloomBits;
+            long word = index.getLong(bloomOffset + (int) (bit >>> 6) * Long.BYTES);
+            if ((word & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Linear search of a segment without an index for the newest frame with {@code key} and an
+     * LSN of at most {@code toLogSequenceNumber}; returns its offset or -1.
+     */
+    static long scan(ByteBuffer segment, byte[] key, long toLogSequenceNumber) throws IOException {
+        WALFilter filter = WALFilter.newBuilder().setKey(key).build();
+        WALEntryView view = new WALEntryView();
+        long[] newest = {-1};
+        forEachFrame(segment, view, (buffer, offset) -> {
+            if (view.getLogSequenceNumber() <= toLogSequenceNumber && filter.matches(view, buffer)) {
+                newest[0] = offset;
+            }
+        });
+        return newest[0];
+    }
+
+    private int compareKey(int entry, byte[] key) {
+        int length = index.getInt(entry);
+        int keyOffset = entry + Integer.BYTES;
+        for (int i = 0; i < Math.min(length, key.length); i++) {
+            int comparison = Byte.compareUnsigned(index.get(keyOffset + i), key[i]);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return Integer.compare(length, key.length);
+    }
+
+    private static void setBits(long[] bloom, byte[] key) {
+        long bloomBits = (long) bloom.length * Long.SIZE;
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) % bloomBits;
+            bloom[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a with a murmur finalizer; the two halves seed double hashing.
+     */
+    private static long hash(byte[] key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * Decodes each complete frame of a mapped segment into {@code view} and passes its offset to
+     * the visitor; padding frames are skipped and a partially flushed frame at the end is ignored.
+     * In a block-aligned segment a damaged frame is skipped with the rest of its block.
+     */
+    static void forEachFrame(ByteBuffer segment, WALEntryView view, FrameVisitor visitor) throws IOException {
+        int version = WALFormat.detectVersion(segment);
+        int limit = segment.limit();
+        int position = WALFormat.headerSize(version);
+        boolean blockAligned = WALFormat.isBlockAligned(version);
+        while (position + WALFormat.SIZE_PREFIX_BYTES <= limit) {
+            int size = segment.getInt(position);
+            if (blockAligned) {
+                if (WALFormat.isPadding(position, size)) {
+                    position -= size;
+                    continue;
+                }
+                String damage = WALFormat.frameDamage(segment, position, limit);
+                if (damage != null) {
+                    position = (int) WALFormat.skipDamagedBlock(position, limit, damage);
+                    continue;
+                }
+            }
+            if (size <= 0 || size > MAX_ENTRY_SIZE) {
+                throw new IOException("Invalid WAL entry size: " + size);
+            }
+            int frameSize = WALFormat.frameSize(version, size);
+            if ((long) position + frameSize > limit) {
+                break; // frame only partially flushed
+            }
+            try {
+                view.decode(segment, position + WALFormat.SIZE_PREFIX_BYTES, size);
+            } catch (IOException e) {
+                if (!blockAligned) {
+                    throw e;
+                }
+                position = (int) WALFormat.skipDamagedBlock(position, limit, e.getMessage());
+                continue;
+            }
+            visitor.visit(segment, position);
+            position += frameSize;
+        }
+    }
+
+    @FunctionalInterface
+    interface FrameVisitor {
+        void visit(ByteBuffer segment, int offset) throws IOException;
+    }
+}
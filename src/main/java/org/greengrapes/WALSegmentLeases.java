@@ -0,0 +1,145 @@
+package org.greengrapes;
+
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Reference counts on the live segment files of a WAL, so that retention never removes a segment
+ * a reader still has to read. Readers lease every live segment they list and give each one back
+ * as they move past it; retention retires a leased segment by deferring its removal until the
+ * last lease is returned, which then runs the removal on the returning thread.
+ * <p>
+ * Writers never touch leases. Listing and leasing is atomic with respect to retiring, so a reader
+ * cannot lease a segment whose removal has already been decided; many readers can list at once.
+ * A segment stays marked as removing while its removal runs outside the lock, and listings in
+ * that window leave it out, or keep it unleased for the reader to fall back to its archive copy.
+ */
+final class WALSegmentLeases {
+    private final ReentrantReadWriteLock listingLock = new ReentrantReadWriteLock();
+    private final Map<Long, Integer> leaseCounts = new HashMap<>();  // guarded by this
+    private final Map<Long, Runnable> deferredRemovals = new HashMap<>(); // guarded by this
+    private final Set<Long> removing = new HashSet<>();                  // guarded by this
+
+    /**
+     * Lists the segments a reader starting at {@code fromLogSequenceNumber} has to read, as
+     * {@link WALSegmentSource#list} does, and leases every live one until the returned lease
+     * releases it.
+     */
+    Lease acquire(String directoryPath, String archiveDirectoryPath, long fromLogSequenceNumber) {
+        listingLock.readLock().lock();
+        try {
+            Deque<WALSegmentSource> sources = WALSegmentSource.list(directoryPath, archiveDirectoryPath, fromLogSequenceNumber);
+            Lease lease = new Lease(sources);
+            synchronized (this) {
+                if (archiveDirectoryPath == null) {
+                    sources.removeIf(source -> removing.contains(source.segmentNumber()));
+                }
+                for (WALSegmentSource source : sources) {
+                    if (source.livePath() != null && !removing.contains(source.segmentNumber())) {
+                        leaseCounts.merge(source.segmentNumber(), 1, Integer::sum);
+                        lease.held.add(source.segmentNumber());
+                    }
+                }
+            }
+            return lease;
+        } finally {
+            listingLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a segment with {@code removal}: right away if no reader holds a lease on it,
+     * otherwise when the last lease is released. A segment retired twice is removed once, by the
+     * latest removal.
+     */
+    void retire(long segmentNumber, Runnable removal) {
+        listingLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (leaseCounts.containsKey(segmentNumber)) {
+                    deferredRemovals.put(segmentNumber, removal);
+                    return;
+                }
+                removing.add(segmentNumber);
+            }
+        } finally {
+            listingLock.writeLock().unlock();
+        }
+        remove(segmentNumber, removal);
+    }
+
+    /**
+     * Whether the segment has been retired and is waiting for its readers or being removed.
+     */
+    synchronized boolean isRetired(long segmentNumber) {
+        return deferredRemovals.containsKey(segmentNumber) || removing.contains(segmentNumber);
+    }
+
+    synchronized int leaseCount(long segmentNumber) {
+        return leaseCounts.getOrDefault(segmentNumber, 0);
+    }
+
+    private void release(long segmentNumber) {
+        Runnable removal;
+        synchronized (this) {
+            if (leaseCounts.merge(segmentNumber, -1, Integer::sum) > 0) {
+                return;
+            }
+            leaseCounts.remove(segmentNumber);
+            removal = deferredRemovals.remove(segmentNumber);
+            if (removal == null) {
+                return;
+            }
+            removing.add(segmentNumber);
+        }
+        remove(segmentNumber, removal);
+    }
+
+    private void remove(long segmentNumber, Runnable removal) {
+        try {
+            removal.run();
+        } finally {
+            synchronized (this) {
+                removing.remove(segmentNumber);
+            }
+        }
+    }
+
+    /**
+     * The segments listed for one reader and the leases it still holds on them. Segments can be
+     * released one by one as the reader moves past them, from any thread; closing releases the rest.
+     */
+    final class Lease implements AutoCloseable {
+        private final Deque<WALSegmentSource> sources;
+        private final Set<Long> held = ConcurrentHashMap.newKeySet();
+
+        private Lease(Deque<WALSegmentSource> sources) {
+            this.sources = sources;
+        }
+
+        /**
+         * The listed segments in segment order, for the reader to consume.
+         */
+        Deque<WALSegmentSource> sources() {
+            return sources;
+        }
+
+        void release(long segmentNumber) {
+            if (held.remove(segmentNumber)) {
+                WALSegmentLeases.this.release(segmentNumber);
+            }
+        }
+
+        @Override
+        public void close() {
+            for (Long segmentNumber : held) {
+                release(segmentNumber);
+            }
+        }
+    }
+}
@@ -1,20 +1,28 @@
 package org.greengrapes;
 
 import org.greengrapes.proto.WALEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 public class WALSegmentReader {
-    private static final int MAX_ENTRY_SIZE = 10 * 1024 * 1024; // 10 MB
+    private static final Logger logger = LoggerFactory.getLogger(WALSegmentReader.class);
+    static final int MAX_ENTRY_SIZE = 10 * 1024 * 1024; // 10 MB
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
 
     private final Path path;
     private final Checksum checksum;
@@ -25,88 +33,531 @@ public class WALSegmentReader {
     }
 
     public List<WALEntry> readAll() {
+        return readAll(Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads the entries stored in the first {@code limit} bytes of the segment.
+     */
+    public List<WALEntry> readAll(long limit) {
         List<WALEntry> entries = new ArrayList<>();
 
-        try (DataInputStream in = new DataInputStream(new FileInputStream(path.toFile()))) {
-            while (true) {
-                try {
-                    byte[] sizeBytes = new byte[4];
-                    in.readFully(sizeBytes);
-                    int size = ByteBuffer.wrap(sizeBytes)
-                            .order(ByteOrder.LITTLE_ENDIAN)
-                            .getInt();
-
-                    if (size <= 0 || size > MAX_ENTRY_SIZE) {
-                        throw new IOException("Invalid WAL entry size: " + size);
-                    }
+        try (SegmentStream in = openStream(limit)) {
+            WALEntry entry;
+            while ((entry = readEntry(in)) != null) {
+                entries.add(entry);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
 
-                    byte[] data = new byte[size];
-                    in.readFully(data);
+        return entries;
+    }
 
-                    WALEntry entry = WALEntry.parseFrom(data);
-                    checksum.verify(entry.getLogSequenceNumber(), entry.getData().toByteArray(), entry.getCRC());
-                    entries.add(entry);
+    public WALEntry readFirstEntry() throws IOException {
+        try (SegmentStream in = openStream()) {
+            return readEntry(in);
+        }
+    }
+
+    /**
+     * Opens the segment for sequential reads, positioned at its first frame; archived segments
+     * ({@code .gz}) are decompressed on the fly.
+     */
+    SegmentStream openStream() throws IOException {
+        return openStream(Long.MAX_VALUE);
+    }
+
+    private SegmentStream openStream(long limit) throws IOException {
+        InputStream in = new FileInputStream(path.toFile());
+        if (path.getFileName().toString().endsWith(".gz")) {
+            in = new GZIPInputStream(in, READ_BUFFER_SIZE);
+        }
+        in = new BufferedInputStream(in, READ_BUFFER_SIZE); // one read per buffer instead of two per frame
+        if (limit != Long.MAX_VALUE) {
+            in = new LimitedInputStream(in, limit);
+        }
+        try {
+            return new SegmentStream(in, readHeader(new DataInputStream(in)));
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Consumes the header of a version 2 segment. A version 1 segment has none, so its first
+     * bytes are pushed back; the stream is always buffered, so mark/reset is available.
+     */
+    private static int readHeader(DataInputStream in) throws IOException {
+        in.mark(WALFormat.HEADER_SIZE);
+        try {
+            if (Integer.reverseBytes(in.readInt()) == WALFormat.MAGIC) {
+                try {
+                    return WALFormat.checkVersion(Integer.reverseBytes(in.readInt()));
                 } catch (EOFException eof) {
-                    break;
+                    return WALFormat.CURRENT_VERSION; // the header was cut short, so there are no frames
                 }
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        } catch (EOFException eof) {
+            // shorter than a size prefix: empty, or a version 1 segment with a torn first frame
         }
+        in.reset();
+        return WALFormat.VERSION_1;
+    }
 
-        return entries;
+    /**
+     * Reads and verifies the next entry from a stream opened by this reader, or returns null at a
+     * clean end of the segment.
+     */
+    WALEntry readEntry(SegmentStream in) throws IOException {
+        int version = in.version;
+        if (WALFormat.isBlockAligned(version)) {
+            return readBlockEntry(in);
+        }
+
+        byte[] sizeBytes = new byte[4];
+        try {
+            in.readFully(sizeBytes);
+        } catch (EOFException eof) {
+            return null;
+        }
+
+        int size = ByteBuffer.wrap(sizeBytes)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .getInt();
+
+        if (size <= 0 || size > MAX_ENTRY_SIZE) {
+            throw new IOException("Invalid WAL entry size: " + size);
+        }
+
+        byte[] data = new byte[size];
+        try {
+            in.readFully(data);
+            if (version >= WALFormat.VERSION_2) {
+                in.readFully(sizeBytes);
+            }
+        } catch (EOFException eof) {
+            return null;
+        }
+
+        if (version >= WALFormat.VERSION_2 && ByteBuffer.wrap(sizeBytes).order(ByteOrder.LITTLE_ENDIAN).getInt() != size) {
+            throw new IOException("WAL frame trailer does not match its size prefix " + size);
+        }
+
+        return parseAndVerify(data, version);
     }
 
-    public WALEntry readLastEntry() throws IOException {
+    /**
+     * {@link #readEntry} for a version 3 segment. Padding frames are skipped. A frame that is
+     * damaged, whether by a bad size prefix or trailer, an unparsable entry or a checksum mismatch,
+     * is logged and the rest of its block skipped, so reading resumes at the next block boundary.
+     */
+    private WALEntry readBlockEntry(SegmentStream in) throws IOException {
+        byte[] sizeBytes = new byte[4];
+        while (true) {
+            long frameStart = in.position;
+            if (!readFully(in, sizeBytes)) {
+                return null;
+            }
+            int size = ByteBuffer.wrap(sizeBytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+
+            if (WALFormat.isPadding(frameStart, size)) {
+                if (!skipTo(in, frameStart - size)) {
+                    return null;
+                }
+                continue;
+            }
+            if (!WALFormat.fitsInBlock(frameStart, size)) {
+                if (!skipDamagedBlock(in, frameStart, "invalid entry size " + size)) {
+                    return null;
+                }
+                continue;
+            }
+
+            byte[] data = new byte[size];
+            if (!readFully(in, data) || !readFully(in, sizeBytes)) {
+                return null;
+            }
+            if (ByteBuffer.wrap(sizeBytes).order(ByteOrder.LITTLE_ENDIAN).getInt() != size) {
+                if (!skipDamagedBlock(in, frameStart, "frame trailer does not match its size prefix " + size)) {
+                    return null;
+                }
+                continue;
+            }
+
+            try {
+                return parseAndVerify(data, WALFormat.VERSION_3);
+            } catch (IOException | IllegalStateException e) {
+                if (!skipDamagedBlock(in, frameStart, e.getMessage())) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads {@code buffer} in full, or returns false if the segment ends first.
+     */
+    private static boolean readFully(SegmentStream in, byte[] buffer) throws IOException {
+        try {
+            in.readFully(buffer);
+        } catch (EOFException eof) {
+            return false;
+        }
+        in.position += buffer.length;
+        return true;
+    }
+
+    private static boolean skipTo(SegmentStream in, long offset) throws IOException {
+        try {
+            in.skipNBytes(offset - in.position);
+        } catch (EOFException eof) {
+            return false;
+        }
+        in.position = offset;
+        return true;
+    }
+
+    private static boolean skipDamagedBlock(SegmentStream in, long frameStart, String problem) throws IOException {
+        return skipTo(in, WALFormat.skipDamagedBlock(frameStart, Long.MAX_VALUE, problem));
+    }
+
+    /**
+     * Reads and verifies the frame starting at {@code offset}, e.g. one found through a {@link WALSegmentIndex}.
+     */
+    WALEntry readEntryAt(long offset) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "r")) {
+            int fileVersion = WALFormat.readVersion(raf.getChannel());
+            raf.seek(offset);
+            int size = Integer.reverseBytes(raf.readInt());
+            if (size <= 0 || size > MAX_ENTRY_SIZE) {
+                throw new IOException("Invalid WAL entry size: " + size + " at offset " + offset);
+            }
+            byte[] data = new byte[size];
+            raf.readFully(data);
+            return parseAndVerify(data, fileVersion);
+        }
+    }
+
+    /**
+     * Length of a version 2 or 3 segment without a torn tail, for a writer to append at. Appending
+     * after a torn frame would leave the new frames behind it: in a block readers skip as damaged,
+     * or, in a version 2 segment, where forward readers take the torn size prefix as a frame.
+     * <p>
+     * In a version 3 segment it is the offset just past the last intact frame or padding of the
+     * last block; frames never straddle a block, so only that block is read. A version 2 segment
+     * whose last frame has a matching trailer and size prefix is intact; otherwise its size
+     * prefixes are walked forward and it ends where a frame runs past the end of the file. Damage
+     * elsewhere in a version 2 segment is not a torn tail and is left alone.
+     */
+    long intactLength() throws IOException {
         try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "r")) {
-            long lastOffset = 0;
-            int lastSize = 0;
-
-            while (true) {
-                // Read the size prefix (4 bytes little-endian)
-                byte[] sizeBytes = new byte[4];
-                int bytesRead = raf.read(sizeBytes);
-                if (bytesRead == -1) {
-                    // EOF reached
-                    if (lastOffset == 0) {
-                        return null; // file was empty
+            int fileVersion = WALFormat.readVersion(raf.getChannel());
+            if (!WALFormat.isBlockAligned(fileVersion)) {
+                return intactLength(raf, fileVersion);
+            }
+            long end = raf.length();
+            long offset = Math.max(WALFormat.HEADER_SIZE, (end - 1) / WALFormat.BLOCK_SIZE * WALFormat.BLOCK_SIZE);
+            while (offset + Integer.BYTES <= end) {
+                raf.seek(offset);
+                int size = Integer.reverseBytes(raf.readInt());
+                if (WALFormat.isPadding(offset, size)) {
+                    if (offset - size > end) {
+                        break;
                     }
+                    offset -= size;
+                    continue;
+                }
+                if (!WALFormat.fitsInBlock(offset, size) || offset + WALFormat.frameSize(WALFormat.VERSION_3, size) > end) {
+                    break;
+                }
+
+                byte[] data = new byte[size];
+                raf.readFully(data);
+                if (Integer.reverseBytes(raf.readInt()) != size) {
+                    break;
+                }
+                try {
+                    parseAndVerify(data, WALFormat.VERSION_3);
+                } catch (IOException | IllegalStateException e) {
+                    break;
+                }
+                offset += WALFormat.frameSize(WALFormat.VERSION_3, size);
+            }
+            return offset;
+        }
+    }
 
-                    // Seek back to last entry
-                    raf.seek(lastOffset);
+    private static long intactLength(RandomAccessFile raf, int fileVersion) throws IOException {
+        long start = WALFormat.headerSize(fileVersion);
+        long end = raf.length();
+        if (end <= start || readFrameEndingAt(raf, start, end) != null) {
+            return end;
+        }
 
-                    byte[] data = new byte[lastSize];
-                    raf.readFully(data);
+        long offset = start;
+        while (offset + Integer.BYTES <= end) {
+            raf.seek(offset);
+            int size = Integer.reverseBytes(raf.readInt());
+            if (size <= 0 || size > MAX_ENTRY_SIZE) {
+                return end; // damaged rather than torn
+            }
+            long next = offset + WALFormat.frameSize(fileVersion, size);
+            if (next > end) {
+                return offset; // the frame being written when the crash hit
+            }
+            offset = next;
+        }
+        return offset; // a size prefix cut short
+    }
+
+    /**
+     * Offset of the first frame with an LSN above {@code logSequenceNumber}, i.e. the length to cut
+     * the segment to in order to drop every later record, or the end of the segment if there is no
+     * such frame. Only frame headers are read. The walk goes forward from {@code fromOffset} when it
+     * is a known frame boundary (non-negative); otherwise a version 2 segment is walked back from its
+     * end through the frame trailers, touching only the frames that will be cut.
+     */
+    long findCutOffset(long logSequenceNumber, long fromOffset) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "r")) {
+            int fileVersion = WALFormat.readVersion(raf.getChannel());
+            long start = WALFormat.headerSize(fileVersion);
+            long end = raf.length();
 
-                    // Unmarshal only once at the end
-                    WALEntry entry = WALEntry.parseFrom(data);
-                    checksum.verify(entry.getLogSequenceNumber(), entry.getData().toByteArray(), entry.getCRC());
-                    return entry;
+            if (fromOffset < 0 && fileVersion >= WALFormat.VERSION_2) {
+                long offset = end;
+                byte[] frame;
+                while (offset > start) {
+                    int padding = WALFormat.isBlockAligned(fileVersion) ? paddingEndingAt(raf, start, offset) : 0;
+                    if (padding > 0) {
+                        offset -= padding;
+                        continue;
+                    }
+                    if ((frame = readFrameEndingAt(raf, start, offset)) == null) {
+                        break;
+                    }
+                    long frameStart = offset - WALFormat.frameSize(fileVersion, frame.length);
+                    if (WALShipper.peekLogSequenceNumber(ByteBuffer.wrap(frame), 0, frame.length) <= logSequenceNumber) {
+                        return offset;
+                    }
+                    offset = frameStart;
+                }
+                if (offset == start) {
+                    return start;
                 }
+                // a partially written tail: fall back to the forward walk
+            }
 
-                if (bytesRead < 4) {
-                    // Corrupted/truncated entry
-                    throw new EOFException("Unexpected EOF while reading entry size");
+            long offset = Math.max(fromOffset, start);
+            ByteBuffer head = ByteBuffer.allocate(Integer.BYTES + 11).order(ByteOrder.LITTLE_ENDIAN);
+            while (offset + Integer.BYTES <= end) {
+                raf.seek(offset);
+                int read = raf.read(head.array());
+                int size = head.getInt(0);
+                if (WALFormat.isBlockAligned(fileVersion)) {
+                    if (WALFormat.isPadding(offset, size)) {
+                        if (offset - size > end) {
+                            break; // partially written tail
+                        }
+                        offset -= size;
+                        continue;
+                    }
+                    if (!WALFormat.fitsInBlock(offset, size)) {
+                        offset = WALFormat.skipDamagedBlock(offset, end, "invalid entry size " + size);
+                        continue;
+                    }
+                }
+                if (size <= 0 || size > MAX_ENTRY_SIZE) {
+                    throw new IOException("Invalid WAL entry size: " + size + " at offset " + offset);
                 }
+                long next = offset + WALFormat.frameSize(fileVersion, size);
+                if (next > end) {
+                    break; // partially written tail
+                }
+                long lsn = WALShipper.peekLogSequenceNumber(head, Integer.BYTES, Math.min(size, read - Integer.BYTES));
+                if (lsn > logSequenceNumber) {
+                    return offset;
+                }
+                offset = next;
+            }
+            return offset;
+        }
+    }
 
-                int size = ByteBuffer.wrap(sizeBytes)
-                        .order(ByteOrder.LITTLE_ENDIAN)
-                        .getInt();
+    public WALEntry readLastEntry() throws IOException {
+        return readLastEntry(Long.MAX_VALUE);
+    }
 
-                if (size <= 0 || size > MAX_ENTRY_SIZE) {
-                    throw new IOException("Invalid WAL entry size: " + size);
+    /**
+     * Reads the last entry stored in the first {@code limit} bytes of the segment. Version 2
+     * segments are read from the end through the frame trailer; if the tail turns out to be a
+     * partially written frame, or the segment is version 1, the size prefixes are walked forward.
+     */
+    public WALEntry readLastEntry(long limit) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "r")) {
+            long end = Math.min(limit, raf.length());
+            int fileVersion = WALFormat.readVersion(raf.getChannel());
+            long start = WALFormat.headerSize(fileVersion);
+            if (end <= start) {
+                return null;
+            }
+
+            if (fileVersion >= WALFormat.VERSION_2) {
+                byte[] frame = readFrameEndingAt(raf, start, end);
+                if (frame != null) {
+                    return parseAndVerify(frame, fileVersion);
                 }
+            }
+            return readLastEntryForward(raf, fileVersion, start, end);
+        }
+    }
+
+    /**
+     * Returns the entry bytes of the frame that ends at {@code end}, or null if the trailer and
+     * size prefix found there do not describe a whole frame.
+     */
+    private static byte[] readFrameEndingAt(RandomAccessFile raf, long start, long end) throws IOException {
+        if (end - start < 2L * Integer.BYTES) {
+            return null;
+        }
+        raf.seek(end - Integer.BYTES);
+        int size = Integer.reverseBytes(raf.readInt());
+        long frameStart = end - WALFormat.frameSize(WALFormat.VERSION_2, size);
+        if (size <= 0 || size > MAX_ENTRY_SIZE || frameStart < start) {
+            return null;
+        }
+
+        raf.seek(frameStart);
+        if (Integer.reverseBytes(raf.readInt()) != size) {
+            return null;
+        }
+        byte[] data = new byte[size];
+        raf.readFully(data);
+        return data;
+    }
+
+    /**
+     * Length of the padding frame of a version 3 segment that ends at {@code end}, or 0 if the
+     * frame ending there is not padding.
+     */
+    private static int paddingEndingAt(RandomAccessFile raf, long start, long end) throws IOException {
+        if (end - start < WALFormat.MIN_PADDING || end % WALFormat.BLOCK_SIZE != 0) {
+            return 0;
+        }
+        raf.seek(end - Integer.BYTES);
+        int trailer = Integer.reverseBytes(raf.readInt());
+        if (trailer > -WALFormat.MIN_PADDING || end + trailer < start) {
+            return 0;
+        }
+        raf.seek(end + trailer);
+        return Integer.reverseBytes(raf.readInt()) == trailer ? -trailer : 0;
+    }
 
-                // Record the starting offset of this entry
-                lastOffset = raf.getFilePointer();
+    private WALEntry readLastEntryForward(RandomAccessFile raf, int fileVersion, long start, long end) throws IOException {
+        raf.seek(start);
+        long lastOffset = -1;
+        int lastSize = 0;
 
-                // Skip forward by entry size (don’t read yet)
-                if (raf.skipBytes(size) < size) {
-                    throw new EOFException("Unexpected EOF while skipping entry data");
+        while (raf.getFilePointer() + Integer.BYTES <= end) {
+            long frameStart = raf.getFilePointer();
+            int size = Integer.reverseBytes(raf.readInt());
+            if (WALFormat.isBlockAligned(fileVersion)) {
+                if (WALFormat.isPadding(frameStart, size)) {
+                    raf.seek(frameStart - size);
+                    continue;
+                }
+                if (!WALFormat.fitsInBlock(frameStart, size)) {
+                    raf.seek(WALFormat.skipDamagedBlock(frameStart, end, "invalid entry size " + size));
+                    continue;
                 }
+            }
+            if (size <= 0 || size > MAX_ENTRY_SIZE) {
+                throw new IOException("Invalid WAL entry size: " + size);
+            }
+
+            long offset = raf.getFilePointer();
+            long next = offset + size + WALFormat.trailerSize(fileVersion);
+            if (next > end) {
+                break; // partially written tail
+            }
+            if (WALFormat.isBlockAligned(fileVersion)) {
+                raf.seek(next - Integer.BYTES);
+                if (Integer.reverseBytes(raf.readInt()) != size) {
+                    raf.seek(WALFormat.skipDamagedBlock(frameStart, end, "frame trailer does not match its size prefix " + size));
+                    continue;
+                }
+            }
+            lastOffset = offset;
+            lastSize = size;
+            raf.seek(next);
+        }
+
+        if (lastOffset < 0) {
+            return null;
+        }
+        raf.seek(lastOffset);
+        byte[] data = new byte[lastSize];
+        raf.readFully(data);
+        return parseAndVerify(data, fileVersion);
+    }
+
+    private WALEntry parseAndVerify(byte[] data, int version) throws IOException {
+        WALEntry entry = WALEntry.parseFrom(data);
+        checksum.verify(entry, version);
+        return entry;
+    }
+
+    /**
+     * A stream over one segment, opened at its first frame, that carries the segment's format
+     * version and the offset of its next byte. The state lives with the stream, so one reader can
+     * serve any number of streams at once.
+     */
+    static final class SegmentStream extends DataInputStream {
+        private final int version;
+        private long position; // offset in the segment of the next byte, kept for block layouts
+
+        private SegmentStream(InputStream in, int version) {
+            super(in);
+            this.version = version;
+            this.position = WALFormat.headerSize(version);
+        }
+    }
+
+    /**
+     * Ends the stream after {@code limit} bytes so reads stop at the committed offset even while
+     * the writer keeps appending to the file.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+        private long remaining;
 
-                lastSize = size;
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read > 0) {
+                remaining -= read;
             }
+            return read;
         }
     }
 }
@@ -0,0 +1,63 @@
+package org.greengrapes;
+
+import org.greengrapes.WALUtils.ArchivedSegment;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.greengrapes.WALUtils.getAllArchivedSegments;
+import static org.greengrapes.WALUtils.getAllSegmentNumbers;
+import static org.greengrapes.WALUtils.getSegmentFilePath;
+
+/**
+ * Where a segment can be read from: its live file, its archive copy, or both while it is being
+ * archived. Readers prefer the live file and fall back to the archive if it has gone.
+ */
+record WALSegmentSource(long segmentNumber, Path livePath, Path archivePath) {
+
+    /**
+     * Lists archived and live segments in segment order, skipping archives that end before
+     * {@code fromLogSequenceNumber}. {@code archiveDirectoryPath} may be null.
+     */
+    static Deque<WALSegmentSource> list(String directoryPath, String archiveDirectoryPath, long fromLogSequenceNumber) {
+        Map<Long, WALSegmentSource> bySegmentNumber = new TreeMap<>();
+        if (archiveDirectoryPath != null) {
+            for (ArchivedSegment archived : getAllArchivedSegments(archiveDirectoryPath)) {
+                if (archived.lastLogSequenceNumber() >= fromLogSequenceNumber) {
+                    bySegmentNumber.put(archived.segmentNumber(), new WALSegmentSource(archived.segmentNumber(), null, archived.path()));
+                }
+            }
+        }
+        for (long segmentNumber : getAllSegmentNumbers(directoryPath)) {
+            WALSegmentSource archived = bySegmentNumber.get(segmentNumber);
+            Path livePath = Path.of(getSegmentFilePath(directoryPath, segmentNumber));
+            bySegmentNumber.put(segmentNumber, new WALSegmentSource(segmentNumber, livePath, archived != null ? archived.archivePath : null));
+        }
+        return new ArrayDeque<>(bySegmentNumber.values());
+    }
+
+    Path preferredPath() {
+        return livePath != null ? livePath : archivePath;
+    }
+
+    /**
+     * The archive copy to use once the live file is gone, looking it up again in case the segment
+     * was archived after it was listed. Returns null if there is none.
+     */
+    Path fallbackPath(String archiveDirectoryPath) {
+        if (archivePath != null) {
+            return archivePath.equals(preferredPath()) ? null : archivePath;
+        }
+        if (archiveDirectoryPath == null) {
+            return null;
+        }
+        return getAllArchivedSegments(archiveDirectoryPath).stream()
+                .filter(archived -> archived.segmentNumber() == segmentNumber)
+                .map(ArchivedSegment::path)
+                .findFirst()
+                .orElse(null);
+    }
+}
@@ -0,0 +1,250 @@
+package org.greengrapes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.greengrapes.WALSegmentReader.MAX_ENTRY_SIZE;
+import static org.greengrapes.WALUtils.getSegmentFilePath;
+
+/**
+ * Streams already-framed segment bytes to a standby without decoding or re-serializing records.
+ * <p>
+ * Each segment range is sent as a chunk of {@code [4-byte format version][8-byte length][frames]}
+ * (little-endian), where the frames are copied straight from the segment file with
+ * {@link FileChannel#transferTo} and the version is that segment's {@link WALFormat} version, which
+ * tells the receiver whether frames carry a trailer and may be separated by block padding. The other
+ * end is a {@link WALReceiver}. The live segments are leased for the duration of a shipment, so
+ * retention does not remove one that is still to be sent. Only live segments are shipped: a
+ * shipment whose first LSN has already been retired, archived or compacted away is refused rather
+ * than silently starting at a later record, unless the shipper was created to allow gaps.
+ */
+public class WALShipper {
+    static final int CHUNK_HEADER_SIZE = Integer.BYTES + Long.BYTES;
+
+    private static final int SIZE_PREFIX_BYTES = WALFormat.SIZE_PREFIX_BYTES;
+    private static final int LSN_FIELD_TAG = 0x08; // field 1, varint
+
+    private final WAL wal;
+    private final boolean allowGaps;
+    private final ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    public WALShipper(WAL wal) {
+        this(wal, false);
+    }
+
+    /**
+     * @param allowGaps ship from the oldest live record even if records from the requested LSN on
+     *                  are gone, e.g. for a compacted log whose standby does not need superseded records
+     */
+    public WALShipper(WAL wal, boolean allowGaps) {
+        this.wal = wal;
+        this.allowGaps = allowGaps;
+    }
+
+    /**
+     * Ships every complete frame whose LSN is at least {@code fromLogSequenceNumber}, across sealed
+     * segments and the active one. The target must be a blocking channel.
+     *
+     * @return the LSN of the last frame shipped, or {@code fromLogSequenceNumber - 1} if there was nothing to ship
+     * @throws IllegalArgumentException if the oldest live record is past {@code fromLogSequenceNumber}
+     *                                  and the shipper does not allow gaps
+     */
+    public long ship(long fromLogSequenceNumber, WritableByteChannel target) throws IOException {
+        if (target instanceof SelectableChannel selectable && !selectable.isBlocking()) {
+            throw new IllegalArgumentException("WAL shipping needs a blocking target channel");
+        }
+        wal.flush();
+
+        String directoryPath = wal.getDirectoryPath();
+        long lastShipped = fromLogSequenceNumber - 1;
+        try (WALSegmentLeases.Lease lease = wal.leaseSegments(0)) {
+            List<Long> segmentNumbers = new ArrayList<>();
+            for (WALSegmentSource source : lease.sources()) {
+                if (source.livePath() != null) {
+                    segmentNumbers.add(source.segmentNumber());
+                }
+            }
+
+            for (int i = findStartIndex(directoryPath, segmentNumbers, fromLogSequenceNumber); i < segmentNumbers.size(); i++) {
+                Path path = Path.of(getSegmentFilePath(directoryPath, segmentNumbers.get(i)));
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    for (FrameRange range : scan(channel, fromLogSequenceNumber)) {
+                        chunkHeader.clear();
+                        chunkHeader.putInt(range.version).putLong(range.length()).flip();
+                        while (chunkHeader.hasRemaining()) {
+                            target.write(chunkHeader);
+                        }
+
+                        transferFully(channel, range.start, range.length(), target);
+                        lastShipped = range.lastLogSequenceNumber;
+                    }
+                } finally {
+                    lease.release(segmentNumbers.get(i));
+                }
+            }
+        }
+
+        return lastShipped;
+    }
+
+    /**
+     * Segments are ordered by LSN, so the range starts in the newest segment whose first LSN is not
+     * past the requested one. Only the first frame of each candidate is inspected. If every live
+     * record is past the requested LSN, the records in between are gone.
+     */
+    private int findStartIndex(String directoryPath, List<Long> segmentNumbers, long fromLogSequenceNumber) throws IOException {
+        long oldestLsn = -1;
+        for (int i = segmentNumbers.size() - 1; i >= 0; i--) {
+            Path path = Path.of(getSegmentFilePath(directoryPath, segmentNumbers.get(i)));
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long firstLsn = readFirstLogSequenceNumber(channel);
+                if (firstLsn >= 0 && firstLsn <= fromLogSequenceNumber) {
+                    return i;
+                }
+                if (firstLsn >= 0) {
+                    oldestLsn = firstLsn;
+                }
+            }
+        }
+        if (oldestLsn > fromLogSequenceNumber && !allowGaps) {
+            throw new IllegalArgumentException("Cannot ship WAL " + directoryPath + " from LSN " + fromLogSequenceNumber
+                    + ": the oldest live record is LSN " + oldestLsn + ", the ones before it were retired or compacted away");
+        }
+        return 0;
+    }
+
+    private static long readFirstLogSequenceNumber(FileChannel channel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(WALFormat.HEADER_SIZE + SIZE_PREFIX_BYTES + 11).order(ByteOrder.LITTLE_ENDIAN);
+        while (head.hasRemaining() && channel.read(head, head.position()) > 0) {
+            // keep reading until the buffer is full or the file ends
+        }
+        int length = head.position();
+        int offset = WALFormat.headerSize(WALFormat.detectVersion(head.flip())) + SIZE_PREFIX_BYTES;
+        if (length <= offset || head.getInt(offset - SIZE_PREFIX_BYTES) < 0) {
+            return -1; // no frames, or block padding ahead of the first one: not worth following
+        }
+        return peekLogSequenceNumber(head, offset, length - offset);
+    }
+
+    /**
+     * Walks the length prefixes of a mapped segment to find the frames at or after the given LSN.
+     * Only frame headers are touched, and a partially flushed frame at the tail ends the range. A
+     * damaged block of a block-aligned segment is left out, splitting the frames around it into
+     * separate ranges.
+     */
+    private static List<FrameRange> scan(FileChannel channel, long fromLogSequenceNumber) throws IOException {
+        List<FrameRange> ranges = new ArrayList<>();
+        long fileSize = channel.size();
+        if (fileSize == 0) {
+            return ranges;
+        }
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IOException("WAL segment too large to ship: " + fileSize + " bytes");
+        }
+
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        int version = WALFormat.detectVersion(buffer);
+        int limit = buffer.limit();
+        int position = WALFormat.headerSize(version);
+        long start = -1;
+        long end = 0;
+        long lastLsn = -1;
+
+        boolean blockAligned = WALFormat.isBlockAligned(version);
+
+        while (position + SIZE_PREFIX_BYTES <= limit) {
+            int size = buffer.getInt(position);
+            if (blockAligned) {
+                if (WALFormat.isPadding(position, size)) {
+                    position -= size; // shipped along with the frames around it, and skipped by the receiver
+                    continue;
+                }
+                String damage = WALFormat.frameDamage(buffer, position, limit);
+                if (damage != null) {
+                    if (start >= 0) {
+                        ranges.add(new FrameRange(version, start, end, lastLsn));
+                        start = -1;
+                    }
+                    position = (int) WALFormat.skipDamagedBlock(position, limit, damage);
+                    continue;
+                }
+            }
+            if (size <= 0 || size > MAX_ENTRY_SIZE) {
+                throw new IOException("Invalid WAL entry size: " + size + " at offset " + position);
+            }
+            int frameSize = WALFormat.frameSize(version, size);
+            if ((long) position + frameSize > limit) {
+                break;
+            }
+
+            long lsn = peekLogSequenceNumber(buffer, position + SIZE_PREFIX_BYTES, size);
+            position += frameSize;
+
+            if (lsn >= fromLogSequenceNumber) {
+                if (start < 0) {
+                    start = position - frameSize;
+                }
+                end = position;
+                lastLsn = lsn;
+            }
+        }
+
+        if (start >= 0) {
+            ranges.add(new FrameRange(version, start, end, lastLsn));
+        }
+        return ranges;
+    }
+
+    /**
+     * Decodes the LSN straight from the serialized entry. Protobuf writes fields in field-number
+     * order, so {@code logSequenceNumber} (field 1) is always first when present.
+     */
+    static long peekLogSequenceNumber(ByteBuffer buffer, int offset, int length) {
+        if (length == 0 || buffer.get(offset) != LSN_FIELD_TAG) {
+            return 0;
+        }
+
+        long value = 0;
+        int end = offset + Math.min(length, 11);
+        for (int i = offset + 1, shift = 0; i < end && shift < 64; i++, shift += 7) {
+            byte b = buffer.get(i);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * A blocking target accepts at least one byte per call, so a call that moves nothing means the
+     * segment was cut under us; give up rather than spin.
+     */
+    private static void transferFully(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        while (count > 0) {
+            long transferred = source.transferTo(position, count, target);
+            if (transferred == 0) {
+                throw new IOException("WAL shipping made no progress at offset " + position + " with " + count + " bytes left");
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    private record FrameRange(int version, long start, long end, long lastLogSequenceNumber) {
+        long length() {
+            return end - start;
+        }
+    }
+}
@@ -4,14 +4,56 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class WALUtils {
+    private static final String SEGMENT_PREFIX = "wal_segment_";
+    private static final String ARCHIVE_PREFIX = "wal_archive_";
+    private static final String ARCHIVE_SUFFIX = ".log.gz";
+    private static final String INDEX_PREFIX = "wal_index_";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String SNAPSHOT_PREFIX = "kv_snapshot_";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+
     public static String getSegmentFilePath(String directoryPath, long segmentNumber) {
         return Path.of(directoryPath).resolve("wal_segment_" + segmentNumber + ".log").toString();
     }
 
+    /**
+     * Key index of a sealed segment. Named apart from segments so segment listings never pick it up.
+     */
+    public static String getSegmentIndexFilePath(String directoryPath, long segmentNumber) {
+        return Path.of(directoryPath).resolve(INDEX_PREFIX + segmentNumber + INDEX_SUFFIX).toString();
+    }
+
+    /**
+     * Compacted copy of a segment while it is being written, renamed over the segment when done.
+     */
+    public static String getCompactionTempFilePath(String directoryPath, long segmentNumber) {
+        return Path.of(directoryPath).resolve("wal_compact_" + segmentNumber + ".tmp").toString();
+    }
+
+    /**
+     * Retention floor of a log, kept across restarts so retention never runs ahead of a state
+     * machine that has not been reopened yet.
+     */
+    public static String getRetentionFloorFilePath(String directoryPath) {
+        return Path.of(directoryPath).resolve("wal_retention_floor").toString();
+    }
+
+    public static String getArchiveFilePath(String archiveDirectoryPath, long segmentNumber, long firstLogSequenceNumber, long lastLogSequenceNumber) {
+        return Path.of(archiveDirectoryPath)
+                .resolve(ARCHIVE_PREFIX + segmentNumber + "_" + firstLogSequenceNumber + "_" + lastLogSequenceNumber + ARCHIVE_SUFFIX)
+                .toString();
+    }
+
+    public static String getSnapshotFilePath(String snapshotDirectoryPath, long logSequenceNumber) {
+        return Path.of(snapshotDirectoryPath).resolve(SNAPSHOT_PREFIX + logSequenceNumber + SNAPSHOT_SUFFIX).toString();
+    }
+
     public static long findLatestSegmentNumber(String directoryPath, long defaultSegmentNumber) {
         return getAllSegmentNumbers(directoryPath).stream()
                 .max(Long::compareTo)
@@ -27,7 +69,7 @@ public class WALUtils {
     public static List<Long> getAllSegmentNumbers(String directoryPath) {
         try {
             return Files.list(Path.of(directoryPath))
-                    .filter(path -> path.getFileName().toString().startsWith("wal_segment_"))
+                    .filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX))
                     .map(WALUtils::extractSegmentNumber)
                     .collect(Collectors.toList());
         } catch (IOException e) {
@@ -35,9 +77,52 @@ public class WALUtils {
         }
     }
 
+    /**
+     * Lists archived segments ordered by segment number; an unreadable directory yields an empty list.
+     */
+    public static List<ArchivedSegment> getAllArchivedSegments(String archiveDirectoryPath) {
+        try (Stream<Path> files = Files.list(Path.of(archiveDirectoryPath))) {
+            return files
+                    .filter(path -> {
+                        String name = path.getFileName().toString();
+                        return name.startsWith(ARCHIVE_PREFIX) && name.endsWith(ARCHIVE_SUFFIX);
+                    })
+                    .map(WALUtils::parseArchivedSegment)
+                    .sorted(Comparator.comparingLong(ArchivedSegment::segmentNumber))
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Lists the LSNs of the snapshots in the directory, newest first; an unreadable directory yields an empty list.
+     */
+    public static List<Long> getAllSnapshotLogSequenceNumbers(String snapshotDirectoryPath) {
+        try (Stream<Path> files = Files.list(Path.of(snapshotDirectoryPath))) {
+            return files
+                    .map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX))
+                    .map(name -> Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length())))
+                    .sorted(Comparator.reverseOrder())
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            return Collections.emptyList();
+        }
+    }
+
     private static long extractSegmentNumber(Path path) {
         String name = path.getFileName().toString();
-        String numberPart = name.replace("wal_segment_", "").replace(".log", "");
+        String numberPart = name.replace(SEGMENT_PREFIX, "").replace(".log", "");
         return Long.parseLong(numberPart);
     }
+
+    private static ArchivedSegment parseArchivedSegment(Path path) {
+        String name = path.getFileName().toString();
+        String[] parts = name.substring(ARCHIVE_PREFIX.length(), name.length() - ARCHIVE_SUFFIX.length()).split("_");
+        return new ArchivedSegment(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]), path);
+    }
+
+    public record ArchivedSegment(long segmentNumber, long firstLogSequenceNumber, long lastLogSequenceNumber, Path path) {
+    }
 }
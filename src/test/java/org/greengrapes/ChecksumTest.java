@@ -1,7 +1,11 @@
 package org.greengrapes;
 
+import com.google.protobuf.ByteString;
+import org.greengrapes.proto.WALEntry;
 import org.junit.jupiter.api.Test;
 
+import java.nio.ByteBuffer;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class ChecksumTest {
@@ -61,4 +65,82 @@ class ChecksumTest {
         assertTrue(ex.getMessage().contains("Checksum mismatch"),
                 "Exception message should indicate mismatch");
     }
+
+    @Test
+    void testByteBufferChecksumMatchesByteArray() {
+        long lsn = 7L;
+        byte[] data = "xxpayloadxx".getBytes();
+        ByteBuffer buffer = ByteBuffer.wrap(data, 2, 7);
+
+        assertEquals(checksum.compute(lsn, "payload".getBytes()), checksum.compute(lsn, buffer));
+        assertEquals(2, buffer.position(), "compute should not consume the buffer");
+    }
+
+    @Test
+    void testDataOnlyEntriesOfVersion1SegmentsKeepTheLegacyChecksum() {
+        WALEntry entry = WALEntry.newBuilder()
+                .setLogSequenceNumber(7L)
+                .setData(ByteString.copyFromUtf8("hello"))
+                .setIsCheckpoint(true)
+                .build();
+
+        assertEquals(checksum.compute(7L, "hello".getBytes()), checksum.compute(entry, WALFormat.VERSION_1));
+        assertEquals(checksum.compute(entry), checksum.compute(entry, WALFormat.VERSION_2));
+        assertEquals(checksum.compute(entry.toBuilder().setType(1).build()),
+                checksum.compute(entry.toBuilder().setType(1).build(), WALFormat.VERSION_1), "typed entries are newer than version 1");
+    }
+
+    @Test
+    void testTypeKeyAndCheckpointChangeChecksum() {
+        ByteBuffer data = ByteBuffer.wrap("hello".getBytes());
+        ByteBuffer noKey = ByteBuffer.allocate(0);
+
+        int untyped = checksum.compute(7L, 0, noKey, data, false, 0, 0, 0);
+        int typed = checksum.compute(7L, 1, noKey, data, false, 0, 0, 0);
+        int keyed = checksum.compute(7L, 1, ByteBuffer.wrap("k".getBytes()), data, false, 0, 0, 0);
+        int checkpoint = checksum.compute(7L, 0, noKey, data, true, 0, 0, 0);
+
+        assertNotEquals(untyped, typed);
+        assertNotEquals(typed, keyed);
+        assertNotEquals(untyped, checkpoint, "the checkpoint flag is covered");
+    }
+
+    @Test
+    void testBytesMovedBetweenKeyAndDataChangeChecksum() {
+        int keyHeavy = checksum.compute(7L, 1, ByteBuffer.wrap("ab".getBytes()), ByteBuffer.wrap("c".getBytes()), false, 0, 0, 0);
+        int dataHeavy = checksum.compute(7L, 1, ByteBuffer.wrap("a".getBytes()), ByteBuffer.wrap("bc".getBytes()), false, 0, 0, 0);
+        int swapped = checksum.compute(7L, 1, ByteBuffer.wrap("c".getBytes()), ByteBuffer.wrap("ab".getBytes()), false, 0, 0, 0);
+
+        assertNotEquals(keyHeavy, dataHeavy);
+        assertNotEquals(keyHeavy, swapped);
+    }
+
+    @Test
+    void testFragmentFieldsChangeChecksum() {
+        ByteBuffer data = ByteBuffer.wrap("hello".getBytes());
+        ByteBuffer noKey = ByteBuffer.allocate(0);
+
+        int middle = checksum.compute(7L, 0, noKey, data, false, 2, 5L, 0);
+        assertNotEquals(middle, checksum.compute(7L, 0, noKey, data, false, 2, 4L, 0), "fragmentOf is covered");
+        assertNotEquals(middle, checksum.compute(7L, 0, noKey, data, false, 3, 5L, 0), "fragment is covered");
+        assertNotEquals(checksum.compute(7L, 0, noKey, data, false, 3, 5L, 1), checksum.compute(7L, 0, noKey, data, false, 3, 5L, 2),
+                "recordCRC is covered");
+    }
+
+    @Test
+    void testFieldVerificationMatchesEntryChecksum() {
+        WALEntry entry = WALEntry.newBuilder()
+                .setLogSequenceNumber(9L)
+                .setType(3)
+                .setKey(ByteString.copyFromUtf8("key"))
+                .setData(ByteString.copyFromUtf8("value"))
+                .setIsCheckpoint(true)
+                .build();
+        int crc = checksum.compute(entry, WALFormat.VERSION_2);
+
+        assertDoesNotThrow(() -> checksum.verify(9L, 3, ByteBuffer.wrap("key".getBytes()), ByteBuffer.wrap("value".getBytes()),
+                true, 0, 0, 0, crc, WALFormat.VERSION_2));
+        assertThrows(IllegalStateException.class, () -> checksum.verify(9L, 3, ByteBuffer.wrap("key".getBytes()),
+                ByteBuffer.wrap("value".getBytes()), false, 0, 0, 0, crc, WALFormat.VERSION_2));
+    }
 }
@@ -0,0 +1,65 @@
+package org.greengrapes;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+
+    @Test
+    void testEmptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        assertEquals(0.0, histogram.getMean());
+    }
+
+    @Test
+    void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 20; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(10, histogram.getValueAtPercentile(50));
+        assertEquals(20, histogram.getValueAtPercentile(100));
+        assertEquals(10.5, histogram.getMean());
+    }
+
+    @Test
+    void testPercentilesWithinRelativeError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 100_000; i++) {
+            histogram.record(i * 1000);
+        }
+
+        assertWithin(50_000_000, histogram.getValueAtPercentile(50));
+        assertWithin(99_000_000, histogram.getValueAtPercentile(99));
+        assertWithin(99_900_000, histogram.getValueAtPercentile(99.9));
+        assertEquals(100_000_000, histogram.getValueAtPercentile(100));
+        assertEquals(100_000_000, histogram.getMax());
+    }
+
+    @Test
+    void testMergeCombinesCounts() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            a.record(100);
+        }
+        b.record(1_000_000);
+
+        a.merge(b);
+
+        assertEquals(100, a.getCount());
+        assertEquals(1_000_000, a.getMax());
+        assertWithin(100, a.getValueAtPercentile(99));
+        assertEquals(1_000_000, a.getValueAtPercentile(100));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(Math.abs(actual - expected) <= expected * 0.04,
+                "Expected " + actual + " to be within 4% of " + expected);
+    }
+}
@@ -0,0 +1,178 @@
+package org.greengrapes;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WALApplyEngineTest {
+
+    @TempDir
+    Path tempDir;
+
+    private WAL writeKeyed(int records, int keys) {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 4096, 100);
+        for (int i = 1; i <= records; i++) {
+            wal.write(1, ("key-" + i % keys).getBytes(), ("value-" + i).getBytes());
+        }
+        wal.flush();
+        return wal;
+    }
+
+    @Test
+    void testAppliesEveryRecordInKeyOrder() {
+        WAL wal = writeKeyed(2000, 16);
+        Map<String, List<Long>> applied = new ConcurrentHashMap<>();
+
+        WALApplyEngine engine = WALApplyEngine.newBuilder()
+                .setPartitions(4)
+                .setQueueCapacity(100)
+                .setApplier(record -> applied
+                        .computeIfAbsent(new String(record.getKey()), key -> Collections.synchronizedList(new ArrayList<>()))
+                        .add(record.getLogSequenceNumber()))
+                .build();
+
+        WALApplyEngine.ApplyStats stats;
+        try (WALReplayReader replay = wal.replay(1)) {
+            stats = engine.apply(replay);
+        }
+
+        assertEquals(2000, stats.records());
+        assertEquals(0, stats.barriers());
+        assertEquals(2000, Arrays.stream(stats.partitionRecords()).sum());
+        assertEquals(16, applied.size());
+        for (List<Long> lsns : applied.values()) {
+            assertEquals(125, lsns.size());
+            for (int i = 1; i < lsns.size(); i++) {
+                assertTrue(lsns.get(i - 1) < lsns.get(i), "records of one key applied out of order");
+            }
+        }
+        wal.close();
+    }
+
+    @Test
+    void testBarrierWaitsForAllPartitions() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 4096, 100);
+        for (int i = 1; i <= 300; i++) {
+            wal.write(1, ("key-" + i % 7).getBytes(), ("value-" + i).getBytes());
+        }
+        long checkpointLsn = wal.writeCheckpoint("snapshot".getBytes());
+        for (int i = 1; i <= 300; i++) {
+            wal.write(1, ("key-" + i % 7).getBytes(), ("value-" + i).getBytes());
+        }
+        wal.flush();
+
+        AtomicLong appliedBefore = new AtomicLong(-1);
+        AtomicLong appliedCount = new AtomicLong();
+        WALApplyEngine engine = WALApplyEngine.newBuilder()
+                .setPartitions(3)
+                .setQueueCapacity(8)
+                .setApplier(record -> {
+                    if (record.isCheckpoint()) {
+                        assertEquals(checkpointLsn, record.getLogSequenceNumber());
+                        appliedBefore.set(appliedCount.get());
+                    }
+                    appliedCount.incrementAndGet();
+                })
+                .build();
+
+        WALApplyEngine.ApplyStats stats;
+        try (WALReplayReader replay = wal.replay(1)) {
+            stats = engine.apply(replay);
+        }
+
+        assertEquals(300, appliedBefore.get());
+        assertEquals(601, appliedCount.get());
+        assertEquals(601, stats.records());
+        assertEquals(1, stats.barriers());
+        wal.close();
+    }
+
+    @Test
+    void testApplierFailureIsRethrown() {
+        WAL wal = writeKeyed(500, 5);
+        IllegalStateException failure = new IllegalStateException("bad record");
+        AtomicBoolean failing = new AtomicBoolean(true);
+        AtomicLong count = new AtomicLong();
+
+        WALApplyEngine engine = WALApplyEngine.newBuilder()
+                .setPartitions(2)
+                .setQueueCapacity(1)
+                .setApplier(record -> {
+                    if (failing.get() && record.getLogSequenceNumber() == 100) {
+                        throw failure;
+                    }
+                    count.incrementAndGet();
+                })
+                .build();
+
+        try (WALReplayReader replay = wal.replay(1)) {
+            assertSame(failure, assertThrows(IllegalStateException.class, () -> engine.apply(replay)));
+        }
+
+        // The same engine can be used again after a failed run.
+        failing.set(false);
+        count.set(0);
+        try (WALReplayReader replay = wal.replay(1)) {
+            WALApplyEngine.ApplyStats stats = engine.apply(replay);
+            assertEquals(500, stats.records());
+            assertEquals(500, Arrays.stream(stats.partitionRecords()).sum());
+        }
+        assertEquals(500, count.get());
+        wal.close();
+    }
+
+    @Test
+    void testFragmentsFollowTheirFirstFragment() {
+        // Interleaved chains: the first fragment of every chain, then their middle and last fragments.
+        int chains = 50;
+        List<WALRecord> records = new ArrayList<>();
+        for (int i = 1; i <= chains; i++) {
+            records.add(new WALRecord(i, 1, ("key-" + i).getBytes(), false, WALRecord.Fragment.FIRST, 0, new byte[1]));
+        }
+        for (int i = 1; i <= chains; i++) {
+            records.add(new WALRecord(chains + i, 0, new byte[0], false, WALRecord.Fragment.MIDDLE, i, new byte[1]));
+        }
+        for (int i = 1; i <= chains; i++) {
+            records.add(new WALRecord(2 * chains + i, 0, new byte[0], false, WALRecord.Fragment.LAST, i, new byte[1]));
+        }
+
+        Map<Long, String> threads = new ConcurrentHashMap<>();
+        WALApplyEngine engine = WALApplyEngine.newBuilder()
+                .setPartitions(4)
+                .setQueueCapacity(8)
+                .setApplier(record -> threads.put(record.getLogSequenceNumber(), Thread.currentThread().getName()))
+                .build();
+        assertEquals(3 * chains, engine.apply(records.iterator()).records());
+
+        for (long i = 1; i <= chains; i++) {
+            assertEquals(threads.get(i), threads.get(chains + i), "middle fragment of chain " + i);
+            assertEquals(threads.get(i), threads.get(2 * chains + i), "last fragment of chain " + i);
+        }
+        assertEquals(4, new HashSet<>(threads.values()).size());
+    }
+
+    @Test
+    void testBuilderRequiresApplierAndPositiveLimits() {
+        assertThrows(IllegalArgumentException.class, () -> WALApplyEngine.newBuilder().build());
+        assertThrows(IllegalArgumentException.class, () -> WALApplyEngine.newBuilder()
+                .setApplier(record -> { })
+                .setPartitions(0)
+                .build());
+        assertThrows(IllegalArgumentException.class, () -> WALApplyEngine.newBuilder()
+                .setApplier(record -> { })
+                .setQueueCapacity(0)
+                .build());
+    }
+}
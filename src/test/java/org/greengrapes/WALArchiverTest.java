@@ -0,0 +1,86 @@
+package org.greengrapes;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WALArchiverTest {
+
+    @TempDir
+    Path tempDir;
+
+    private WAL openArchivingWAL() {
+        WALOptions options = WALOptions.newBuilder()
+                .setArchiveDirectoryPath(tempDir.resolve("archive").toString())
+                .build();
+        return WAL.openWAL(tempDir.resolve("live").toString(), false, 100, 2, options);
+    }
+
+    @Test
+    void testRetiredSegmentsAreArchivedInsteadOfDeleted() throws Exception {
+        WAL wal = openArchivingWAL();
+        for (int i = 1; i <= 30; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.close(); // waits for queued archiving
+
+        List<WALUtils.ArchivedSegment> archived = WALUtils.getAllArchivedSegments(tempDir.resolve("archive").toString());
+        assertFalse(archived.isEmpty(), "Retired segments should be archived");
+
+        for (WALUtils.ArchivedSegment segment : archived) {
+            assertFalse(Files.exists(Path.of(WALUtils.getSegmentFilePath(tempDir.resolve("live").toString(), segment.segmentNumber()))),
+                    "Live copy of an archived segment should be removed");
+            assertTrue(segment.firstLogSequenceNumber() <= segment.lastLogSequenceNumber());
+        }
+
+        for (int i = 1; i < archived.size(); i++) {
+            assertEquals(archived.get(i - 1).lastLogSequenceNumber() + 1, archived.get(i).firstLogSequenceNumber(),
+                    "Archived LSN ranges should be contiguous");
+        }
+    }
+
+    @Test
+    void testReadAllSpansArchiveAndLiveSegments() {
+        WAL wal = openArchivingWAL();
+        for (int i = 1; i <= 30; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.close();
+
+        WAL reopened = openArchivingWAL();
+        List<WALRecord> records = reopened.readAll();
+
+        assertEquals(30, records.size());
+        for (int i = 0; i < 30; i++) {
+            assertEquals(i + 1, records.get(i).getLogSequenceNumber());
+            assertArrayEquals(("record-" + (i + 1)).getBytes(), records.get(i).getData());
+        }
+        reopened.close();
+    }
+
+    @Test
+    void testCursorStartsFromLsnInsideArchive() {
+        WAL wal = openArchivingWAL();
+        for (int i = 1; i <= 30; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.close();
+
+        WAL reopened = openArchivingWAL();
+        List<Long> lsns = new ArrayList<>();
+        try (WALCursor cursor = reopened.cursor(5)) {
+            cursor.forEachRemaining(record -> lsns.add(record.getLogSequenceNumber()));
+        }
+
+        assertEquals(26, lsns.size());
+        assertEquals(5, (long) lsns.get(0));
+        assertEquals(30, (long) lsns.get(lsns.size() - 1));
+        reopened.close();
+    }
+}
@@ -0,0 +1,235 @@
+package org.greengrapes;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WALCompactorTest {
+    private static final int PUT = 1;
+    private static final int DELETE = 2;
+
+    @TempDir
+    Path tempDir;
+
+    private WAL open(WALOptions.Builder options) {
+        return WAL.openWAL(tempDir.toString(), false, 300, 10_000, options
+                .setCompactionEnabled(true)
+                .setRetentionCheckInterval(Duration.ofHours(1))
+                .setCompactionCheckInterval(Duration.ofHours(1))
+                .build());
+    }
+
+    /**
+     * Writes unkeyed records until everything written before is in sealed segments.
+     */
+    private static void sealEverything(WAL wal) {
+        for (int i = 0; i < 10; i++) {
+            wal.write(("filler-" + "x".repeat(200) + i).getBytes());
+        }
+        wal.flush();
+    }
+
+    private static Map<String, WALRecord> keyedRecords(WAL wal) {
+        return wal.readAll().stream()
+                .filter(record -> record.getKey().length > 0)
+                .collect(Collectors.toMap(record -> new String(record.getKey()), record -> record,
+                        (a, b) -> {
+                            throw new AssertionError("two records of key " + new String(a.getKey()) + " survived");
+                        }, TreeMap::new));
+    }
+
+    private static long segmentFileCount(Path directory) throws Exception {
+        try (var files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".log")).count();
+        }
+    }
+
+    @Test
+    void testCompactionKeepsNewestRecordOfEachKey() throws Exception {
+        WAL wal = open(WALOptions.newBuilder().setCompactionMinDirtyRatio(0));
+        long[] newest = new long[20];
+        for (int version = 1; version <= 20; version++) {
+            for (int key = 0; key < 20; key++) {
+                newest[key] = wal.write(PUT, ("key-" + key).getBytes(), ("value-" + version).getBytes());
+            }
+        }
+        sealEverything(wal);
+        assertNotNull(wal.findLatest("key-3".getBytes())); // builds the key index of the old segments
+
+        wal.compact();
+
+        Map<String, WALRecord> keyed = keyedRecords(wal);
+        assertEquals(20, keyed.size());
+        for (int key = 0; key < 20; key++) {
+            WALRecord record = keyed.get("key-" + key);
+            assertEquals(newest[key], record.getLogSequenceNumber());
+            assertEquals("value-20", new String(record.getData()));
+            assertEquals(newest[key], wal.findLatest(("key-" + key).getBytes()).getLogSequenceNumber());
+        }
+        assertEquals(10, wal.readAll().size() - keyed.size());
+        // About 40 segments were written; emptied ones are deleted, leaving the fillers and the newest values.
+        assertTrue(segmentFileCount(tempDir) < 20, "emptied segments should be deleted");
+
+        long last = wal.getLastLogSequenceNumber();
+        wal.close();
+
+        WAL reopened = open(WALOptions.newBuilder());
+        assertEquals(last, reopened.getLastLogSequenceNumber());
+        assertEquals(last + 1, reopened.write("after".getBytes()));
+        reopened.close();
+    }
+
+    @Test
+    void testEmptiedSegmentsWaitForTheirReaders() throws Exception {
+        WAL wal = open(WALOptions.newBuilder().setCompactionMinDirtyRatio(0));
+        String first = "x".repeat(250); // fills segment 1 by itself, so it is only ever emptied as a whole
+        wal.write(PUT, "key-0".getBytes(), first.getBytes());
+        wal.commit();
+        WALCursor cursor = wal.cursor(1); // leases segment 1
+
+        for (int version = 1; version <= 20; version++) {
+            for (int key = 0; key < 20; key++) {
+                wal.write(PUT, ("key-" + key).getBytes(), ("value-" + version).getBytes());
+            }
+        }
+        sealEverything(wal);
+        wal.compact();
+        Path firstSegment = Path.of(WALUtils.getSegmentFilePath(tempDir.toString(), 1));
+        assertTrue(Files.exists(firstSegment), "a segment being read is only retired");
+        assertEquals(first, new String(cursor.next().getData()));
+
+        cursor.close();
+        assertFalse(Files.exists(firstSegment), "the retired segment goes with the last reader");
+        assertEquals(20, keyedRecords(wal).size());
+        wal.close();
+    }
+
+    @Test
+    void testTombstonesAreKeptUntilTheirRetentionExpires() throws Exception {
+        WAL wal = open(WALOptions.newBuilder().setCompactionMinDirtyRatio(0).setCompactionTombstoneType(DELETE));
+        wal.write(PUT, "gone".getBytes(), "old".getBytes());
+        long tombstone = wal.write(DELETE, "gone".getBytes(), new byte[0]);
+        long kept = wal.write(PUT, "kept".getBytes(), "value".getBytes());
+        sealEverything(wal);
+
+        wal.compact();
+        Map<String, WALRecord> keyed = keyedRecords(wal);
+        assertEquals(tombstone, keyed.get("gone").getLogSequenceNumber());
+        assertEquals(kept, keyed.get("kept").getLogSequenceNumber());
+        wal.close();
+
+        FileTime longAgo = FileTime.from(Instant.now().minus(Duration.ofDays(2)));
+        for (long segmentNumber : WALUtils.getAllSegmentNumbers(tempDir.toString())) {
+            Files.setLastModifiedTime(Path.of(WALUtils.getSegmentFilePath(tempDir.toString(), segmentNumber)), longAgo);
+        }
+
+        WAL reopened = open(WALOptions.newBuilder().setCompactionMinDirtyRatio(0).setCompactionTombstoneType(DELETE));
+        reopened.compact();
+        keyed = keyedRecords(reopened);
+        assertFalse(keyed.containsKey("gone"));
+        assertEquals(kept, keyed.get("kept").getLogSequenceNumber());
+        reopened.close();
+    }
+
+    @Test
+    void testStreamedRecordsAreDroppedWithAllTheirFragments() throws Exception {
+        WAL wal = open(WALOptions.newBuilder().setCompactionMinDirtyRatio(0));
+        byte[] oldPayload = new byte[1536 * 1024];
+        byte[] newPayload = new byte[1536 * 1024];
+        new Random(7).nextBytes(oldPayload);
+        new Random(8).nextBytes(newPayload);
+
+        long oldLsn = wal.write(PUT, "blob".getBytes(), new ByteArrayInputStream(oldPayload));
+        long newLsn = wal.write(PUT, "blob".getBytes(), new ByteArrayInputStream(newPayload));
+        sealEverything(wal);
+
+        wal.compact();
+
+        List<WALRecord> records = wal.readAll();
+        assertTrue(records.stream().noneMatch(record -> record.getLogSequenceNumber() == oldLsn
+                || record.getLogSequenceNumber() == oldLsn + 1), "every fragment of the old record is dropped");
+        assertEquals(2, records.stream().filter(record -> record.getFragment() != WALRecord.Fragment.NONE).count());
+        try (InputStream in = wal.openRecordStream(newLsn)) {
+            assertArrayEquals(newPayload, in.readAllBytes());
+        }
+        assertThrows(IllegalArgumentException.class, () -> wal.openRecordStream(oldLsn));
+        wal.close();
+    }
+
+    @Test
+    void testRecordsPastTheHorizonDoNotSupersedeOlderOnes() throws Exception {
+        WAL wal = open(WALOptions.newBuilder().setCompactionMinDirtyRatio(0));
+        long committed = wal.write(PUT, "leader".getBytes(), "term-1".getBytes());
+        wal.setCompactionHorizon(committed);
+        wal.write(PUT, "leader".getBytes(), "term-2-uncommitted".getBytes());
+        sealEverything(wal);
+
+        wal.compact();
+        wal.truncateAfter(committed); // the uncommitted suffix is discarded after a leader change
+
+        WALRecord leader = keyedRecords(wal).get("leader");
+        assertEquals(committed, leader.getLogSequenceNumber());
+        assertEquals("term-1", new String(leader.getData()));
+        wal.close();
+    }
+
+    @Test
+    void testSealedSegmentsAreCompactedInTheBackground() throws Exception {
+        // Passes run as segments seal, so any obsolete leftover has to be enough for one more pass.
+        WAL wal = open(WALOptions.newBuilder().setCompactionMinDirtyRatio(0.01));
+        for (int version = 1; version <= 10; version++) {
+            for (int key = 0; key < 10; key++) {
+                wal.write(PUT, ("key-" + key).getBytes(), ("value-" + version).getBytes());
+            }
+        }
+        sealEverything(wal);
+
+        // No explicit pass and no periodic check within the test: sealing a segment triggers the check.
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (wal.readAll().stream().filter(record -> record.getKey().length > 0).count() > 10
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Map<String, WALRecord> keyed = keyedRecords(wal);
+        assertEquals(10, keyed.size());
+        keyed.values().forEach(record -> assertEquals("value-10", new String(record.getData())));
+        wal.close();
+    }
+
+    @Test
+    void testNothingIsRewrittenBelowTheDirtyRatio() {
+        WAL wal = open(WALOptions.newBuilder().setCompactionMinDirtyRatio(0.9));
+        wal.write(PUT, "a".getBytes(), "1".getBytes());
+        wal.write(PUT, "a".getBytes(), "2".getBytes());
+        for (int key = 0; key < 20; key++) {
+            wal.write(PUT, ("key-" + key).getBytes(), "value".getBytes());
+        }
+        sealEverything(wal);
+        int recordsBefore = wal.readAll().size();
+
+        assertEquals(0, wal.compact());
+        assertEquals(recordsBefore, wal.readAll().size());
+        wal.close();
+    }
+
+    @Test
+    void testCompactRequiresCompactionToBeEnabled() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 300, 100);
+        assertThrows(IllegalStateException.class, wal::compact);
+        wal.close();
+    }
+}
@@ -0,0 +1,120 @@
+package org.greengrapes;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WALFilterTest {
+
+    private static final int TYPE_PUT = 1;
+    private static final int TYPE_DELETE = 2;
+
+    @TempDir
+    Path tempDir;
+
+    private WAL writeMixedLog() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 200, 100);
+        for (int i = 1; i <= 30; i++) {
+            int type = i % 3 == 0 ? TYPE_DELETE : TYPE_PUT;
+            wal.write(type, ("key-" + (i % 5)).getBytes(), ("value-" + i).getBytes());
+        }
+        wal.writeCheckpoint("checkpoint".getBytes());
+        wal.write("untyped".getBytes());
+        wal.commit();
+        return wal;
+    }
+
+    @Test
+    void testFilterByType() {
+        WAL wal = writeMixedLog();
+
+        List<WALRecord> deletes = wal.scan(WALFilter.newBuilder().addType(TYPE_DELETE).build());
+        assertEquals(10, deletes.size());
+        for (WALRecord record : deletes) {
+            assertEquals(TYPE_DELETE, record.getType());
+            assertEquals(0, record.getLogSequenceNumber() % 3);
+        }
+
+        List<WALRecord> typed = wal.scan(WALFilter.newBuilder().addType(TYPE_DELETE).addType(TYPE_PUT).build());
+        assertEquals(30, typed.size());
+        wal.close();
+    }
+
+    @Test
+    void testFilterByKey() {
+        WAL wal = writeMixedLog();
+
+        List<WALRecord> records = wal.scan(WALFilter.newBuilder().setKey("key-2".getBytes()).build());
+        assertEquals(6, records.size());
+        for (WALRecord record : records) {
+            assertArrayEquals("key-2".getBytes(), record.getKey());
+            assertEquals(2, record.getLogSequenceNumber() % 5);
+            assertArrayEquals(("value-" + record.getLogSequenceNumber()).getBytes(), record.getData());
+        }
+        wal.close();
+    }
+
+    @Test
+    void testFilterCheckpointsOnly() {
+        WAL wal = writeMixedLog();
+
+        List<WALRecord> records = wal.scan(WALFilter.newBuilder().setCheckpointOnly(true).build());
+        assertEquals(1, records.size());
+        assertEquals(31, records.get(0).getLogSequenceNumber());
+        assertTrue(records.get(0).isCheckpoint());
+        assertArrayEquals("checkpoint".getBytes(), records.get(0).getData());
+        wal.close();
+    }
+
+    @Test
+    void testFilterByLsnRange() {
+        WAL wal = writeMixedLog();
+
+        List<WALRecord> records = wal.scan(WALFilter.newBuilder()
+                .setFromLogSequenceNumber(10)
+                .setToLogSequenceNumber(20)
+                .build());
+        assertEquals(11, records.size());
+        assertEquals(10, records.get(0).getLogSequenceNumber());
+        assertEquals(20, records.get(records.size() - 1).getLogSequenceNumber());
+        wal.close();
+    }
+
+    @Test
+    void testUntypedRecordsKeepDefaults() {
+        WAL wal = writeMixedLog();
+
+        List<WALRecord> records = wal.scan(WALFilter.newBuilder().setFromLogSequenceNumber(32).build());
+        assertEquals(1, records.size());
+        assertEquals(0, records.get(0).getType());
+        assertEquals(0, records.get(0).getKey().length);
+        assertFalse(records.get(0).isCheckpoint());
+        wal.close();
+    }
+
+    @Test
+    void testNonMatchingPayloadIsNotChecksummed() throws Exception {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 1024, 10);
+        wal.write(TYPE_PUT, "a".getBytes(), "payload".getBytes());
+        wal.write(TYPE_DELETE, "b".getBytes(), "payload".getBytes());
+        wal.commit();
+
+        // Segment header (8) + size prefix (4) + LSN tag and value (2) + data tag and length (2) puts the first payload at offset 16
+        try (RandomAccessFile raf = new RandomAccessFile(WALUtils.getSegmentFilePath(tempDir.toString(), 1), "rw")) {
+            raf.seek(16);
+            raf.writeByte('P');
+        }
+
+        List<WALRecord> records = wal.scan(WALFilter.newBuilder().addType(TYPE_DELETE).build());
+        assertEquals(1, records.size());
+        assertEquals(2, records.get(0).getLogSequenceNumber());
+
+        assertThrows(IllegalStateException.class, () -> wal.scan(WALFilter.newBuilder().addType(TYPE_PUT).build()));
+        wal.close();
+    }
+}
@@ -0,0 +1,249 @@
+package org.greengrapes;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WALKeyValueStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    private WAL openWAL() {
+        return WAL.openWAL(tempDir.resolve("wal").toString(), false, 4096, 100);
+    }
+
+    private WALKeyValueStore openStore(WAL wal) {
+        return WALKeyValueStore.open(wal, tempDir.resolve("snapshots").toString(), null);
+    }
+
+    @Test
+    void testPutGetDelete() {
+        WAL wal = openWAL();
+        WALKeyValueStore store = openStore(wal);
+
+        long lsn = store.put("a".getBytes(), "1".getBytes());
+        store.put("b".getBytes(), "2".getBytes());
+        store.delete("a".getBytes());
+
+        assertNull(store.get("a".getBytes()));
+        assertArrayEquals("2".getBytes(), store.get("b".getBytes()));
+        assertEquals(1, store.size());
+        assertEquals(lsn + 2, store.getAppliedLogSequenceNumber());
+
+        store.close();
+        wal.close();
+    }
+
+    @Test
+    void testApplicationRecordsOfOtherTypesAreNotReplayed() {
+        WAL wal = openWAL();
+        WALKeyValueStore store = openStore(wal);
+        store.put("a".getBytes(), "1".getBytes());
+        wal.write(1, "b".getBytes(), "application record".getBytes());
+        wal.write(2, "a".getBytes(), new byte[0]);
+        store.close();
+        wal.close();
+
+        WAL reopenedWAL = openWAL();
+        WALKeyValueStore reopened = openStore(reopenedWAL);
+        assertEquals(1, reopened.size());
+        assertArrayEquals("1".getBytes(), reopened.get("a".getBytes()));
+        reopened.close();
+        reopenedWAL.close();
+    }
+
+    @Test
+    void testCustomRecordTypes() {
+        WAL wal = openWAL();
+        String snapshotDir = tempDir.resolve("snapshots").toString();
+        WALKeyValueStore store = WALKeyValueStore.open(wal, snapshotDir, null, 10, 11);
+        store.put("a".getBytes(), "1".getBytes());
+        store.put("b".getBytes(), "2".getBytes());
+        store.delete("a".getBytes());
+        store.close();
+        wal.commit();
+        assertEquals(2, wal.scan(WALFilter.newBuilder().addType(10).build()).size());
+        wal.close();
+
+        WAL reopenedWAL = openWAL();
+        WALKeyValueStore reopened = WALKeyValueStore.open(reopenedWAL, snapshotDir, null, 10, 11);
+        assertEquals(1, reopened.size());
+        assertArrayEquals("2".getBytes(), reopened.get("b".getBytes()));
+        reopened.close();
+
+        assertThrows(IllegalArgumentException.class, () -> WALKeyValueStore.open(reopenedWAL, snapshotDir, null, 3, 3));
+        reopenedWAL.close();
+    }
+
+    @Test
+    void testValuesLargerThanABlockSurviveReplay() {
+        WALOptions options = WALOptions.newBuilder().setBlockLayout(true).build();
+        String walDir = tempDir.resolve("wal").toString();
+        byte[] large = new byte[100 * 1024];
+        new Random(7).nextBytes(large);
+
+        WAL wal = WAL.openWAL(walDir, false, 256 * 1024, 100, options);
+        WALKeyValueStore store = openStore(wal);
+        store.put("small".getBytes(), "1".getBytes());
+        store.put("large".getBytes(), large);
+        store.put("after".getBytes(), "2".getBytes());
+        assertArrayEquals(large, store.get("large".getBytes()));
+        store.close();
+        wal.close();
+
+        WAL reopenedWAL = WAL.openWAL(walDir, false, 256 * 1024, 100, options);
+        WALKeyValueStore reopened = openStore(reopenedWAL);
+        assertEquals(3, reopened.size());
+        assertArrayEquals(large, reopened.get("large".getBytes()));
+        assertArrayEquals("2".getBytes(), reopened.get("after".getBytes()));
+        reopened.close();
+        reopenedWAL.close();
+    }
+
+    @Test
+    void testStateRebuiltFromWALWithoutSnapshot() {
+        WAL wal = openWAL();
+        WALKeyValueStore store = openStore(wal);
+        for (int i = 0; i < 100; i++) {
+            store.put(("key-" + (i % 10)).getBytes(), ("value-" + i).getBytes());
+        }
+        store.delete("key-0".getBytes());
+        wal.write("not a kv record".getBytes());
+        store.close();
+        wal.close();
+
+        WAL reopenedWAL = openWAL();
+        WALKeyValueStore reopened = openStore(reopenedWAL);
+        assertEquals(9, reopened.size());
+        assertNull(reopened.get("key-0".getBytes()));
+        assertArrayEquals("value-99".getBytes(), reopened.get("key-9".getBytes()));
+        assertEquals(0, reopened.getSnapshotLogSequenceNumber());
+        reopened.close();
+        reopenedWAL.close();
+    }
+
+    @Test
+    void testReopenReplaysOnlyRecordsAfterSnapshot() throws Exception {
+        WAL wal = openWAL();
+        WALKeyValueStore store = openStore(wal);
+        store.put("a".getBytes(), "before".getBytes());
+        store.put("b".getBytes(), "before".getBytes());
+        long snapshotLsn = store.snapshot();
+        store.put("b".getBytes(), "after".getBytes());
+        store.put("c".getBytes(), "after".getBytes());
+        store.close();
+        wal.close();
+
+        // Corrupt the payload of LSN 1 (past the segment header); it is covered by the snapshot so replay must not read it.
+        try (RandomAccessFile raf = new RandomAccessFile(WALUtils.getSegmentFilePath(tempDir.resolve("wal").toString(), 1), "rw")) {
+            raf.seek(16);
+            raf.writeByte('X');
+        }
+
+        WAL reopenedWAL = openWAL();
+        WALKeyValueStore reopened = openStore(reopenedWAL);
+        assertEquals(snapshotLsn, reopened.getSnapshotLogSequenceNumber());
+        assertEquals(3, reopened.size());
+        assertArrayEquals("before".getBytes(), reopened.get("a".getBytes()));
+        assertArrayEquals("after".getBytes(), reopened.get("b".getBytes()));
+        assertArrayEquals("after".getBytes(), reopened.get("c".getBytes()));
+        assertEquals(4, reopened.getAppliedLogSequenceNumber());
+        reopened.close();
+        reopenedWAL.close();
+    }
+
+    @Test
+    void testCorruptSnapshotFallsBackToOlderOne() throws Exception {
+        WAL wal = openWAL();
+        WALKeyValueStore store = openStore(wal);
+        store.put("a".getBytes(), "1".getBytes());
+        store.snapshot();
+        store.put("a".getBytes(), "2".getBytes());
+        long newest = store.snapshot();
+        store.close();
+        wal.close();
+
+        Path newestPath = Path.of(WALUtils.getSnapshotFilePath(tempDir.resolve("snapshots").toString(), newest));
+        try (RandomAccessFile raf = new RandomAccessFile(newestPath.toFile(), "rw")) {
+            raf.seek(raf.length() - 6);
+            raf.writeByte('X');
+        }
+
+        WAL reopenedWAL = openWAL();
+        WALKeyValueStore reopened = openStore(reopenedWAL);
+        assertEquals(1, reopened.getSnapshotLogSequenceNumber());
+        assertArrayEquals("2".getBytes(), reopened.get("a".getBytes()));
+        reopened.close();
+        reopenedWAL.close();
+    }
+
+    @Test
+    void testBackgroundSnapshotsKeepOnlyTheNewest() throws Exception {
+        WAL wal = openWAL();
+        String snapshotDir = tempDir.resolve("snapshots").toString();
+        WALKeyValueStore store = WALKeyValueStore.open(wal, snapshotDir, Duration.ofMillis(20));
+
+        for (int i = 1; i <= 5; i++) {
+            store.put("key".getBytes(), ("value-" + i).getBytes());
+            long lsn = store.getAppliedLogSequenceNumber();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (store.getSnapshotLogSequenceNumber() != lsn && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(lsn, store.getSnapshotLogSequenceNumber());
+        }
+
+        store.close();
+        wal.close();
+
+        assertEquals(2, WALUtils.getAllSnapshotLogSequenceNumbers(snapshotDir).size());
+        try (var files = Files.list(Path.of(snapshotDir))) {
+            assertTrue(files.noneMatch(path -> path.toString().endsWith(".tmp")));
+        }
+    }
+
+    @Test
+    void testRetentionKeepsTheRecordsAfterTheLastSnapshot() throws Exception {
+        String walDir = tempDir.resolve("wal").toString();
+        WALOptions options = WALOptions.newBuilder().setRetentionCheckInterval(Duration.ofMillis(20)).build();
+        WAL wal = WAL.openWAL(walDir, false, 4096, 3, options);
+        WALKeyValueStore store = openStore(wal);
+        byte[] value = new byte[100];
+
+        for (int i = 0; i < 200; i++) {
+            store.put(("before-" + i).getBytes(), value);
+        }
+        Thread.sleep(200);
+        assertEquals(1, WALUtils.getAllSegmentNumbers(walDir).stream().mapToLong(Long::longValue).min().getAsLong(),
+                "nothing has been snapshotted yet, so every segment is needed on reopen");
+
+        store.snapshot();
+        for (int i = 0; i < 200; i++) {
+            store.put(("after-" + i).getBytes(), value);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (WALUtils.getAllSegmentNumbers(walDir).contains(1L) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(WALUtils.getAllSegmentNumbers(walDir).contains(1L), "segments before the snapshot are retired");
+        Thread.sleep(200);
+        store.close();
+        wal.close();
+
+        WAL reopenedWAL = WAL.openWAL(walDir, false, 4096, 3, options);
+        WALKeyValueStore reopened = openStore(reopenedWAL);
+        assertEquals(400, reopened.size());
+        assertArrayEquals(value, reopened.get("before-0".getBytes()));
+        assertArrayEquals(value, reopened.get("after-199".getBytes()));
+        reopened.close();
+        reopenedWAL.close();
+    }
+}
@@ -0,0 +1,114 @@
+package org.greengrapes;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WALKeyValueTableTest {
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> contents(WALKeyValueTable.Cut cut) {
+        Map<String, String> contents = new HashMap<>();
+        cut.forEach((key, value) -> contents.put(StandardCharsets.UTF_8.decode(key).toString(),
+                StandardCharsets.UTF_8.decode(value).toString()));
+        return contents;
+    }
+
+    @Test
+    void testPutReplaceAndRemove() {
+        WALKeyValueTable table = new WALKeyValueTable();
+        table.put(bytes("a"), bytes("1"));
+        table.put(bytes("b"), bytes("2"));
+        table.put(bytes("a"), bytes("3"));
+        table.put(bytes("empty"), new byte[0]);
+
+        assertArrayEquals(bytes("3"), table.get(bytes("a")));
+        assertArrayEquals(new byte[0], table.get(bytes("empty")));
+        assertEquals(3, table.size());
+
+        assertTrue(table.remove(bytes("a")));
+        assertFalse(table.remove(bytes("a")));
+        assertNull(table.get(bytes("a")));
+        assertFalse(table.containsKey(bytes("a")));
+        assertTrue(table.containsKey(bytes("b")));
+        assertEquals(2, table.size());
+
+        table.put(bytes("a"), bytes("4"));
+        assertArrayEquals(bytes("4"), table.get(bytes("a")));
+        assertEquals(3, table.size());
+    }
+
+    @Test
+    void testManyKeysSurviveResizing() {
+        WALKeyValueTable table = new WALKeyValueTable();
+        for (int i = 0; i < 100_000; i++) {
+            table.put(bytes("key-" + i), bytes("value-" + i));
+        }
+        for (int i = 0; i < 100_000; i += 2) {
+            table.remove(bytes("key-" + i));
+        }
+
+        assertEquals(50_000, table.size());
+        for (int i = 0; i < 100_000; i++) {
+            byte[] value = table.get(bytes("key-" + i));
+            if (i % 2 == 0) {
+                assertNull(value);
+            } else {
+                assertArrayEquals(bytes("value-" + i), value);
+            }
+        }
+    }
+
+    @Test
+    void testReplacedValuesAreReclaimedWithoutDisturbingAnEarlierCut() {
+        WALKeyValueTable table = new WALKeyValueTable();
+        byte[] value = new byte[64 * 1024];
+        for (int i = 0; i < 10; i++) {
+            table.put(bytes("key-" + i), value);
+        }
+        table.put(bytes("kept"), bytes("before"));
+        WALKeyValueTable.Cut cut = table.cut();
+
+        byte[] newValue = new byte[64 * 1024];
+        newValue[0] = 1;
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 10; i++) {
+                table.put(bytes("key-" + i), newValue);
+            }
+        }
+        table.put(bytes("kept"), bytes("after"));
+
+        assertTrue(table.allocatedBytes() <= 2L * WALKeyValueTable.CHUNK_SIZE, "replaced values are reclaimed");
+        assertArrayEquals(newValue, table.get(bytes("key-3")));
+        assertArrayEquals(bytes("after"), table.get(bytes("kept")));
+
+        Map<String, String> contents = contents(cut);
+        assertEquals(11, cut.size());
+        assertEquals(11, contents.size());
+        assertEquals("before", contents.get("kept"));
+        assertEquals(new String(value, StandardCharsets.UTF_8), contents.get("key-3"));
+    }
+
+    @Test
+    void testEntryLargerThanAChunk() {
+        WALKeyValueTable table = new WALKeyValueTable();
+        byte[] large = new byte[WALKeyValueTable.CHUNK_SIZE + 1];
+        large[large.length - 1] = 7;
+        table.put(bytes("small-1"), bytes("1"));
+        table.put(bytes("large"), large);
+        table.put(bytes("small-2"), bytes("2"));
+
+        assertArrayEquals(large, table.get(bytes("large")));
+        Map<String, String> contents = contents(table.cut());
+        assertEquals(3, contents.size());
+        assertEquals("1", contents.get("small-1"));
+        assertEquals("2", contents.get("small-2"));
+    }
+}
@@ -0,0 +1,134 @@
+package org.greengrapes;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WALManagerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private WALManager.Builder managerBuilder() {
+        return WALManager.newBuilder()
+                .setRootDirectoryPath(tempDir.toString())
+                .setMaxSegmentSize(4096)
+                .setMaxSegments(100);
+    }
+
+    private static long countWalThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(Thread::isAlive)
+                .filter(thread -> thread.getName().startsWith("wal-"))
+                .count();
+    }
+
+    @Test
+    void testIdleLogsAreClosedAndReopenedTransparently() {
+        WALManager manager = managerBuilder().setMaxOpenLogs(8).build();
+
+        for (int round = 1; round <= 3; round++) {
+            for (int log = 0; log < 50; log++) {
+                manager.write("tenant-" + log, ("round-" + round).getBytes());
+            }
+        }
+        assertTrue(manager.getOpenLogCount() <= 8, "Open logs: " + manager.getOpenLogCount());
+
+        for (int log = 0; log < 50; log++) {
+            String name = "tenant-" + log;
+            manager.flush(name);
+            List<WALRecord> records = manager.readAll(name);
+            assertEquals(3, records.size(), name);
+            for (int i = 0; i < 3; i++) {
+                assertEquals(i + 1, records.get(i).getLogSequenceNumber());
+                assertArrayEquals(("round-" + (i + 1)).getBytes(), records.get(i).getData());
+            }
+        }
+        manager.close();
+    }
+
+    @Test
+    void testThreadCountDoesNotGrowWithLogs() {
+        WALManager manager = managerBuilder().setMaxOpenLogs(1000).build();
+
+        for (int log = 0; log < 10; log++) {
+            manager.write("tenant-" + log, "x".getBytes());
+        }
+        long threadsWithFewLogs = countWalThreads();
+
+        for (int log = 10; log < 300; log++) {
+            manager.write("tenant-" + log, "x".getBytes());
+        }
+        manager.commit("tenant-0");
+
+        assertEquals(300, manager.getOpenLogCount());
+        assertTrue(countWalThreads() <= threadsWithFewLogs + 1, "Only the device sync thread may be added");
+        manager.close();
+    }
+
+    @Test
+    void testConcurrentCommitsAreDurable() throws Exception {
+        WALManager manager = managerBuilder().setMaxOpenLogs(4).build();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            String name = "tenant-" + (t % 6);
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < 25; i++) {
+                    manager.write(name, "payload".getBytes());
+                    manager.commit(name);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        pool.shutdown();
+        manager.close();
+
+        WALManager reopened = managerBuilder().build();
+        long total = 0;
+        for (int log = 0; log < 6; log++) {
+            total += reopened.getLastLogSequenceNumber("tenant-" + log);
+        }
+        assertEquals(8 * 25, total);
+        reopened.close();
+    }
+
+    @Test
+    void testRetentionRunsOffTheFlushThreads() throws Exception {
+        WALManager manager = managerBuilder().setMaxSegmentSize(100).setMaxSegments(2).build();
+        for (int i = 0; i < 40; i++) {
+            manager.write("tenant", ("record-" + i).getBytes());
+        }
+
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (manager.withLog("tenant", wal -> WALUtils.getAllSegmentNumbers(wal.getDirectoryPath()).size()) > 3
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(Thread.getAllStackTraces().keySet().stream()
+                .anyMatch(thread -> thread.getName().startsWith("wal-manager-retention")));
+        assertTrue(manager.withLog("tenant", wal -> WALUtils.getAllSegmentNumbers(wal.getDirectoryPath()).size()) <= 3);
+        manager.close();
+    }
+
+    @Test
+    void testRejectsNamesOutsideTheRoot() {
+        WALManager manager = managerBuilder().build();
+
+        assertThrows(IllegalArgumentException.class, () -> manager.write("..", "x".getBytes()));
+        assertThrows(IllegalArgumentException.class, () -> manager.write("a/b", "x".getBytes()));
+        assertThrows(IllegalArgumentException.class, () -> manager.write("", "x".getBytes()));
+        manager.close();
+    }
+}
@@ -0,0 +1,111 @@
+package org.greengrapes;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WALMappedCursorTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    void testScanMatchesCopyingCursorAcrossSegments() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 120, 100);
+        for (int i = 1; i <= 40; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.commit();
+
+        List<WALRecord> expected = wal.readAll();
+        List<byte[]> actual = new ArrayList<>();
+        try (WALMappedCursor cursor = wal.mappedCursor(0)) {
+            while (cursor.advance()) {
+                assertEquals(actual.size() + 1, cursor.getLogSequenceNumber());
+                assertTrue(cursor.getData().isReadOnly(), "Payload views must be read-only");
+                actual.add(toBytes(cursor.getData()));
+            }
+        }
+
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i).getData(), actual.get(i));
+        }
+        wal.close();
+    }
+
+    @Test
+    void testScanStartsFromLsn() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 120, 100);
+        for (int i = 1; i <= 20; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.commit();
+
+        try (WALMappedCursor cursor = wal.mappedCursor(15)) {
+            assertTrue(cursor.advance());
+            assertEquals(15, cursor.getLogSequenceNumber());
+            assertArrayEquals("record-15".getBytes(), toBytes(cursor.getData()));
+
+            int remaining = 0;
+            while (cursor.advance()) {
+                remaining++;
+            }
+            assertEquals(5, remaining);
+        }
+        wal.close();
+    }
+
+    @Test
+    void testScanReadsArchivedSegments() {
+        WALOptions options = WALOptions.newBuilder()
+                .setArchiveDirectoryPath(tempDir.resolve("archive").toString())
+                .build();
+        WAL wal = WAL.openWAL(tempDir.resolve("live").toString(), false, 100, 2, options);
+        for (int i = 1; i <= 30; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.close();
+
+        WAL reopened = WAL.openWAL(tempDir.resolve("live").toString(), false, 100, 2, options);
+        long count = 0;
+        try (WALMappedCursor cursor = reopened.mappedCursor(0)) {
+            while (cursor.advance()) {
+                assertEquals(++count, cursor.getLogSequenceNumber());
+            }
+        }
+        assertEquals(30, count);
+        reopened.close();
+    }
+
+    @Test
+    void testScanFailsOnCorruptedPayload() throws Exception {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 1024, 10);
+        wal.write("payload".getBytes());
+        wal.commit();
+
+        // Segment header (8) + size prefix (4) + LSN tag and value (2) + data tag and length (2) puts the payload at offset 16
+        try (RandomAccessFile raf = new RandomAccessFile(WALUtils.getSegmentFilePath(tempDir.toString(), 1), "rw")) {
+            raf.seek(16);
+            raf.writeByte('P');
+        }
+
+        try (WALMappedCursor cursor = wal.mappedCursor(0)) {
+            assertThrows(IllegalStateException.class, cursor::advance);
+        }
+        wal.close();
+    }
+}
@@ -0,0 +1,212 @@
+package org.greengrapes;
+
+import com.google.protobuf.ByteString;
+import org.greengrapes.proto.WALEntry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WALRecordInputStreamTest {
+    private static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    @TempDir
+    Path tempDir;
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] readRecord(WAL wal, long lsn) throws IOException {
+        try (InputStream in = wal.openRecordStream(lsn)) {
+            return in.readAllBytes();
+        }
+    }
+
+    @Test
+    void testLargeStreamRoundTrips() throws IOException {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, SEGMENT_SIZE, 10);
+        byte[] payload = randomBytes(3 * 1024 * 1024 + 512 * 1024);
+
+        long lsn = wal.write(7, "blob".getBytes(), new ByteArrayInputStream(payload));
+        wal.flush();
+
+        assertArrayEquals(payload, readRecord(wal, lsn));
+
+        List<WALRecord> fragments = wal.readAll();
+        assertEquals(4, fragments.size());
+        assertEquals(WALRecord.Fragment.FIRST, fragments.get(0).getFragment());
+        assertEquals(WALRecord.Fragment.MIDDLE, fragments.get(1).getFragment());
+        assertEquals(WALRecord.Fragment.MIDDLE, fragments.get(2).getFragment());
+        assertEquals(WALRecord.Fragment.LAST, fragments.get(3).getFragment());
+        assertEquals(lsn, fragments.get(0).getLogSequenceNumber());
+        wal.close();
+    }
+
+    @Test
+    void testUntypedChannelWriteRoundTrips() throws IOException {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, SEGMENT_SIZE, 10);
+        byte[] payload = randomBytes(1024 * 1024 + 100);
+
+        long lsn = wal.write(Channels.newChannel(new ByteArrayInputStream(payload)));
+        wal.flush();
+
+        assertArrayEquals(payload, readRecord(wal, lsn));
+        assertEquals(0, wal.readAll().get(0).getType());
+        wal.close();
+    }
+
+    @Test
+    void testSmallStreamIsWrittenAsWholeRecord() throws IOException {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, SEGMENT_SIZE, 10);
+        byte[] payload = "small payload".getBytes();
+
+        long lsn = wal.write(new ByteArrayInputStream(payload));
+        wal.flush();
+
+        List<WALRecord> records = wal.readAll();
+        assertEquals(1, records.size());
+        assertEquals(WALRecord.Fragment.NONE, records.get(0).getFragment());
+        assertArrayEquals(payload, readRecord(wal, lsn));
+        wal.close();
+    }
+
+    @Test
+    void testFragmentsInterleavedWithOtherRecords() throws IOException {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, SEGMENT_SIZE, 10);
+        byte[] payload = randomBytes(2 * 1024 * 1024 + 100);
+
+        // Another record lands between every read of the stream, so between every fragment.
+        InputStream interleaving = new FilterInputStream(new ByteArrayInputStream(payload)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                wal.write(("other-" + off).getBytes());
+                return super.read(b, off, len);
+            }
+        };
+
+        long lsn = wal.write(interleaving);
+        long otherLsn = wal.write("after".getBytes());
+        wal.flush();
+
+        assertTrue(otherLsn - lsn > 3);
+        assertArrayEquals(payload, readRecord(wal, lsn));
+        assertArrayEquals("after".getBytes(), readRecord(wal, otherLsn));
+        wal.close();
+    }
+
+    @Test
+    void testTypeFilterSeesOnlyFirstFragment() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, SEGMENT_SIZE, 10);
+        long lsn = wal.write(3, "k".getBytes(), new ByteArrayInputStream(randomBytes(2 * 1024 * 1024 + 1)));
+        wal.write(4, "k".getBytes(), "other".getBytes());
+        wal.flush();
+
+        List<WALRecord> matches = wal.scan(WALFilter.newBuilder().addType(3).build());
+        assertEquals(1, matches.size());
+        assertEquals(lsn, matches.get(0).getLogSequenceNumber());
+        assertEquals(WALRecord.Fragment.FIRST, matches.get(0).getFragment());
+        wal.close();
+    }
+
+    @Test
+    void testIncompleteRecordFailsAtEnd() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, SEGMENT_SIZE, 10);
+        byte[] payload = randomBytes(3 * 1024 * 1024);
+
+        InputStream failing = new FilterInputStream(new ByteArrayInputStream(payload)) {
+            private int reads;
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (++reads > 2) {
+                    throw new IOException("source went away");
+                }
+                return super.read(b, off, len);
+            }
+        };
+
+        assertThrows(RuntimeException.class, () -> wal.write(failing));
+        wal.flush();
+
+        long firstLsn = wal.readAll().get(0).getLogSequenceNumber();
+        assertThrows(IOException.class, () -> readRecord(wal, firstLsn));
+        wal.close();
+    }
+
+    @Test
+    void testRecordChecksumMismatchIsReported() throws IOException {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, SEGMENT_SIZE, 10);
+        // A chain whose frames are intact but whose record checksum doesn't match its payloads.
+        wal.append(WALEntry.newBuilder()
+                .setLogSequenceNumber(1)
+                .setFragment(WALRecord.Fragment.FIRST.getNumber())
+                .setData(ByteString.copyFromUtf8("first half"))
+                .build());
+        wal.append(WALEntry.newBuilder()
+                .setLogSequenceNumber(2)
+                .setFragment(WALRecord.Fragment.LAST.getNumber())
+                .setFragmentOf(1)
+                .setData(ByteString.copyFromUtf8("second half"))
+                .setRecordCRC(12345)
+                .build());
+        wal.flush();
+
+        assertThrows(IOException.class, () -> readRecord(wal, 1));
+        wal.close();
+    }
+
+    @Test
+    void testDamagedRecordChecksumFailsTheFrameChecksum() throws IOException {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, SEGMENT_SIZE, 10);
+        wal.write(new ByteArrayInputStream(randomBytes(1024 * 1024 + 10)));
+        wal.write("after".getBytes());
+        wal.flush();
+        List<WALRecord> fragments = wal.readAll();
+        wal.close();
+
+        // The last fragment's record checksum sits just before its frame trailer, ahead of the
+        // small record written after the chain.
+        String segmentPath = WALUtils.getSegmentFilePath(tempDir.toString(), WALUtils.findOldestSegmentNumber(tempDir.toString(), 0));
+        WALEntry after = WALEntry.newBuilder()
+                .setLogSequenceNumber(fragments.get(2).getLogSequenceNumber())
+                .setData(ByteString.copyFromUtf8("after"))
+                .build();
+        int afterFrame = WALFormat.frameSize(WALFormat.CURRENT_VERSION,
+                after.toBuilder().setCRC(new Checksum().compute(after)).build().getSerializedSize());
+        try (RandomAccessFile file = new RandomAccessFile(segmentPath, "rw")) {
+            long offset = file.length() - afterFrame - Integer.BYTES - 1;
+            file.seek(offset);
+            int lastByte = file.read();
+            file.seek(offset);
+            file.write(lastByte ^ 0x01);
+        }
+
+        WAL reopened = WAL.openWAL(tempDir.toString(), false, SEGMENT_SIZE, 10);
+        assertThrows(RuntimeException.class, () -> readRecord(reopened, fragments.get(0).getLogSequenceNumber()));
+        reopened.close();
+    }
+
+    @Test
+    void testOpeningMissingOrContinuationLsnFails() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, SEGMENT_SIZE, 10);
+        long lsn = wal.write(new ByteArrayInputStream(randomBytes(1024 * 1024 + 10)));
+        wal.flush();
+
+        assertThrows(IllegalArgumentException.class, () -> wal.openRecordStream(lsn + 1));
+        assertThrows(IllegalArgumentException.class, () -> wal.openRecordStream(lsn + 100));
+        wal.close();
+    }
+}
@@ -0,0 +1,148 @@
+package org.greengrapes;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WALReplayReaderTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static List<WALRecord> drain(WALReplayReader reader) {
+        List<WALRecord> records = new ArrayList<>();
+        try (reader) {
+            reader.forEachRemaining(records::add);
+        }
+        return records;
+    }
+
+    private static void assertSameRecords(List<WALRecord> expected, List<WALRecord> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getLogSequenceNumber(), actual.get(i).getLogSequenceNumber());
+            assertArrayEquals(expected.get(i).getData(), actual.get(i).getData());
+        }
+    }
+
+    @Test
+    void testReplayMatchesCursorAcrossSegments() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 300, 100);
+        for (int i = 1; i <= 200; i++) {
+            wal.write(("record-" + "x".repeat(i % 40) + i).getBytes());
+        }
+        wal.flush();
+
+        List<WALRecord> expected = wal.readAll();
+        assertEquals(200, expected.size());
+
+        // Buffers smaller than most frames force frames and size prefixes to straddle chunks.
+        assertSameRecords(expected, drain(wal.replay(0, 2, 7)));
+        assertSameRecords(expected, drain(wal.replay(0, 3, 64)));
+        assertSameRecords(expected, drain(wal.replay(0)));
+        wal.close();
+    }
+
+    @Test
+    void testReplayStartsFromLsn() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 120, 100);
+        for (int i = 1; i <= 50; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.flush();
+
+        List<WALRecord> records = drain(wal.replay(42, 2, 16));
+        assertEquals(9, records.size());
+        assertEquals(42, records.get(0).getLogSequenceNumber());
+        assertArrayEquals("record-50".getBytes(), records.get(8).getData());
+        wal.close();
+    }
+
+    @Test
+    void testReplayReadsArchivedSegments() {
+        WALOptions options = WALOptions.newBuilder()
+                .setArchiveDirectoryPath(tempDir.resolve("archive").toString())
+                .build();
+        WAL wal = WAL.openWAL(tempDir.resolve("live").toString(), false, 100, 2, options);
+        for (int i = 1; i <= 30; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.close();
+
+        WAL reopened = WAL.openWAL(tempDir.resolve("live").toString(), false, 100, 2, options);
+        List<WALRecord> records = drain(reopened.replay(1, 2, 32));
+        assertEquals(30, records.size());
+        for (int i = 0; i < 30; i++) {
+            assertEquals(i + 1, records.get(i).getLogSequenceNumber());
+        }
+        reopened.close();
+    }
+
+    @Test
+    void testPartialTailFrameIsSkipped() throws Exception {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 1024 * 1024, 10);
+        for (int i = 1; i <= 5; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.close();
+
+        // A frame announcing 100 bytes with only 3 of them written
+        try (FileOutputStream out = new FileOutputStream(WALUtils.getSegmentFilePath(tempDir.toString(), 1), true)) {
+            out.write(new byte[]{100, 0, 0, 0, 1, 2, 3});
+        }
+
+        WALReplayReader reader = new WALReplayReader(new WALSegmentLeases().acquire(tempDir.toString(), null, 0), null, 0, Long.MAX_VALUE,
+                new Checksum(), 2, 8);
+        assertEquals(5, drain(reader).size());
+    }
+
+    @Test
+    void testReplayFailsOnCorruptedPayload() throws Exception {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 1024, 10);
+        wal.write("payload".getBytes());
+        wal.close();
+
+        // Segment header (8) + size prefix (4) + LSN tag and value (2) + data tag and length (2) puts the payload at offset 16
+        try (RandomAccessFile raf = new RandomAccessFile(WALUtils.getSegmentFilePath(tempDir.toString(), 1), "rw")) {
+            raf.seek(16);
+            raf.writeByte('P');
+        }
+
+        WALReplayReader reader = new WALReplayReader(new WALSegmentLeases().acquire(tempDir.toString(), null, 0), null, 0, Long.MAX_VALUE,
+                new Checksum(), 2, 64);
+        assertThrows(IllegalStateException.class, reader::hasNext);
+    }
+
+    @Test
+    void testCloseStopsReadAhead() throws Exception {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 1024 * 1024, 10);
+        for (int i = 1; i <= 100; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.flush();
+
+        WALReplayReader reader = wal.replay(0, 2, 8);
+        assertTrue(reader.hasNext());
+        reader.close();
+        assertFalse(reader.hasNext());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ioThreadAlive() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(ioThreadAlive());
+        wal.close();
+    }
+
+    private static boolean ioThreadAlive() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .anyMatch(thread -> thread.isAlive() && thread.getName().equals("wal-replay-io"));
+    }
+}
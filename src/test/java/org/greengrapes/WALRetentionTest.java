@@ -0,0 +1,186 @@
+package org.greengrapes;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WALRetentionTest {
+
+    @TempDir
+    Path tempDir;
+
+    private WALRetention retention;
+    private final List<Long> removed = new ArrayList<>();
+
+    @AfterEach
+    void cleanup() {
+        if (retention != null) {
+            retention.close();
+        }
+    }
+
+    private void createSegment(long segmentNumber, int size) throws IOException {
+        Files.write(Path.of(WALUtils.getSegmentFilePath(tempDir.toString(), segmentNumber)), new byte[size]);
+    }
+
+    private WALRetention retention(long maxSegments, WALOptions options, long activeSegmentNumber) {
+        retention = new WALRetention(tempDir.toString(), maxSegments, options, () -> activeSegmentNumber,
+                () -> Long.MAX_VALUE, null, new WALSegmentLeases(), removed::add);
+        return retention;
+    }
+
+    @Test
+    void testCountPolicyRetiresOldestSegmentsInOneBatch() throws Exception {
+        for (long i = 1; i <= 6; i++) {
+            createSegment(i, 10);
+        }
+
+        List<Long> retired = retention(2, WALOptions.getDefaultInstance(), 6).enforce();
+
+        assertEquals(List.of(1L, 2L, 3L, 4L), retired);
+        assertEquals(List.of(5L, 6L), sortedSegmentNumbers());
+        assertEquals(List.of(1L, 2L, 3L, 4L), removed); // so the log can drop their cached key indexes
+    }
+
+    @Test
+    void testPreopenedSpareDoesNotCountTowardsTheLimit() throws Exception {
+        for (long i = 1; i <= 5; i++) {
+            createSegment(i, 10);
+        }
+        createSegment(6, 0); // the spare pre-opened after active segment 5
+
+        List<Long> retired = retention(2, WALOptions.getDefaultInstance(), 5).enforce();
+
+        assertEquals(List.of(1L, 2L, 3L), retired);
+        assertEquals(List.of(4L, 5L, 6L), sortedSegmentNumbers());
+    }
+
+    @Test
+    void testBytePolicyKeepsTotalSizeWithinBudget() throws Exception {
+        for (long i = 1; i <= 5; i++) {
+            createSegment(i, 100);
+        }
+
+        WALOptions options = WALOptions.newBuilder().setRetentionMaxBytes(250).build();
+        List<Long> retired = retention(100, options, 5).enforce();
+
+        assertEquals(List.of(1L, 2L, 3L), retired);
+        assertEquals(List.of(4L, 5L), sortedSegmentNumbers());
+    }
+
+    @Test
+    void testAgePolicyRetiresOnlyExpiredSealedSegments() throws Exception {
+        for (long i = 1; i <= 4; i++) {
+            createSegment(i, 10);
+        }
+        FileTime old = FileTime.from(Instant.now().minus(Duration.ofHours(2)));
+        for (long i = 1; i <= 2; i++) {
+            Files.setLastModifiedTime(Path.of(WALUtils.getSegmentFilePath(tempDir.toString(), i)), old);
+        }
+
+        WALOptions options = WALOptions.newBuilder().setRetentionMaxAge(Duration.ofHours(1)).build();
+        List<Long> retired = retention(100, options, 4).enforce();
+
+        assertEquals(List.of(1L, 2L), retired);
+        assertEquals(List.of(3L, 4L), sortedSegmentNumbers());
+    }
+
+    @Test
+    void testActiveSegmentIsNeverRetired() throws Exception {
+        createSegment(1, 1000);
+
+        WALOptions options = WALOptions.newBuilder()
+                .setRetentionMaxBytes(1)
+                .setRetentionMaxAge(Duration.ZERO)
+                .build();
+        List<Long> retired = retention(0, options, 1).enforce();
+
+        assertTrue(retired.isEmpty());
+        assertEquals(List.of(1L), sortedSegmentNumbers());
+    }
+
+    @Test
+    void testRetentionRunsInBackgroundAfterRotation() throws Exception {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 50, 2);
+        for (int i = 0; i < 20; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (sortedSegmentNumbers().size() > 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // Two segments with records, plus the empty spare pre-opened after the active one
+        assertTrue(sortedSegmentNumbers().size() <= 3, "Background retention should enforce maxSegments");
+        wal.close();
+    }
+
+    @Test
+    void testLeasedSegmentsAreRemovedOnceTheCursorMovesPastThem() throws Exception {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 50, 2);
+        for (int i = 0; i < 6; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.flush();
+
+        List<Long> before = sortedSegmentNumbers();
+        try (WALCursor cursor = wal.cursor(0)) {
+            // Segments can be created or removed while the cursor lists them: those present both
+            // before and after it are certainly leased, and no leased one is missing from the union.
+            List<Long> after = sortedSegmentNumbers();
+            List<Long> leased = new ArrayList<>(before);
+            leased.retainAll(after);
+            List<Long> maybeLeased = new ArrayList<>(before);
+            maybeLeased.addAll(after);
+            for (int i = 6; i < 30; i++) {
+                wal.write(("record-" + i).getBytes());
+            }
+
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (unleasedSegmentCount(maybeLeased) > 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(unleasedSegmentCount(maybeLeased) <= 3, "Retention should go ahead past the leased segments");
+            assertTrue(sortedSegmentNumbers().containsAll(leased), "Leased segments must stay until they are read");
+
+            // Retention may have removed the oldest segments before the cursor was opened, but
+            // nothing after the first record it listed.
+            long expected = -1;
+            while (cursor.hasNext()) {
+                WALRecord record = cursor.next();
+                if (expected < 0) {
+                    expected = record.getLogSequenceNumber();
+                }
+                assertEquals(expected, record.getLogSequenceNumber());
+                assertEquals("record-" + (expected - 1), new String(record.getData()));
+                expected++;
+            }
+            assertEquals(7, expected);
+        }
+
+        assertTrue(sortedSegmentNumbers().size() <= 3, "Retired segments are removed when their last lease is released");
+        wal.close();
+    }
+
+    private long unleasedSegmentCount(List<Long> leased) {
+        return sortedSegmentNumbers().stream().filter(segmentNumber -> !leased.contains(segmentNumber)).count();
+    }
+
+    private List<Long> sortedSegmentNumbers() {
+        List<Long> segmentNumbers = WALUtils.getAllSegmentNumbers(tempDir.toString());
+        segmentNumbers.sort(Long::compareTo);
+        return segmentNumbers;
+    }
+}
@@ -0,0 +1,128 @@
+package org.greengrapes;
+
+import org.greengrapes.proto.WALEntry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WALReverseCursorTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static List<Long> drainLsns(WALReverseCursor cursor) {
+        List<Long> lsns = new ArrayList<>();
+        try (cursor) {
+            cursor.forEachRemaining(record -> lsns.add(record.getLogSequenceNumber()));
+        }
+        return lsns;
+    }
+
+    private static List<Long> reversedLsns(List<WALRecord> records) {
+        List<Long> lsns = new ArrayList<>();
+        records.forEach(record -> lsns.add(record.getLogSequenceNumber()));
+        Collections.reverse(lsns);
+        return lsns;
+    }
+
+    @Test
+    void testReverseCursorMatchesForwardReadAcrossSegments() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 200, 100);
+        for (int i = 1; i <= 60; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.flush();
+
+        assertTrue(WALUtils.getAllSegmentNumbers(tempDir.toString()).size() > 2);
+        assertEquals(reversedLsns(wal.readAll()), drainLsns(wal.reverseCursor(0)));
+        wal.close();
+    }
+
+    @Test
+    void testReadLastReturnsNewestRecordsInOrder() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 200, 100);
+        for (int i = 1; i <= 30; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.flush();
+
+        List<WALRecord> last = wal.readLast(3);
+        assertEquals(3, last.size());
+        assertEquals(28, last.get(0).getLogSequenceNumber());
+        assertEquals(30, last.get(2).getLogSequenceNumber());
+        assertArrayEquals("record-30".getBytes(), last.get(2).getData());
+
+        assertEquals(30, wal.readLast(100).size());
+        wal.close();
+    }
+
+    @Test
+    void testReverseCursorStopsAtFromAndCommittedLsn() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 200, 100);
+        for (int i = 1; i <= 20; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.flush();
+        wal.write("unflushed".getBytes());
+
+        assertEquals(List.of(20L, 19L, 18L, 17L, 16L, 15L), drainLsns(wal.reverseCursor(15)));
+        wal.close();
+    }
+
+    @Test
+    void testReadsLegacySegmentsWithoutTrailers() throws Exception {
+        // A version 1 segment: no header and no frame trailers.
+        Checksum checksum = new Checksum();
+        try (FileOutputStream out = new FileOutputStream(WALUtils.getSegmentFilePath(tempDir.toString(), 1))) {
+            for (int lsn = 1; lsn <= 5; lsn++) {
+                WALEntry entry = Fixtures.buildWALEntry(lsn, "legacy-" + lsn);
+                byte[] data = entry.toBuilder().setCRC(checksum.compute(entry, WALFormat.VERSION_1)).build().toByteArray();
+                out.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(data.length).array());
+                out.write(data);
+            }
+        }
+
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 200, 100);
+        for (int i = 6; i <= 30; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.flush();
+
+        List<WALRecord> forward = wal.readAll();
+        assertEquals(30, forward.size());
+        assertEquals(reversedLsns(forward), drainLsns(wal.reverseCursor(0)));
+        assertEquals(List.of(5L, 4L), drainLsns(wal.reverseCursor(4)).subList(25, 27));
+        wal.close();
+    }
+
+    @Test
+    void testPartiallyWrittenTailIsSkipped() throws Exception {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 10_000, 100);
+        for (int i = 1; i <= 10; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.close();
+
+        // A frame cut off after its size prefix and part of its body, as left by a crash.
+        try (FileOutputStream out = new FileOutputStream(WALUtils.getSegmentFilePath(tempDir.toString(), 1), true)) {
+            out.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(40).array());
+            out.write(new byte[]{0x08, 0x0B, 0x12});
+        }
+
+        WAL reopened = WAL.openWAL(tempDir.toString(), false, 10_000, 100);
+        assertEquals(10, reopened.getLastLogSequenceNumber());
+        List<WALRecord> last = reopened.readLast(2);
+        assertEquals(9, last.get(0).getLogSequenceNumber());
+        assertEquals(10, last.get(1).getLogSequenceNumber());
+        reopened.close();
+    }
+}
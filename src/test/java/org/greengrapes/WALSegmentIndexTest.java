@@ -0,0 +1,175 @@
+package org.greengrapes;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WALSegmentIndexTest {
+    private static final int TYPE_PUT = 1;
+
+    @TempDir
+    Path tempDir;
+
+    private static byte[] key(int i) {
+        return ("key-" + i).getBytes();
+    }
+
+    @Test
+    void testIndexFindsNewestFrameOfEachKey() throws Exception {
+        WALSegment segment = new WALSegment(1, WALUtils.getSegmentFilePath(tempDir.toString(), 1), false, new Checksum());
+        for (int i = 1; i <= 300; i++) {
+            segment.write(Fixtures.buildWALEntry(i, "v" + i).toBuilder()
+                    .setKey(ByteString.copyFrom(key(i % 100)))
+                    .build());
+        }
+        segment.close();
+
+        Path segmentPath = Path.of(WALUtils.getSegmentFilePath(tempDir.toString(), 1));
+        Path indexPath = Path.of(WALUtils.getSegmentIndexFilePath(tempDir.toString(), 1));
+        WALSegmentIndex.build(segmentPath, indexPath);
+        WALSegmentIndex index = WALSegmentIndex.open(indexPath);
+
+        WALSegmentReader reader = new WALSegmentReader(segmentPath.toString(), new Checksum());
+        for (int k = 0; k < 100; k++) {
+            long offset = index.find(key(k));
+            assertTrue(offset >= 0, "key-" + k);
+            long expectedLsn = k == 0 ? 300 : 200 + k;
+            assertEquals(expectedLsn, reader.readEntryAt(offset).getLogSequenceNumber());
+        }
+
+        int falsePositives = 0;
+        for (int k = 1000; k < 3000; k++) {
+            assertEquals(-1, index.find(key(k)));
+            if (index.mightContain(key(k))) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 100, "Bloom filter false positives: " + falsePositives);
+    }
+
+    @Test
+    void testCorruptIndexIsRejected() throws Exception {
+        WALSegment segment = new WALSegment(1, WALUtils.getSegmentFilePath(tempDir.toString(), 1), false, new Checksum());
+        segment.write(Fixtures.buildWALEntry(1, "v").toBuilder().setKey(ByteString.copyFrom(key(1))).build());
+        segment.close();
+
+        Path indexPath = Path.of(WALUtils.getSegmentIndexFilePath(tempDir.toString(), 1));
+        WALSegmentIndex.build(Path.of(WALUtils.getSegmentFilePath(tempDir.toString(), 1)), indexPath);
+        try (RandomAccessFile raf = new RandomAccessFile(indexPath.toFile(), "rw")) {
+            raf.seek(14);
+            raf.writeByte(raf.readByte() ^ 0x10);
+        }
+
+        assertThrows(IOException.class, () -> WALSegmentIndex.open(indexPath));
+    }
+
+    @Test
+    void testIndexPointingAtAnotherKeyFallsBackToAScan() throws Exception {
+        // An index task that raced a rewrite of the segment left an index of the old contents behind.
+        writeSegment(1, 1, "a", "b", "a");
+        byte[] staleIndex = indexSegment(1);
+        writeSegment(1, 1, "a", "b", "b"); // same length, so only the key gives it away
+        Files.write(Path.of(WALUtils.getSegmentIndexFilePath(tempDir.toString(), 1)), staleIndex);
+        writeSegment(2, 4, "c");
+
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 1024 * 1024, 1000);
+        assertEquals(1, wal.findLatest("a".getBytes()).getLogSequenceNumber());
+        assertEquals(3, wal.findLatest("b".getBytes()).getLogSequenceNumber());
+        wal.close();
+    }
+
+    @Test
+    void testIndexOfAnotherLengthOfTheSegmentIsRebuilt() throws Exception {
+        writeSegment(1, 1, "a", "b", "a");
+        byte[] staleIndex = indexSegment(1);
+        writeSegment(1, 1, "a", "bb", "a");
+        Path indexPath = Path.of(WALUtils.getSegmentIndexFilePath(tempDir.toString(), 1));
+        Files.write(indexPath, staleIndex);
+        writeSegment(2, 4, "c");
+
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 1024 * 1024, 1000);
+        assertEquals(3, wal.findLatest("a".getBytes()).getLogSequenceNumber());
+        assertEquals(2, wal.findLatest("bb".getBytes()).getLogSequenceNumber());
+        wal.close();
+
+        Path segmentPath = Path.of(WALUtils.getSegmentFilePath(tempDir.toString(), 1));
+        assertEquals(Files.size(segmentPath), WALSegmentIndex.open(indexPath).segmentSize());
+    }
+
+    private void writeSegment(long segmentNumber, long firstLogSequenceNumber, String... keys) throws IOException {
+        String path = WALUtils.getSegmentFilePath(tempDir.toString(), segmentNumber);
+        Files.deleteIfExists(Path.of(path));
+        WALSegment segment = new WALSegment(segmentNumber, path, false, new Checksum());
+        long lsn = firstLogSequenceNumber;
+        for (String key : keys) {
+            segment.write(Fixtures.buildWALEntry(lsn, "v" + lsn).toBuilder().setKey(ByteString.copyFromUtf8(key)).build());
+            lsn++;
+        }
+        segment.close();
+    }
+
+    private byte[] indexSegment(long segmentNumber) throws IOException {
+        Path indexPath = Path.of(WALUtils.getSegmentIndexFilePath(tempDir.toString(), segmentNumber));
+        WALSegmentIndex.build(Path.of(WALUtils.getSegmentFilePath(tempDir.toString(), segmentNumber)), indexPath);
+        return Files.readAllBytes(indexPath);
+    }
+
+    @Test
+    void testFindLatestAcrossSegments() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 300, 1000);
+        for (int i = 1; i <= 200; i++) {
+            wal.write(TYPE_PUT, key(i % 20), ("value-" + i).getBytes());
+        }
+        wal.write(TYPE_PUT, "rare".getBytes(), "only-once".getBytes());
+        for (int i = 201; i <= 260; i++) {
+            wal.write(TYPE_PUT, key(i % 20), ("value-" + i).getBytes());
+        }
+        wal.flush();
+        assertTrue(WALUtils.getAllSegmentNumbers(tempDir.toString()).size() > 10);
+
+        WALRecord latest = wal.findLatest(key(7));
+        assertArrayEquals("value-247".getBytes(), latest.getData());
+
+        WALRecord rare = wal.findLatest("rare".getBytes());
+        assertEquals(201, rare.getLogSequenceNumber());
+        assertArrayEquals("only-once".getBytes(), rare.getData());
+
+        assertNull(wal.findLatest("missing".getBytes()));
+
+        wal.write(TYPE_PUT, key(7), "unflushed".getBytes());
+        assertArrayEquals("value-247".getBytes(), wal.findLatest(key(7)).getData());
+        wal.close();
+    }
+
+    @Test
+    void testIndexedSegmentsWithoutTheKeyAreNotRead() throws Exception {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 300, 1000);
+        wal.write(TYPE_PUT, "old".getBytes(), "first".getBytes());
+        for (int i = 1; i <= 100; i++) {
+            wal.write(TYPE_PUT, key(i), ("value-" + i).getBytes());
+        }
+        wal.flush();
+        assertArrayEquals("first".getBytes(), wal.findLatest("old".getBytes()).getData()); // indexes every sealed segment
+
+        // Break the frames of a middle segment: only a scan would trip over them.
+        List<Long> segmentNumbers = WALUtils.getAllSegmentNumbers(tempDir.toString());
+        segmentNumbers.sort(Long::compareTo);
+        long middle = segmentNumbers.get(segmentNumbers.size() / 2);
+        assertTrue(Files.exists(Path.of(WALUtils.getSegmentIndexFilePath(tempDir.toString(), middle))));
+        try (RandomAccessFile raf = new RandomAccessFile(WALUtils.getSegmentFilePath(tempDir.toString(), middle), "rw")) {
+            raf.seek(WALFormat.HEADER_SIZE);
+            raf.writeInt(-1);
+        }
+
+        assertArrayEquals("first".getBytes(), wal.findLatest("old".getBytes()).getData());
+        wal.close();
+    }
+}
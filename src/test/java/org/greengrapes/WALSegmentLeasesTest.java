@@ -0,0 +1,128 @@
+package org.greengrapes;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WALSegmentLeasesTest {
+    @TempDir
+    Path tempDir;
+
+    private void writeSegments() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 50, 100);
+        for (int i = 0; i < 6; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.close();
+    }
+
+    @Test
+    void testUnleasedSegmentIsRemovedRightAway() {
+        WALSegmentLeases leases = new WALSegmentLeases();
+        AtomicInteger removals = new AtomicInteger();
+
+        leases.retire(1, removals::incrementAndGet);
+
+        assertEquals(1, removals.get());
+        assertFalse(leases.isRetired(1));
+    }
+
+    @Test
+    void testRemovalWaitsForTheLastLease() {
+        writeSegments();
+        WALSegmentLeases leases = new WALSegmentLeases();
+        AtomicInteger removals = new AtomicInteger();
+
+        WALSegmentLeases.Lease first = leases.acquire(tempDir.toString(), null, 0);
+        WALSegmentLeases.Lease second = leases.acquire(tempDir.toString(), null, 0);
+        assertEquals(2, leases.leaseCount(1));
+
+        leases.retire(1, removals::incrementAndGet);
+        assertTrue(leases.isRetired(1));
+
+        first.release(1);
+        first.release(1); // released once per lease, however often it is called
+        assertEquals(0, removals.get());
+
+        second.close();
+        assertEquals(1, removals.get());
+        assertFalse(leases.isRetired(1));
+        assertEquals(0, leases.leaseCount(1));
+
+        first.close();
+        assertEquals(1, removals.get());
+        for (WALSegmentSource source : first.sources()) {
+            assertEquals(0, leases.leaseCount(source.segmentNumber()));
+        }
+    }
+
+    @Test
+    void testSegmentBeingRemovedIsNotLeased() throws Exception {
+        writeSegments();
+        WALSegmentLeases leases = new WALSegmentLeases();
+        Path segmentPath = Path.of(WALUtils.getSegmentFilePath(tempDir.toString(), 1));
+        CountDownLatch removalStarted = new CountDownLatch(1);
+        CountDownLatch listed = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> retiring = executor.submit(() -> leases.retire(1, () -> {
+                removalStarted.countDown();
+                try {
+                    assertTrue(listed.await(5, TimeUnit.SECONDS));
+                    Files.delete(segmentPath);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+            assertTrue(removalStarted.await(5, TimeUnit.SECONDS));
+
+            // The file is still there, but its removal has been decided.
+            assertTrue(Files.exists(segmentPath));
+            assertTrue(leases.isRetired(1));
+            WALSegmentLeases.Lease lease = leases.acquire(tempDir.toString(), null, 0);
+            assertFalse(lease.sources().isEmpty());
+            assertTrue(lease.sources().stream().noneMatch(source -> source.segmentNumber() == 1));
+            assertEquals(0, leases.leaseCount(1));
+            listed.countDown();
+
+            retiring.get(5, TimeUnit.SECONDS);
+            assertFalse(leases.isRetired(1));
+            lease.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testClosingReleasesEveryListedSegment() {
+        writeSegments();
+        WALSegmentLeases leases = new WALSegmentLeases();
+
+        WALSegmentLeases.Lease lease = leases.acquire(tempDir.toString(), null, 0);
+        List<Long> listed = lease.sources().stream().map(WALSegmentSource::segmentNumber).toList();
+        assertTrue(listed.size() > 1);
+        for (long segmentNumber : listed) {
+            assertEquals(1, leases.leaseCount(segmentNumber));
+        }
+
+        lease.release(listed.get(0));
+        assertEquals(0, leases.leaseCount(listed.get(0)));
+
+        lease.close();
+        for (long segmentNumber : listed) {
+            assertEquals(0, leases.leaseCount(segmentNumber));
+        }
+    }
+}
@@ -9,10 +9,16 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static org.greengrapes.Fixtures.buildWALEntry;
@@ -22,10 +28,12 @@ class WALSegmentTest {
 
     private File tempFile;
     private Checksum checksum;
+    private ScheduledExecutorService scheduler;
 
     @BeforeEach
     void setup() {
         checksum = new Checksum();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
         try {
             tempFile = File.createTempFile("wal", ".log");
         } catch (IOException e) {
@@ -35,6 +43,7 @@ class WALSegmentTest {
 
     @AfterEach
     void cleanup() {
+        scheduler.shutdownNow();
         if (tempFile != null && tempFile.exists()) {
             tempFile.delete();
         }
@@ -177,11 +186,247 @@ class WALSegmentTest {
 
         // Corrupt the file (flip one byte in the data or CRC)
         RandomAccessFile raf = new RandomAccessFile(tempFile.toString(), "rw");
-        raf.seek(raf.length() - 2); // last 2 bytes, inside CRC or data
+        raf.seek(raf.length() - 6); // just before the 4-byte frame trailer, inside CRC or data
         raf.writeByte(raf.readByte() ^ 0xFF); // flip a bit
         raf.close();
 
         WALSegment wal2 = new WALSegment(1, tempFile.toString(), true, checksum);
         assertThrows(IllegalStateException.class, wal2::readAll);
     }
+
+    @Test
+    void testReadsStopAtCommittedOffset() throws Exception {
+        WALSegment wal = new WALSegment(1, tempFile.getAbsolutePath(), false, checksum);
+
+        wal.write(buildWALEntry(1, "first"));
+        wal.flush();
+        long committed = wal.committedSize();
+        assertEquals(wal.size(), committed);
+        assertEquals(1, wal.getCommittedLogSequenceNumber());
+
+        wal.write(buildWALEntry(2, "second"));
+        if (wal.committedSize() == committed) { // not yet picked up by the periodic flush
+            assertEquals(1, wal.readAll().size());
+            assertEquals(1, wal.readLastEntry().getLogSequenceNumber());
+        }
+
+        wal.flush();
+        assertEquals(2, wal.getCommittedLogSequenceNumber());
+        assertEquals(2, wal.readAll().size());
+        assertEquals(2, wal.readLastEntry().getLogSequenceNumber());
+        wal.close();
+    }
+
+    private static String payload(int lsn) {
+        return ("record-" + lsn + "-").repeat(40 + lsn % 60);
+    }
+
+    private WALSegment openBlockAligned() {
+        return new WALSegment(1, tempFile.getAbsolutePath(), false, checksum, scheduler,
+                WALFormat.VERSION_3);
+    }
+
+    @Test
+    void testBlockLayoutFramesNeverStraddleABlock() throws Exception {
+        WALSegment wal = openBlockAligned();
+        for (int lsn = 1; lsn <= 300; lsn++) {
+            wal.write(buildWALEntry(lsn, payload(lsn)));
+        }
+        wal.close();
+
+        ByteBuffer segment = ByteBuffer.wrap(Files.readAllBytes(tempFile.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(WALFormat.VERSION_3, WALFormat.detectVersion(segment));
+        int position = WALFormat.HEADER_SIZE;
+        int frames = 0;
+        int paddings = 0;
+        while (position < segment.limit()) {
+            int size = segment.getInt(position);
+            if (size < 0) {
+                assertTrue(WALFormat.isPadding(position, size), "padding must run to the end of its block");
+                position -= size;
+                paddings++;
+                continue;
+            }
+            assertTrue(WALFormat.fitsInBlock(position, size), "frame at " + position + " straddles a block");
+            position += WALFormat.frameSize(WALFormat.VERSION_3, size);
+            frames++;
+        }
+        assertEquals(300, frames);
+        assertTrue(paddings > 0);
+
+        WALSegment reader = openBlockAligned();
+        List<WALEntry> entries = reader.readAll();
+        assertEquals(300, entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(i + 1, entries.get(i).getLogSequenceNumber());
+            assertEquals(payload(i + 1), entries.get(i).getData().toStringUtf8());
+        }
+        assertEquals(300, reader.readLastEntry().getLogSequenceNumber());
+        reader.close();
+    }
+
+    @Test
+    void testBlockLayoutSkipsOnlyTheDamagedBlock() throws Exception {
+        WALSegment wal = openBlockAligned();
+        for (int lsn = 1; lsn <= 300; lsn++) {
+            wal.write(buildWALEntry(lsn, payload(lsn)));
+        }
+        wal.close();
+
+        // A torn write in the middle of the second block.
+        try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw")) {
+            raf.seek(WALFormat.BLOCK_SIZE + 5000);
+            raf.write(new byte[512]);
+        }
+
+        WALSegment reader = openBlockAligned();
+        List<WALEntry> entries = reader.readAll();
+        reader.close();
+
+        assertTrue(entries.size() < 300);
+        assertTrue(entries.size() > 250, "only the records after the damage in its block are lost");
+        assertEquals(300, entries.get(entries.size() - 1).getLogSequenceNumber());
+        for (int i = 1; i < entries.size(); i++) {
+            assertTrue(entries.get(i - 1).getLogSequenceNumber() < entries.get(i).getLogSequenceNumber());
+        }
+    }
+
+    @Test
+    void testBlockLayoutRejectsEntriesLargerThanABlock() {
+        WALSegment wal = openBlockAligned();
+        assertThrows(IllegalArgumentException.class, () -> wal.write(buildWALEntry(1, "x".repeat(WALFormat.BLOCK_SIZE))));
+        wal.write(buildWALEntry(1, "fits"));
+        wal.close();
+    }
+
+    @Test
+    void testBlockLayoutAppendsAfterATornTailAreReadable() throws Exception {
+        WALSegment wal = openBlockAligned();
+        for (int lsn = 1; lsn <= 5; lsn++) {
+            wal.write(buildWALEntry(lsn, payload(lsn)));
+        }
+        wal.close();
+
+        // A crash part way through the next frame: its size prefix and a few bytes made it to disk.
+        try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw")) {
+            raf.seek(raf.length());
+            raf.writeInt(Integer.reverseBytes(1000));
+            raf.write(new byte[100]);
+        }
+
+        WALSegment reopened = openBlockAligned();
+        for (int lsn = 6; lsn <= 10; lsn++) {
+            reopened.write(buildWALEntry(lsn, payload(lsn)));
+        }
+        reopened.close();
+
+        List<WALEntry> entries = new WALSegmentReader(tempFile.getAbsolutePath(), checksum).readAll();
+        assertEquals(10, entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(i + 1, entries.get(i).getLogSequenceNumber());
+            assertEquals(payload(i + 1), entries.get(i).getData().toStringUtf8());
+        }
+    }
+
+    @Test
+    void testCommitAsyncDoesNotWaitForThePredecessorOnTheCallingThread() throws Exception {
+        WALSegment wal = new WALSegment(1, tempFile.getAbsolutePath(), true, checksum, scheduler);
+        CompletableFuture<Void> predecessorSealed = new CompletableFuture<>();
+        wal.setPredecessorSealed(predecessorSealed);
+        wal.write(buildWALEntry(1, "waits for the seal"));
+
+        CompletableFuture<Void> committed = wal.commitAsync(scheduler);
+        wal.writeOut();
+        assertFalse(committed.isDone());
+        assertEquals(1, new WALSegmentReader(tempFile.getAbsolutePath(), checksum).readAll().size());
+
+        predecessorSealed.complete(null);
+        committed.get(5, TimeUnit.SECONDS);
+        wal.close();
+    }
+
+    @Test
+    void testAppendsAfterATruncatedVersion2FrameAreReadable() throws Exception {
+        WALSegment wal = new WALSegment(1, tempFile.getAbsolutePath(), false, checksum);
+        for (int lsn = 1; lsn <= 5; lsn++) {
+            wal.write(buildWALEntry(lsn, payload(lsn)));
+        }
+        wal.close();
+
+        // A crash part way through the last frame.
+        try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw")) {
+            raf.setLength(raf.length() - 10);
+        }
+
+        WALSegment reopened = new WALSegment(1, tempFile.getAbsolutePath(), false, checksum);
+        for (int lsn = 6; lsn <= 10; lsn++) {
+            reopened.write(buildWALEntry(lsn, payload(lsn)));
+        }
+        reopened.close();
+
+        WALSegmentReader reader = new WALSegmentReader(tempFile.getAbsolutePath(), checksum);
+        assertEquals(List.of(1L, 2L, 3L, 4L, 6L, 7L, 8L, 9L, 10L),
+                reader.readAll().stream().map(WALEntry::getLogSequenceNumber).toList());
+        assertEquals(10, reader.readLastEntry().getLogSequenceNumber());
+    }
+
+    @Test
+    void testReopeningATornHeaderRewritesIt() throws Exception {
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            out.write(WALFormat.header(WALFormat.CURRENT_VERSION).array(), 0, 6); // crash in the middle of the header
+        }
+        assertTrue(WALFormat.isTornHeader(tempFile.toPath()));
+        assertTrue(new WALSegmentReader(tempFile.getAbsolutePath(), checksum).readAll().isEmpty());
+
+        WALSegment wal = new WALSegment(1, tempFile.getAbsolutePath(), false, checksum);
+        wal.write(buildWALEntry(1, "after the crash"));
+        wal.close();
+
+        assertEquals(WALFormat.CURRENT_VERSION, WALFormat.readVersion(tempFile.toPath()));
+        List<WALEntry> entries = new WALSegmentReader(tempFile.getAbsolutePath(), checksum).readAll();
+        assertEquals(1, entries.size());
+        assertEquals("after the crash", entries.get(0).getData().toStringUtf8());
+    }
+
+    @Test
+    void testOneReaderServesInterleavedStreams() throws Exception {
+        WALSegment wal = openBlockAligned();
+        for (int lsn = 1; lsn <= 200; lsn++) {
+            wal.write(buildWALEntry(lsn, payload(lsn)));
+        }
+        wal.close();
+
+        WALSegmentReader reader = new WALSegmentReader(tempFile.getAbsolutePath(), checksum);
+        try (WALSegmentReader.SegmentStream first = reader.openStream();
+             WALSegmentReader.SegmentStream second = reader.openStream()) {
+            for (int lsn = 1; lsn <= 150; lsn++) {
+                assertEquals(lsn, reader.readEntry(first).getLogSequenceNumber());
+            }
+            for (int lsn = 1; lsn <= 200; lsn++) {
+                assertEquals(lsn, reader.readEntry(second).getLogSequenceNumber());
+            }
+            for (int lsn = 151; lsn <= 200; lsn++) {
+                assertEquals(lsn, reader.readEntry(first).getLogSequenceNumber());
+            }
+            assertNull(reader.readEntry(first));
+        }
+    }
+
+    @Test
+    void testDamageStillFailsTheReadOfAVersion2Segment() throws Exception {
+        WALSegment wal = new WALSegment(1, tempFile.getAbsolutePath(), false, checksum);
+        for (int lsn = 1; lsn <= 100; lsn++) {
+            wal.write(buildWALEntry(lsn, payload(lsn)));
+        }
+        wal.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw")) {
+            raf.seek(5000);
+            raf.write(new byte[512]);
+        }
+
+        WALSegment reader = new WALSegment(1, tempFile.getAbsolutePath(), false, checksum);
+        assertThrows(RuntimeException.class, reader::readAll);
+        reader.close();
+    }
 }
@@ -0,0 +1,229 @@
+package org.greengrapes;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WALShipperTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testShipAllSegmentsOverLoopbackSocket() throws Exception {
+        WAL primary = WAL.openWAL(tempDir.resolve("primary").toString(), false, 200, 100);
+        WAL standby = WAL.openWAL(tempDir.resolve("standby").toString(), false, 200, 100);
+
+        for (int i = 0; i < 40; i++) {
+            primary.write(("record-" + i).getBytes());
+        }
+
+        long received = replicate(primary, standby, 1, 40);
+
+        assertEquals(40, received);
+        standby.flush();
+        assertSameRecords(primary.readAll(), standby.readAll());
+
+        primary.close();
+        standby.close();
+    }
+
+    @Test
+    void testShipIsIncrementalFromLsn() throws Exception {
+        WAL primary = WAL.openWAL(tempDir.resolve("primary").toString(), false, 200, 100);
+        WAL standby = WAL.openWAL(tempDir.resolve("standby").toString(), false, 200, 100);
+
+        for (int i = 0; i < 10; i++) {
+            primary.write(("first-" + i).getBytes());
+        }
+        assertEquals(10, replicate(primary, standby, 1, 10));
+
+        for (int i = 0; i < 15; i++) {
+            primary.write(("second-" + i).getBytes());
+        }
+        assertEquals(25, replicate(primary, standby, 11, 25));
+        standby.flush();
+
+        List<WALRecord> records = standby.readAll();
+        assertEquals(25, records.size());
+        assertEquals(11, records.get(10).getLogSequenceNumber());
+        assertArrayEquals("second-0".getBytes(), records.get(10).getData());
+
+        primary.close();
+        standby.close();
+    }
+
+    @Test
+    void testShipNothingWhenStandbyIsCaughtUp() throws Exception {
+        WAL primary = WAL.openWAL(tempDir.resolve("primary").toString(), false, 1024, 10);
+        primary.write("only".getBytes());
+
+        WALShipper shipper = new WALShipper(primary);
+        try (CountingChannel sink = new CountingChannel()) {
+            assertEquals(1, shipper.ship(2, sink));
+            assertEquals(0, sink.bytes);
+        }
+
+        primary.close();
+    }
+
+    @Test
+    void testShipRejectsNonBlockingTarget() throws Exception {
+        WAL primary = WAL.openWAL(tempDir.resolve("primary").toString(), false, 1024, 10);
+        primary.write("record".getBytes());
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (SocketChannel client = SocketChannel.open(server.getLocalAddress())) {
+                client.configureBlocking(false);
+                assertThrows(IllegalArgumentException.class, () -> new WALShipper(primary).ship(1, client));
+            }
+        }
+
+        primary.close();
+    }
+
+    @Test
+    void testReceiverRejectsCorruptedFrame() throws Exception {
+        WAL primary = WAL.openWAL(tempDir.resolve("primary").toString(), false, 1024, 10);
+        WAL standby = WAL.openWAL(tempDir.resolve("standby").toString(), false, 1024, 10);
+        primary.write("payload".getBytes());
+
+        CountingChannel sink = new CountingChannel();
+        new WALShipper(primary).ship(1, sink);
+
+        // Flip a byte of the payload, past the chunk header, size prefix and field tags
+        ByteBuffer stream = ByteBuffer.wrap(sink.copy.toByteArray());
+        int payloadOffset = WALShipper.CHUNK_HEADER_SIZE + Integer.BYTES + 4;
+        stream.put(payloadOffset, (byte) (stream.get(payloadOffset) ^ 0xFF));
+
+        WALReceiver receiver = new WALReceiver(standby);
+        assertThrows(IllegalStateException.class,
+                () -> receiver.receive(Channels.newChannel(new ByteArrayInputStream(stream.array()))));
+        assertEquals(0, standby.getLastLogSequenceNumber());
+
+        primary.close();
+        standby.close();
+    }
+
+    @Test
+    void testShippingFromARetiredLsnIsRefused() throws Exception {
+        WAL primary = WAL.openWAL(tempDir.resolve("primary").toString(), false, 200, 3);
+        for (int i = 0; i < 40; i++) {
+            primary.write(("record-" + i).getBytes());
+        }
+        Path firstSegment = Path.of(WALUtils.getSegmentFilePath(primary.getDirectoryPath(), 1));
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (Files.exists(firstSegment) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(Files.exists(firstSegment), "retention removed the oldest segment");
+
+        assertThrows(IllegalArgumentException.class, () -> new WALShipper(primary).ship(1, new CountingChannel()));
+
+        CountingChannel sink = new CountingChannel();
+        long lastShipped = new WALShipper(primary, true).ship(1, sink);
+        assertEquals(40, lastShipped);
+
+        WAL standby = WAL.openWAL(tempDir.resolve("standby").toString(), false, 200, 100);
+        assertThrows(IOException.class,
+                () -> new WALReceiver(standby).receive(Channels.newChannel(new ByteArrayInputStream(sink.copy.toByteArray()))));
+        assertEquals(0, standby.getLastLogSequenceNumber());
+
+        assertEquals(40, new WALReceiver(standby, true)
+                .receive(Channels.newChannel(new ByteArrayInputStream(sink.copy.toByteArray()))));
+
+        primary.close();
+        standby.close();
+    }
+
+    @Test
+    void testShipBlockAlignedSegmentsSkipsPadding() throws Exception {
+        WALOptions blockLayout = WALOptions.newBuilder().setBlockLayout(true).build();
+        WAL primary = WAL.openWAL(tempDir.resolve("primary").toString(), false, 64 * 1024, 100, blockLayout);
+        WAL standby = WAL.openWAL(tempDir.resolve("standby").toString(), false, 64 * 1024, 100);
+
+        for (int i = 1; i <= 200; i++) {
+            primary.write(("record-" + i + "-").repeat(i % 100).getBytes());
+        }
+
+        assertEquals(200, replicate(primary, standby, 1, 200));
+        standby.flush();
+        assertSameRecords(primary.readAll(), standby.readAll());
+
+        primary.close();
+        standby.close();
+    }
+
+    private long replicate(WAL primary, WAL standby, long fromLsn, long expectedLastShipped) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            Future<Long> receiving = executor.submit(() -> {
+                try (SocketChannel socket = server.accept()) {
+                    return new WALReceiver(standby).receive(socket);
+                }
+            });
+
+            try (SocketChannel socket = SocketChannel.open(server.getLocalAddress())) {
+                assertEquals(expectedLastShipped, new WALShipper(primary).ship(fromLsn, socket));
+            }
+
+            return receiving.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void assertSameRecords(List<WALRecord> expected, List<WALRecord> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getLogSequenceNumber(), actual.get(i).getLogSequenceNumber());
+            assertArrayEquals(expected.get(i).getData(), actual.get(i).getData());
+        }
+    }
+
+    private static class CountingChannel implements WritableByteChannel {
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        long bytes;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            byte[] chunk = new byte[n];
+            src.get(chunk);
+            copy.writeBytes(chunk);
+            bytes += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -4,10 +4,20 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
@@ -15,6 +25,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -42,6 +53,7 @@ class WALTest {
 
         byte[] data = "hello world".getBytes();
         wal.write(data);
+        wal.flush();
 
         List<WALRecord> records = wal.read();
         assertEquals(1, records.size());
@@ -60,6 +72,7 @@ class WALTest {
 
         wal.write(d1);
         wal.write(d2);
+        wal.flush();
 
         List<WALRecord> records = wal.read();
         assertEquals(2, records.size());
@@ -83,6 +96,7 @@ class WALTest {
 
         wal.write(data1);
         wal.write(data2); // should trigger rotation
+        wal.flush();
 
         // The current segment should not be the first one
         assertTrue(wal.read().size() > 0);
@@ -90,6 +104,70 @@ class WALTest {
         wal.close();
     }
 
+    @Test
+    void testRotationKeepsEveryRecordInOrder() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 60, 100);
+
+        for (int i = 1; i <= 50; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.commit();
+
+        List<WALRecord> records = wal.readAll();
+        assertEquals(50, records.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i + 1, records.get(i).getLogSequenceNumber());
+        }
+        assertTrue(WALUtils.getAllSegmentNumbers(tempDir.toString()).size() > 2, "Writes should have rotated segments");
+        long segmentsWithRecords = WALUtils.getAllSegmentNumbers(tempDir.toString()).stream()
+                .filter(segmentNumber -> new File(WALUtils.getSegmentFilePath(tempDir.toString(), segmentNumber)).length()
+                        > WALFormat.HEADER_SIZE)
+                .count(); // not the empty pre-opened spare
+        assertEquals(segmentsWithRecords - 1, wal.getRotationCount());
+
+        wal.close();
+    }
+
+    @Test
+    void testLastLsnSurvivesRestartOntoEmptySpareSegment() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 60, 100);
+        for (int i = 0; i < 10; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.close();
+
+        // The spare segment pre-opened before close is now the newest, and it is empty
+        WAL reopened = WAL.openWAL(tempDir.toString(), false, 60, 100);
+        assertEquals(10, reopened.getLastLogSequenceNumber());
+
+        reopened.write("after-restart".getBytes());
+        reopened.commit();
+
+        List<WALRecord> records = reopened.readAll();
+        assertEquals(11, records.size());
+        assertEquals(11, records.get(10).getLogSequenceNumber());
+
+        reopened.close();
+    }
+
+    @Test
+    void testRestartResumesTheLastSegmentWithRecords() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 1024 * 1024, 10);
+        for (int i = 0; i < 5; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.close();
+        assertEquals(List.of(1L, 2L), WALUtils.getAllSegmentNumbers(tempDir.toString()).stream().sorted().toList());
+
+        WAL reopened = WAL.openWAL(tempDir.toString(), false, 1024 * 1024, 10);
+        List<WALRecord> records = reopened.read();
+        assertEquals(5, records.size(), "the empty spare must not become the active segment");
+        assertEquals(6, reopened.write("after-restart".getBytes()));
+        reopened.commit();
+        assertEquals(6, reopened.read().size());
+        reopened.close();
+    }
+
     @Test
     void testFlushAndCommit() {
         WAL wal = WAL.openWAL(tempDir.toString(), false, 1024 * 1024, 10);
@@ -179,12 +257,345 @@ class WALTest {
 
         wal.commit();
 
-        // Verify segment files (no more than maxSegments should exist)
-        long segmentFiles = Files.list(tempDir)
-                .filter(f -> f.getFileName().toString().startsWith("wal_segment_"))
-                .count();
-        assertTrue(segmentFiles <= maxSegments, "Segment files exceeded maxSegments");
+        // Retention runs in the background after rotation, so give it a moment to catch up
+        long segmentFiles = countSegmentFiles();
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (segmentFiles > maxSegments + 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            segmentFiles = countSegmentFiles();
+        }
+
+        // Verify segment files (no more than maxSegments, plus the empty pre-opened spare, should exist)
+        assertTrue(segmentFiles <= maxSegments + 1, "Segment files exceeded maxSegments");
 
         wal.close();
     }
+
+    private long countSegmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(tempDir)) {
+            return files
+                    .filter(f -> f.getFileName().toString().startsWith("wal_segment_"))
+                    .count();
+        }
+    }
+
+    @Test
+    void testReadsSeeOnlyCommittedRecords() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 1024 * 1024, 10);
+
+        wal.write("first".getBytes());
+        wal.flush();
+        wal.write("buffered".getBytes());
+
+        // The periodic flusher may have run; either way reads stop at the watermark.
+        long committed = wal.getCommittedLogSequenceNumber();
+        assertTrue(committed >= 1 && committed <= 2);
+        assertEquals(2, wal.getLastLogSequenceNumber());
+        assertEquals(committed, wal.readAll().size());
+
+        wal.flush();
+        assertEquals(2, wal.getCommittedLogSequenceNumber());
+        assertEquals(2, wal.read().size());
+        assertEquals(2, wal.readAll().size());
+
+        wal.close();
+    }
+
+    @Test
+    void testCommittedWatermarkFollowsRotation() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 60, 100);
+
+        for (int i = 1; i <= 30; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.flush();
+
+        assertEquals(30, wal.getCommittedLogSequenceNumber());
+        List<WALRecord> records = wal.readAll();
+        assertEquals(30, records.size());
+        assertEquals(30, records.get(records.size() - 1).getLogSequenceNumber());
+
+        wal.close();
+    }
+
+    @Test
+    void testCommittedWatermarkRestoredOnReopen() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 1024 * 1024, 10);
+        wal.write("persisted".getBytes());
+        wal.close();
+
+        WAL reopened = WAL.openWAL(tempDir.toString(), false, 1024 * 1024, 10);
+        assertEquals(1, reopened.getCommittedLogSequenceNumber());
+        assertEquals(1, reopened.readAll().size());
+        reopened.close();
+    }
+
+    @Test
+    void testTruncateAfterWithinActiveSegment() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 1024 * 1024, 10);
+        for (int i = 1; i <= 100; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.flush();
+
+        wal.truncateAfter(70);
+        assertEquals(70, wal.getLastLogSequenceNumber());
+        assertEquals(70, wal.getCommittedLogSequenceNumber());
+        assertEquals(71, wal.write("replacement".getBytes()));
+        wal.flush();
+
+        List<WALRecord> records = wal.readAll();
+        assertEquals(71, records.size());
+        assertEquals("record-70", new String(records.get(69).getData()));
+        assertEquals("replacement", new String(records.get(70).getData()));
+        wal.close();
+
+        WAL reopened = WAL.openWAL(tempDir.toString(), false, 1024 * 1024, 10);
+        assertEquals(71, reopened.getLastLogSequenceNumber());
+        reopened.close();
+    }
+
+    @Test
+    void testTruncateAfterDeletesLaterSegments() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 120, 1000);
+        for (int i = 1; i <= 100; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.flush();
+        int segmentsBefore = WALUtils.getAllSegmentNumbers(tempDir.toString()).size();
+
+        wal.truncateAfter(37);
+        assertTrue(WALUtils.getAllSegmentNumbers(tempDir.toString()).size() < segmentsBefore);
+        assertEquals(37, wal.readAll().size());
+        assertEquals(37, wal.readLast(1).get(0).getLogSequenceNumber());
+
+        for (int i = 38; i <= 50; i++) {
+            assertEquals(i, wal.write(("again-" + i).getBytes()));
+        }
+        wal.close();
+
+        WAL reopened = WAL.openWAL(tempDir.toString(), false, 120, 1000);
+        List<WALRecord> records = reopened.readAll();
+        assertEquals(50, records.size());
+        assertEquals("record-37", new String(records.get(36).getData()));
+        assertEquals("again-38", new String(records.get(37).getData()));
+        reopened.close();
+    }
+
+    @Test
+    void testTruncateAfterIgnoresLsnAtOrPastTheEnd() {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 1024 * 1024, 10);
+        wal.write("a".getBytes());
+        wal.write("b".getBytes());
+
+        wal.truncateAfter(2);
+        wal.truncateAfter(5);
+        assertEquals(2, wal.getLastLogSequenceNumber());
+        wal.close();
+    }
+
+    @Test
+    void testTruncateAfterWaitsForOpenMappedCursors() throws Exception {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 1024 * 1024, 10);
+        for (int i = 1; i <= 10; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.flush();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> truncation;
+            try (WALMappedCursor cursor = wal.mappedCursor(1)) {
+                assertTrue(cursor.advance());
+                truncation = executor.submit(() -> wal.truncateAfter(5));
+                Thread.sleep(100);
+                assertFalse(truncation.isDone(), "Truncation must wait while a cursor maps the segment");
+            }
+            truncation.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(5, wal.readAll().size());
+        wal.close();
+    }
+
+    @Test
+    void testAppendsProceedWhileTruncationWaitsForCursors() throws Exception {
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 1024 * 1024, 10);
+        for (int i = 1; i <= 10; i++) {
+            wal.write(("record-" + i).getBytes());
+        }
+        wal.flush();
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> truncation;
+            try (WALMappedCursor cursor = wal.mappedCursor(1)) {
+                assertTrue(cursor.advance());
+                truncation = executor.submit(() -> wal.truncateAfter(5));
+                Thread.sleep(100);
+                // A waiting truncation must not hold the writer lock.
+                assertEquals(11L, (long) executor.submit(() -> wal.write("while-waiting".getBytes())).get(5, TimeUnit.SECONDS));
+                assertFalse(truncation.isDone());
+            }
+            truncation.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L), logSequenceNumbers(wal.readAll()));
+        assertEquals(6, wal.write("after".getBytes()));
+        wal.close();
+    }
+
+    private static List<Long> logSequenceNumbers(WALMappedCursor cursor) {
+        List<Long> lsns = new ArrayList<>();
+        try (cursor) {
+            while (cursor.advance()) {
+                lsns.add(cursor.getLogSequenceNumber());
+            }
+        }
+        return lsns;
+    }
+
+    private static List<Long> logSequenceNumbers(Iterable<WALRecord> records) {
+        List<Long> lsns = new ArrayList<>();
+        records.forEach(record -> lsns.add(record.getLogSequenceNumber()));
+        return lsns;
+    }
+
+    @Test
+    void testBlockLayoutRoundTripsThroughEveryReader() throws Exception {
+        WALOptions options = WALOptions.newBuilder().setBlockLayout(true).build();
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 256 * 1024, 100, options);
+        byte[] large = new byte[100 * 1024];
+        new Random(3).nextBytes(large);
+
+        long largeLsn = 0;
+        for (int i = 1; i <= 600; i++) {
+            if (i == 300) {
+                largeLsn = wal.write(1, "large".getBytes(), new ByteArrayInputStream(large));
+            } else {
+                wal.write(("record-" + i + "-").repeat(i % 150).getBytes());
+            }
+        }
+        wal.flush();
+
+        List<WALRecord> records = wal.readAll();
+        assertTrue(records.size() > 600, "the large record is written as fragments");
+        List<Long> lsns = logSequenceNumbers(records);
+        assertEquals(WALRecord.Fragment.FIRST, records.get((int) largeLsn - 1).getFragment());
+        try (InputStream in = wal.openRecordStream(largeLsn)) {
+            assertArrayEquals(large, in.readAllBytes());
+        }
+        assertEquals(largeLsn, wal.findLatest("large".getBytes()).getLogSequenceNumber());
+
+        try (WALReplayReader replay = wal.replay(1, 2, 4096)) {
+            assertEquals(lsns, logSequenceNumbers(() -> replay));
+        }
+        assertEquals(lsns, logSequenceNumbers(wal.mappedCursor(1)));
+        try (WALReverseCursor reverse = wal.reverseCursor(1)) {
+            List<Long> reversed = logSequenceNumbers(() -> reverse);
+            Collections.reverse(reversed);
+            assertEquals(lsns, reversed);
+        }
+
+        wal.truncateAfter(500);
+        assertEquals(501, wal.write("after truncation".getBytes()));
+        wal.close();
+
+        WAL reopened = WAL.openWAL(tempDir.toString(), false, 256 * 1024, 100, options);
+        assertEquals(501, reopened.getLastLogSequenceNumber());
+        assertEquals(501, reopened.readAll().size());
+        reopened.close();
+    }
+
+    @Test
+    void testBlockLayoutRejectsRecordsLargerThanABlock() throws Exception {
+        WALOptions options = WALOptions.newBuilder().setBlockLayout(true).build();
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 256 * 1024, 100, options);
+        wal.write("before".getBytes());
+
+        assertThrows(IllegalArgumentException.class, () -> wal.write(1, "large".getBytes(), new byte[40 * 1024]));
+        assertThrows(IllegalArgumentException.class, () -> wal.write(new byte[WALFormat.BLOCK_SIZE]));
+
+        byte[] fits = new byte[wal.maxRecordPayloadSize("key".getBytes())];
+        assertEquals(2, wal.write(1, "key".getBytes(), fits));
+        assertEquals(3, wal.write("after".getBytes()));
+        wal.flush();
+        assertEquals(3, wal.readAll().size());
+        wal.close();
+    }
+
+    @Test
+    void testBlockLayoutReadersResumeAfterADamagedBlock() throws Exception {
+        WALOptions options = WALOptions.newBuilder().setBlockLayout(true).build();
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 1024 * 1024, 10, options);
+        for (int i = 1; i <= 300; i++) {
+            wal.write(("record-" + i + "-").repeat(60).getBytes());
+        }
+        wal.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(WALUtils.getSegmentFilePath(tempDir.toString(), 1), "rw")) {
+            raf.seek(2L * WALFormat.BLOCK_SIZE + 1000);
+            raf.write(new byte[100]);
+        }
+
+        WAL reopened = WAL.openWAL(tempDir.toString(), false, 1024 * 1024, 10, options);
+        List<Long> lsns = logSequenceNumbers(reopened.readAll());
+        assertTrue(lsns.size() < 300 && lsns.size() > 250, "lost " + (300 - lsns.size()) + " records");
+        assertEquals(300, (long) lsns.get(lsns.size() - 1));
+        try (WALReplayReader replay = reopened.replay(1, 2, 4096)) {
+            assertEquals(lsns, logSequenceNumbers(() -> replay));
+        }
+        assertEquals(lsns, logSequenceNumbers(reopened.mappedCursor(1)));
+        reopened.close();
+    }
+
+    @Test
+    void testDamagedBlockOfASealedSegmentIsSkippedByEveryFrameWalker() throws Exception {
+        WALOptions options = WALOptions.newBuilder().setBlockLayout(true).build();
+        WAL wal = WAL.openWAL(tempDir.toString(), false, 128 * 1024, 100, options);
+        wal.write(1, "first".getBytes(), "kept".getBytes());
+        for (int i = 2; i <= 300; i++) {
+            wal.write(1, ("key-" + i % 50).getBytes(), ("value-" + i + "-").repeat(50).getBytes());
+        }
+        assertTrue(Files.exists(Path.of(WALUtils.getSegmentFilePath(tempDir.toString(), 2))), "segment 1 is sealed");
+        wal.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(WALUtils.getSegmentFilePath(tempDir.toString(), 1), "rw")) {
+            raf.seek(2L * WALFormat.BLOCK_SIZE);
+            raf.write(new byte[100]);
+        }
+        Files.deleteIfExists(Path.of(WALUtils.getSegmentIndexFilePath(tempDir.toString(), 1))); // rebuilt from the damaged file
+
+        WAL reopened = WAL.openWAL(tempDir.toString(), false, 128 * 1024, 100, WALOptions.newBuilder()
+                .setBlockLayout(true)
+                .setCompactionEnabled(true)
+                .setCompactionCheckInterval(Duration.ofHours(1))
+                .build());
+        List<Long> lsns = logSequenceNumbers(reopened.readAll());
+        assertTrue(lsns.size() < 300 && lsns.size() > 300 - 70, "lost " + (300 - lsns.size()) + " records, about one block");
+
+        try (WALReverseCursor reverse = reopened.reverseCursor(1)) {
+            // Walking back through the trailers also reaches the intact frames after the damage.
+            List<Long> reversed = logSequenceNumbers(() -> reverse);
+            assertTrue(reversed.containsAll(lsns) && reversed.size() < 300);
+        }
+        assertEquals(1, reopened.findLatest("first".getBytes()).getLogSequenceNumber());
+
+        ByteArrayOutputStream shipped = new ByteArrayOutputStream();
+        assertEquals(300, new WALShipper(reopened).ship(1, Channels.newChannel(shipped)));
+        WAL standby = WAL.openWAL(tempDir.resolve("standby").toString(), false, 128 * 1024, 100);
+        new WALReceiver(standby, true).receive(Channels.newChannel(new ByteArrayInputStream(shipped.toByteArray())));
+        standby.flush();
+        assertEquals(lsns, logSequenceNumbers(standby.readAll()));
+        standby.close();
+
+        assertTrue(reopened.compact() > 0);
+        assertEquals(1, reopened.findLatest("first".getBytes()).getLogSequenceNumber());
+        assertEquals(300, reopened.findLatest("key-0".getBytes()).getLogSequenceNumber());
+        reopened.close();
+    }
 }